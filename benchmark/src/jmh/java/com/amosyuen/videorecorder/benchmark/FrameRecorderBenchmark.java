@@ -0,0 +1,71 @@
+package com.amosyuen.videorecorder.benchmark;
+
+import com.amosyuen.videorecorder.recorder.FFmpegFrameRecorder;
+import com.amosyuen.videorecorder.recorder.common.ImageSize;
+
+import org.bytedeco.javacv.Frame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_BGR24;
+
+/**
+ * Measures encoding single images and sample buffers with {@link FFmpegFrameRecorder}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FrameRecorderBenchmark {
+
+    @Param({"320x240", "640x480", "1280x720"})
+    public String size;
+
+    protected File mFile;
+    protected FFmpegFrameRecorder mRecorder;
+    protected Frame mFrame;
+    protected ShortBuffer mSamples;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ImageSize imageSize = SyntheticMedia.parseSize(size);
+        mFile = File.createTempFile("benchmark-recorder-", ".mp4");
+        mRecorder = SyntheticMedia.createRecorder(mFile, imageSize);
+        mRecorder.start();
+        mFrame = SyntheticMedia.createImageFrame(imageSize, 0);
+        mSamples = SyntheticMedia.createSamples(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        try {
+            mRecorder.stop();
+        } finally {
+            mRecorder.release();
+            mFile.delete();
+        }
+    }
+
+    @Benchmark
+    public boolean recordImage() throws Exception {
+        return mRecorder.recordImage(mFrame.imageWidth, mFrame.imageHeight, mFrame.imageDepth,
+                mFrame.imageChannels, mFrame.imageStride, AV_PIX_FMT_BGR24, mFrame.image);
+    }
+
+    @Benchmark
+    public boolean recordSamples() throws Exception {
+        mSamples.rewind();
+        return mRecorder.recordSamples(mSamples);
+    }
+}
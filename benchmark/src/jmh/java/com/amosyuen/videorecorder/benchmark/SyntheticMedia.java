@@ -0,0 +1,123 @@
+package com.amosyuen.videorecorder.benchmark;
+
+import com.amosyuen.videorecorder.recorder.FFmpegFrameRecorder;
+import com.amosyuen.videorecorder.recorder.VideoTransformerTask;
+import com.amosyuen.videorecorder.recorder.common.ImageSize;
+
+import org.bytedeco.javacv.Frame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_AAC;
+import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_H264;
+
+/**
+ * Generates synthetic frames, samples and clips for the benchmarks.
+ */
+public class SyntheticMedia {
+
+    public static final int FRAME_RATE = 30;
+    public static final int SAMPLE_RATE = 44100;
+    public static final int AUDIO_CHANNELS = 1;
+    public static final int SAMPLES_PER_FRAME = 1024;
+
+    private SyntheticMedia() {}
+
+    /**
+     * Parses a size in the form WIDTHxHEIGHT.
+     */
+    public static ImageSize parseSize(String size) {
+        String[] dimensions = size.split("x");
+        return new ImageSize(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]));
+    }
+
+    /**
+     * Creates a recorder configured like the library's default H264 and AAC recorder.
+     */
+    public static FFmpegFrameRecorder createRecorder(File file, ImageSize size) {
+        FFmpegFrameRecorder recorder = createRecorder(file);
+        recorder.setImageWidth(size.getWidthUnchecked());
+        recorder.setImageHeight(size.getHeightUnchecked());
+        return recorder;
+    }
+
+    /**
+     * Creates a recorder configured like the library's default H264 and AAC recorder, without an
+     * image size so that {@link VideoTransformerTask} can set it.
+     */
+    public static FFmpegFrameRecorder createRecorder(File file) {
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(file, AUDIO_CHANNELS);
+        recorder.setFormat("mp4");
+        recorder.setVideoCodec(AV_CODEC_ID_H264);
+        recorder.setVideoOption("preset", "ultrafast");
+        recorder.setFrameRate(FRAME_RATE);
+        recorder.setAudioCodec(AV_CODEC_ID_AAC);
+        recorder.setSampleRate(SAMPLE_RATE);
+        return recorder;
+    }
+
+    /**
+     * Creates a BGR frame filled with a gradient that moves with the frame index, so that the
+     * encoder can not skip unchanged frames.
+     */
+    public static Frame createImageFrame(ImageSize size, int index) {
+        Frame frame = new Frame(
+                size.getWidthUnchecked(), size.getHeightUnchecked(), Frame.DEPTH_UBYTE, 3);
+        fillImage(frame, index);
+        return frame;
+    }
+
+    public static void fillImage(Frame frame, int index) {
+        ByteBuffer buffer = (ByteBuffer) frame.image[0];
+        for (int y = 0; y < frame.imageHeight; y++) {
+            int rowStart = y * frame.imageStride;
+            for (int x = 0; x < frame.imageWidth * frame.imageChannels; x++) {
+                buffer.put(rowStart + x, (byte) (x + y + index));
+            }
+        }
+    }
+
+    /**
+     * Creates a direct buffer of a sine tone.
+     */
+    public static ShortBuffer createSamples(int offset) {
+        ShortBuffer samples = ByteBuffer.allocateDirect(SAMPLES_PER_FRAME * AUDIO_CHANNELS * 2)
+                .order(ByteOrder.nativeOrder())
+                .asShortBuffer();
+        for (int i = 0; i < samples.capacity(); i++) {
+            samples.put(i, (short) (Math.sin((offset + i) * 2 * Math.PI * 440 / SAMPLE_RATE)
+                    * Short.MAX_VALUE / 2));
+        }
+        return samples;
+    }
+
+    /**
+     * Records a synthetic clip with video and audio.
+     */
+    public static File createClip(ImageSize size, int durationMillis) throws IOException {
+        File file = File.createTempFile("benchmark-clip-", ".mp4");
+        file.deleteOnExit();
+        FFmpegFrameRecorder recorder = createRecorder(file, size);
+        Frame frame = createImageFrame(size, 0);
+        int frameCount = durationMillis * FRAME_RATE / 1000;
+        int sampleCount = durationMillis * SAMPLE_RATE / 1000;
+        try {
+            recorder.start();
+            for (int i = 0; i < frameCount; i++) {
+                fillImage(frame, i);
+                recorder.record(frame);
+            }
+            for (int i = 0; i < sampleCount; i += SAMPLES_PER_FRAME) {
+                recorder.recordSamples(createSamples(i));
+            }
+            recorder.stop();
+        } finally {
+            recorder.release();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,93 @@
+package com.amosyuen.videorecorder.benchmark;
+
+import com.amosyuen.videorecorder.camera.CameraControllerI;
+import com.amosyuen.videorecorder.recorder.TransformFilterFactory;
+import com.amosyuen.videorecorder.recorder.VideoTransformerTask.FilterParams;
+import com.amosyuen.videorecorder.recorder.common.ImageSize;
+import com.amosyuen.videorecorder.recorder.params.VideoTransformerParams;
+import com.amosyuen.videorecorder.recorder.params.VideoTransformerParamsI.ScalerQuality;
+
+import org.bytedeco.javacv.FFmpegFrameFilter;
+import org.bytedeco.javacv.Frame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the filter chains created by {@link TransformFilterFactory}, both filtering frames and
+ * creating the filter graph.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TransformFilterBenchmark {
+
+    @Param({"320x240", "640x480", "1280x720"})
+    public String size;
+
+    @Param({"0", "90", "180", "270"})
+    public int rotationDegrees;
+
+    @Param({"BACK", "FRONT"})
+    public CameraControllerI.Facing facing;
+
+    @Param({"FAST_BILINEAR", "BILINEAR", "BICUBIC"})
+    public ScalerQuality scalerQuality;
+
+    protected TransformFilterFactory mFilterFactory;
+    protected FilterParams mFilterParams;
+    protected ImageSize mOutputSize;
+    protected FFmpegFrameFilter mFilter;
+    protected Frame mFrame;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ImageSize imageSize = SyntheticMedia.parseSize(size);
+        mFilterFactory = new TransformFilterFactory(VideoTransformerParams.builder()
+                .setVideoSize(new ImageSize(480, 480))
+                .setShouldCropVideo(true)
+                .setShouldPadVideo(true)
+                .setVideoScalerQuality(scalerQuality)
+                .build());
+        mFilterParams = FilterParams.create(
+                imageSize, SyntheticMedia.FRAME_RATE, facing, rotationDegrees);
+        mOutputSize = mFilterFactory.calculateTransformedSize(mFilterParams);
+        mFilter = mFilterFactory.createFilter(mFilterParams, mOutputSize);
+        mFilter.start();
+        mFrame = SyntheticMedia.createImageFrame(imageSize, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mFilter.release();
+    }
+
+    @Benchmark
+    public void filterFrame(Blackhole blackhole) throws Exception {
+        mFilter.push(mFrame);
+        Frame frame;
+        while ((frame = mFilter.pull()) != null) {
+            blackhole.consume(frame);
+        }
+    }
+
+    @Benchmark
+    public void createFilter() throws Exception {
+        FFmpegFrameFilter filter = mFilterFactory.createFilter(mFilterParams, mOutputSize);
+        try {
+            filter.start();
+        } finally {
+            filter.release();
+        }
+    }
+}
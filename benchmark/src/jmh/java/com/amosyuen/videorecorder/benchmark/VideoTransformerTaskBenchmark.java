@@ -0,0 +1,101 @@
+package com.amosyuen.videorecorder.benchmark;
+
+import com.amosyuen.videorecorder.camera.CameraControllerI;
+import com.amosyuen.videorecorder.recorder.BenchmarkClip;
+import com.amosyuen.videorecorder.recorder.FFmpegFrameRecorder;
+import com.amosyuen.videorecorder.recorder.VideoTransformerTask;
+import com.amosyuen.videorecorder.recorder.common.ImageSize;
+import com.amosyuen.videorecorder.recorder.params.VideoTransformerParams;
+import com.amosyuen.videorecorder.recorder.params.VideoTransformerParamsI;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures saving synthetic clips with {@link VideoTransformerTask}, which is the time the user
+ * waits after pressing save.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+public class VideoTransformerTaskBenchmark {
+
+    protected static final int CLIP_COUNT = 3;
+    protected static final int CLIP_DURATION_MILLIS = 2000;
+
+    @Param({"320x240", "640x480", "1280x720"})
+    public String size;
+
+    @Param({"0", "90"})
+    public int rotationDegrees;
+
+    @Param({"BACK", "FRONT"})
+    public CameraControllerI.Facing facing;
+
+    @Param({"true", "false"})
+    public boolean pipelined;
+
+    protected VideoTransformerParamsI mParams;
+    protected List<BenchmarkClip> mClips;
+    protected File mOutputFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ImageSize imageSize = SyntheticMedia.parseSize(size);
+        mParams = VideoTransformerParams.builder()
+                .setVideoSize(new ImageSize(480, 480))
+                .setShouldCropVideo(true)
+                .setShouldPadVideo(true)
+                .build();
+        mClips = new ArrayList<>(CLIP_COUNT);
+        for (int i = 0; i < CLIP_COUNT; i++) {
+            mClips.add(new BenchmarkClip(
+                    SyntheticMedia.createClip(imageSize, CLIP_DURATION_MILLIS),
+                    facing,
+                    rotationDegrees));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (BenchmarkClip clip : mClips) {
+            clip.getFile().delete();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createOutputFile() throws Exception {
+        mOutputFile = File.createTempFile("benchmark-output-", ".mp4");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteOutputFile() {
+        mOutputFile.delete();
+    }
+
+    @Benchmark
+    public long transform() {
+        FFmpegFrameRecorder recorder = SyntheticMedia.createRecorder(mOutputFile);
+        VideoTransformerTask task = new VideoTransformerTask(recorder, mParams, mClips);
+        task.setPipelined(pipelined);
+        task.run();
+        return mOutputFile.length();
+    }
+}
@@ -0,0 +1,36 @@
+package com.amosyuen.videorecorder.recorder;
+
+import com.amosyuen.videorecorder.camera.CameraControllerI;
+
+import java.io.File;
+
+/**
+ * Clip for passing synthetic clips to {@link VideoTransformerTask}.
+ */
+public class BenchmarkClip implements VideoClipI {
+
+    protected final File mFile;
+    protected final CameraControllerI.Facing mFacing;
+    protected final int mOrientationDegrees;
+
+    public BenchmarkClip(File file, CameraControllerI.Facing facing, int orientationDegrees) {
+        mFile = file;
+        mFacing = facing;
+        mOrientationDegrees = orientationDegrees;
+    }
+
+    @Override
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public CameraControllerI.Facing getFacing() {
+        return mFacing;
+    }
+
+    @Override
+    public int getOrientationDegrees() {
+        return mOrientationDegrees;
+    }
+}
@@ -0,0 +1,13 @@
+package android.os;
+
+/**
+ * Desktop replacement for the Android debug utils.
+ */
+public final class Debug {
+
+    private Debug() {}
+
+    public static long getNativeHeapAllocatedSize() {
+        return 0;
+    }
+}
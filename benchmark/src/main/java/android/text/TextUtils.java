@@ -0,0 +1,15 @@
+package android.text;
+
+import com.google.common.base.Joiner;
+
+/**
+ * Desktop replacement for the Android text utils.
+ */
+public final class TextUtils {
+
+    private TextUtils() {}
+
+    public static String join(CharSequence delimiter, Iterable tokens) {
+        return Joiner.on(delimiter.toString()).join(tokens);
+    }
+}
@@ -3,16 +3,14 @@ package com.amosyuen.videorecorder.activity;
 
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
-import android.media.MediaMetadataRetriever;
 import android.media.MediaRecorder;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.DrawableRes;
+import android.support.annotation.Nullable;
 import android.support.annotation.StringRes;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AlertDialog;
@@ -39,10 +37,24 @@ import com.amosyuen.videorecorder.activity.params.InteractionParamsI;
 import com.amosyuen.videorecorder.activity.params.RecorderActivityThemeParamsI;
 import com.amosyuen.videorecorder.camera.CameraController;
 import com.amosyuen.videorecorder.camera.CameraControllerI;
+import com.amosyuen.videorecorder.recorder.BackgroundClipTranscoder;
+import com.amosyuen.videorecorder.recorder.ClipManifest;
+import com.amosyuen.videorecorder.recorder.ClipMetadataCache;
+import com.amosyuen.videorecorder.recorder.ClipsRecorderI;
+import com.amosyuen.videorecorder.recorder.EncodeThroughputCalibrator;
+import com.amosyuen.videorecorder.recorder.FFmpegClipsRecorder;
 import com.amosyuen.videorecorder.recorder.FFmpegFrameRecorder;
+import com.amosyuen.videorecorder.recorder.FilterCache;
 import com.amosyuen.videorecorder.recorder.MediaClipsRecorder;
+import com.amosyuen.videorecorder.recorder.SaveCheckpoint;
+import com.amosyuen.videorecorder.recorder.StartDelayCalibrator;
+import com.amosyuen.videorecorder.recorder.ThrottledProgressListener;
+import com.amosyuen.videorecorder.recorder.TransformMetrics;
+import com.amosyuen.videorecorder.recorder.VideoThumbnailWriter;
 import com.amosyuen.videorecorder.recorder.VideoTransformerTask;
+import com.amosyuen.videorecorder.recorder.common.ImageSize;
 import com.amosyuen.videorecorder.recorder.params.CameraParams;
+import com.amosyuen.videorecorder.recorder.params.EncoderParamsI;
 import com.amosyuen.videorecorder.recorder.params.RecorderParamsI;
 import com.amosyuen.videorecorder.ui.CameraPreviewView;
 import com.amosyuen.videorecorder.ui.CameraTapAreaView;
@@ -54,7 +66,6 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
@@ -84,6 +95,12 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
     protected static final String LOG_TAG = "FFmpegRecorderActivity";
     protected static final int PREVIEW_ACTIVITY_RESULT = 10000;
     protected static final int FOCUS_WEIGHT = 1000;
+    // Frames being encoded hold buffers while the camera fills the rest
+    protected static final int PREVIEW_BUFFER_COUNT = 4;
+    protected static final String CALIBRATION_PREFERENCES_NAME =
+            BuildConfig.APPLICATION_ID + ".calibration";
+    protected static final String CLIP_MANIFEST_FILE_NAME = "clip-manifest.json";
+    protected static final String SAVE_CHECKPOINT_FILE_NAME = "save-checkpoint.json";
 
     // User params
     FFmpegRecorderActivityParams mParams;
@@ -104,10 +121,11 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
     protected TapToFocusManager mFocusManager;
     protected int mContextOrientation;
     protected int mOpenCameraOrientationDegrees;
-    protected MediaClipsRecorder mMediaClipsRecorder;
+    protected ClipsRecorderI mClipsRecorder;
+    protected BackgroundClipTranscoder mBackgroundClipTranscoder;
     protected CameraControllerI mCameraController;
     protected int mOriginalRequestedOrientation;
-    protected OpenCameraTask mOpenCameraTask;
+    protected boolean mIsOpeningCamera;
     protected SaveVideoTask mSaveVideoTask;
     protected File mVideoOutputFile;
     protected File mVideoThumbnailOutputFile;
@@ -168,7 +186,7 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
         mNextButton.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View v) {
-                if (mMediaClipsRecorder.getRecordedMillis() > 0) {
+                if (mClipsRecorder.getRecordedMillis() > 0) {
                     saveRecording();
                 }
             }
@@ -227,25 +245,61 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
         mProgressView.setVisibility(View.GONE);
         mNextButton.setVisibility(View.INVISIBLE);
 
-        mMediaClipsRecorder = new MediaClipsRecorder(this, getCacheDir());
-        mMediaClipsRecorder.setMediaCLipstRecorderListener(this);
+        if (mParams.getShouldRecordPreviewFrames()) {
+            FFmpegClipsRecorder clipsRecorder =
+                    new FFmpegClipsRecorder(mCameraController, getRecorderParams(), getCacheDir());
+            clipsRecorder.setMaxRecordedMillis(getInteractionParams().getMaxRecordingMillis());
+            clipsRecorder.setMaxRecordedBytes(getInteractionParams().getMaxFileSizeBytes());
+            mClipsRecorder = clipsRecorder;
+            // Deliver preview frames in reused buffers so that recording does not allocate a
+            // buffer for every frame
+            mCameraController.setPreviewBufferCount(PREVIEW_BUFFER_COUNT);
+        } else {
+            MediaClipsRecorder clipsRecorder = new MediaClipsRecorder(this, getCacheDir());
+            clipsRecorder.setStartDelayCalibrator(new StartDelayCalibrator(
+                    getSharedPreferences(CALIBRATION_PREFERENCES_NAME, MODE_PRIVATE)));
+            mClipsRecorder = clipsRecorder;
+        }
+        mClipsRecorder.setMediaClipsRecorderListener(this);
+        // Clips recorded from preview frames are already transformed and only need concatenating.
+        // Clips rotated with metadata are not rotated, so their transcoded segments cannot be used.
+        if (mClipsRecorder instanceof MediaClipsRecorder
+                && !getRecorderParams().getShouldRotateVideoWithMetadata()
+                && Runtime.getRuntime().availableProcessors() > 1) {
+            // Transcode clips while recording so that saving only has to concatenate them
+            if (mBackgroundClipTranscoder != null) {
+                mBackgroundClipTranscoder.release();
+            }
+            mBackgroundClipTranscoder = new BackgroundClipTranscoder(
+                    getRecorderParams(), new SegmentRecorderFactory());
+            mClipsRecorder.setClipsListener(mBackgroundClipTranscoder);
+        }
+        if (mParams.getShouldResumeRecording()) {
+            mClipsRecorder.setClipManifest(
+                    new ClipManifest(new File(getCacheDir(), CLIP_MANIFEST_FILE_NAME)));
+            mClipsRecorder.restoreClips();
+        }
 
         setRequestedOrientation(mOriginalRequestedOrientation);
 
         openCamera(getRecorderParams().getVideoCameraFacing());
     }
 
+    @Override
+    public void setMediaRecorderCamera(
+            MediaRecorder recorder, CameraControllerI.CommandCallback callback) {
+        // Camera must be set first. Runs after the camera is unlocked.
+        mCameraController.setMediaRecorder(recorder, callback);
+    }
+
     @Override
     public void configureMediaRecorder(MediaRecorder recorder) {
         Log.v(LOG_TAG, String.format("Remaining millis %d",
                 getInteractionParams().getMaxRecordingMillis()
-                        - mMediaClipsRecorder.getRecordedMillis()));
-        // Camera must be set first
-        mCameraController.setMediaRecorder(recorder);
-        // Then other config
+                        - mClipsRecorder.getRecordedMillis()));
         Util.setMediaRecorderEncoderParams(recorder, getRecorderParams());
         Util.setMediaRecorderInteractionParams(recorder, getInteractionParams(),
-                (int) mMediaClipsRecorder.getRecordedMillis(), mMediaClipsRecorder.getRecordedBytes());
+                (int) mClipsRecorder.getRecordedMillis(), mClipsRecorder.getRecordedBytes());
         Util.setMediaRecorderCameraParams(recorder, mCameraController);
     }
 
@@ -278,7 +332,7 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
 
     @Override
     public void onBackPressed() {
-        if (mMediaClipsRecorder.getRecordedMillis() > 0) {
+        if (mClipsRecorder.getRecordedMillis() > 0) {
             new AlertDialog.Builder(this)
                     .setCancelable(false)
                     .setTitle(R.string.are_you_sure)
@@ -302,14 +356,37 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
     protected void onPause() {
         super.onPause();
         stopRecording();
-        mMediaClipsRecorder.deleteClips();
+        // Otherwise the clips are restored from the manifest when the activity resumes
+        if (!mParams.getShouldResumeRecording()) {
+            mClipsRecorder.deleteClips();
+        }
+        if (mBackgroundClipTranscoder != null) {
+            mBackgroundClipTranscoder.release();
+            mBackgroundClipTranscoder = null;
+        }
         mCameraController.closeCamera();
         releaseResources();
         mOrientationEventListener.disable();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mCameraController != null) {
+            mCameraController.release();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            FilterCache.getInstance().clear();
+        }
+    }
+
     protected void openCamera(CameraControllerI.Facing facing) {
-        if (mOpenCameraTask != null) {
+        if (mIsOpeningCamera) {
             return;
         }
 
@@ -317,8 +394,14 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
         showProgress(R.string.initializing);
         mCameraPreviewView.setPreviewSize(null);
         mOpenCameraOrientationDegrees = mOrientationEventListener.mOrientationDegrees;
-        mOpenCameraTask = new OpenCameraTask();
-        mOpenCameraTask.execute(Preconditions.checkNotNull(facing));
+        mIsOpeningCamera = true;
+        CameraParams.Builder cameraParamsBuilder =
+                CameraParams.Builder.merge(CameraParams.builder(), getRecorderParams());
+        if (getRecorderParams().getVideoCameraFacing() != Preconditions.checkNotNull(facing)) {
+            cameraParamsBuilder.setVideoCameraFacing(facing);
+        }
+        mCameraController.openCamera(cameraParamsBuilder.build(), mOpenCameraOrientationDegrees,
+                new OpenCameraCallback());
     }
 
     @Override
@@ -336,16 +419,20 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
     public void onCameraOpen() {
         mCameraPreviewView.setPreviewSize(mCameraController.getPreviewSize());
         setCameraPreviewDisplayIfReady();
-        mCameraController.startPreview();
+        mCameraController.startPreview(null);
     }
 
     protected void setCameraPreviewDisplayIfReady() {
         if (mCameraController.isCameraOpen()) {
-            try {
-                mCameraController.setPreviewDisplay(mCameraPreviewView.getHolder());
-            } catch (IOException exception) {
-                Log.e(LOG_TAG, "Error setting camera preview display", exception);
-            }
+            mCameraController.setPreviewDisplay(mCameraPreviewView.getHolder(),
+                    new CameraControllerI.CommandCallback() {
+                        @Override
+                        public void onCommandComplete(boolean result, @Nullable Exception e) {
+                            if (e != null) {
+                                Log.e(LOG_TAG, "Error setting camera preview display", e);
+                            }
+                        }
+                    });
         }
     }
 
@@ -356,24 +443,14 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
 
     @Override
     public void onCameraStartPreview() {
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                hideProgress();
-                mCameraPreviewView.setVisibility(View.VISIBLE);
-            }
-        });
+        hideProgress();
+        mCameraPreviewView.setVisibility(View.VISIBLE);
         Log.d(LOG_TAG, "Ready to record");
     }
 
     @Override
     public void onCameraStopPreview() {
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                mCameraPreviewView.setVisibility(View.INVISIBLE);
-            }
-        });
+        mCameraPreviewView.setVisibility(View.INVISIBLE);
     }
 
     @Override
@@ -423,41 +500,41 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
     }
 
     protected void startRecording() {
-        synchronized (mCameraController) {
-            Log.v(LOG_TAG, "Start recording");
+        Log.v(LOG_TAG, "Start recording");
+        if (mClipsRecorder instanceof MediaClipsRecorder) {
             try {
                 mCameraController.unlock();
             } catch (Throwable e) {
                 Log.e(LOG_TAG, "Error unlocking the camera when starting recording");
             }
-            mMediaClipsRecorder.start();
-            mSwitchCameraButton.setVisibility(View.INVISIBLE);
-            // Lock the orientation the first time we start recording if there is no request orientation
+        }
+        mClipsRecorder.start();
+        mSwitchCameraButton.setVisibility(View.INVISIBLE);
+        // Lock the orientation the first time we start recording if there is no request orientation
 
-            if (mMediaClipsRecorder.getClips().isEmpty() && mOriginalRequestedOrientation == -1) {
-                setRequestedOrientation(getResources().getConfiguration().orientation);
-            }
-            mFocusManager.cancelDelayedAutoFocus();
+        if (mClipsRecorder.getClips().isEmpty() && mOriginalRequestedOrientation == -1) {
+            setRequestedOrientation(getResources().getConfiguration().orientation);
         }
+        mFocusManager.cancelDelayedAutoFocus();
     }
 
     @Override
     public boolean hasCurrentProgress() {
-        return mMediaClipsRecorder.isRecording();
+        return mClipsRecorder.isRecording();
     }
 
     @Override
     public List<Integer> getProgressSections() {
-        List<MediaClipsRecorder.Clip> clips = mMediaClipsRecorder.getClips();
+        List<MediaClipsRecorder.Clip> clips = mClipsRecorder.getClips();
         ArrayList<Integer> progressList = Lists.newArrayListWithCapacity(
-                clips.size() + (mMediaClipsRecorder.isRecording() ? 1 : 0));
+                clips.size() + (mClipsRecorder.isRecording() ? 1 : 0));
         long totalRecordedMillis = 0;
         for (MediaClipsRecorder.Clip clip : clips) {
             totalRecordedMillis += clip.getDurationMillis();
             progressList.add((int) clip.getDurationMillis());
         }
-        if (mMediaClipsRecorder.isRecording()) {
-            progressList.add((int) mMediaClipsRecorder.getCurrentRecordedTimeMillis());
+        if (mClipsRecorder.isRecording()) {
+            progressList.add((int) mClipsRecorder.getCurrentRecordedTimeMillis());
         }
         if (mNextButton.getVisibility() == View.INVISIBLE) {
             long minRecordingMillis = getInteractionParams().getMinRecordingMillis();
@@ -487,7 +564,7 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
     }
 
     protected void stopRecordingAndPrepareForNext() {
-        if (!mMediaClipsRecorder.isRecording()) {
+        if (!mClipsRecorder.isRecording()) {
             return;
         }
         stopRecording();
@@ -495,20 +572,20 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
     }
 
     protected void stopRecording() {
-        synchronized (mCameraController) {
-            if (mParams == null || !mMediaClipsRecorder.isRecording()) {
-                return;
-            }
-            Log.v(LOG_TAG, "Stop recording");
-            mMediaClipsRecorder.stop();
+        if (mParams == null || !mClipsRecorder.isRecording()) {
+            return;
+        }
+        Log.v(LOG_TAG, "Stop recording");
+        mClipsRecorder.stop();
+        if (mClipsRecorder instanceof MediaClipsRecorder) {
             try {
                 mCameraController.lock();
             } catch (Throwable e) {
                 Log.e(LOG_TAG, "Error locking the camera when stopping recording");
             }
-            if (mSaveVideoTask == null && mCameraController.getCameraCount() > 1) {
-                mSwitchCameraButton.setVisibility(View.VISIBLE);
-            }
+        }
+        if (mSaveVideoTask == null && mCameraController.getCameraCount() > 1) {
+            mSwitchCameraButton.setVisibility(View.VISIBLE);
         }
     }
 
@@ -563,14 +640,19 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
         }
     }
 
-    protected void updateCameraFlash(CameraControllerI.FlashMode flashMode) {
-        CameraControllerI cameraManager = mCameraController;
-        if (cameraManager.setFlashMode(flashMode)) {
-            @DrawableRes int resId = flashMode == CameraControllerI.FlashMode.ON
-                    ? R.drawable.ic_flash_on_white_36dp
-                    : R.drawable.ic_flash_off_white_36dp;
-            mFlashButton.setImageDrawable(ContextCompat.getDrawable(this, resId));
-        }
+    protected void updateCameraFlash(final CameraControllerI.FlashMode flashMode) {
+        mCameraController.setFlashMode(flashMode, new CameraControllerI.CommandCallback() {
+            @Override
+            public void onCommandComplete(boolean result, @Nullable Exception error) {
+                if (result) {
+                    @DrawableRes int resId = flashMode == CameraControllerI.FlashMode.ON
+                            ? R.drawable.ic_flash_on_white_36dp
+                            : R.drawable.ic_flash_off_white_36dp;
+                    mFlashButton.setImageDrawable(
+                            ContextCompat.getDrawable(FFmpegRecorderActivity.this, resId));
+                }
+            }
+        });
     }
 
     @Override
@@ -617,7 +699,10 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
             }
         });
         releaseResources();
-        mMediaClipsRecorder.deleteClips();
+        mClipsRecorder.deleteClips();
+        if (mParams.getShouldResumeRecording()) {
+            createSaveCheckpoint().clear();
+        }
         if (mVideoOutputFile != null && mVideoOutputFile.exists()) {
             mVideoOutputFile.delete();
             mVideoOutputFile = null;
@@ -640,6 +725,56 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
         }
     }
 
+    /**
+     * Returns the recorder params to save the video with. If a target save time is set, the video
+     * size and preset are chosen to save within it. Called on the saving thread, since encode
+     * throughput may have to be measured first.
+     */
+    protected RecorderParamsI getSaveRecorderParams() {
+        List<MediaClipsRecorder.Clip> clips = mClipsRecorder.getClips();
+        if (!mParams.getTargetSaveMillis().isPresent() || clips.isEmpty()) {
+            return getRecorderParams();
+        }
+        try {
+            ImageSize sourceSize = ClipMetadataCache.getInstance()
+                    .get(clips.get(0).getFile()).getImageSize();
+            EncodeThroughputCalibrator calibrator = new EncodeThroughputCalibrator(
+                    getSharedPreferences(CALIBRATION_PREFERENCES_NAME, MODE_PRIVATE));
+            return calibrator.chooseParams(mParams.getRecorderParams(), sourceSize,
+                    mClipsRecorder.getRecordedMillis(), mParams.getTargetSaveMillis().get(),
+                    getCacheDir());
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Error choosing params for target save time", e);
+            return getRecorderParams();
+        }
+    }
+
+    /**
+     * Returns the listener to notify as the video output file is written, or null. Override to
+     * upload the video while it is being saved, which requires an output format that is written
+     * progressively such as {@link EncoderParamsI.OutputFormat#MP4_FRAGMENTED}. Called on the
+     * saving thread.
+     */
+    protected FFmpegFrameRecorder.FragmentListener getOutputFragmentListener() {
+        return null;
+    }
+
+    protected SaveCheckpoint createSaveCheckpoint() {
+        return new SaveCheckpoint(new File(getCacheDir(), SAVE_CHECKPOINT_FILE_NAME));
+    }
+
+    /**
+     * Called on the saving thread with the metrics of saving the video. Override to forward the
+     * metrics to telemetry.
+     */
+    protected void onSaveMetrics(
+            List<TransformMetrics> clipMetrics, TransformMetrics totalMetrics) {
+        for (int i = 0; i < clipMetrics.size(); i++) {
+            Log.v(LOG_TAG, String.format("Clip %d save metrics %s", i, clipMetrics.get(i)));
+        }
+        Log.d(LOG_TAG, String.format("Save metrics %s", totalMetrics));
+    }
+
     protected void startPreviewActivity() {
         Log.i(LOG_TAG, "Saved recording. Starting preview");
         Intent previewIntent = new Intent(this, FFmpegPreviewActivity.class);
@@ -669,7 +804,7 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
         if (mParams == null) {
             return;
         }
-        mMediaClipsRecorder.release();
+        mClipsRecorder.release();
         // Try to lock the camera if we can so that we can close it
         try {
             mCameraController.lock();
@@ -677,6 +812,30 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
         mCameraController.closeCamera();
     }
 
+    protected class SegmentRecorderFactory implements VideoTransformerTask.SegmentRecorderFactory {
+        protected final RecorderParamsI mRecorderParams;
+
+        public SegmentRecorderFactory() {
+            this(getRecorderParams());
+        }
+
+        public SegmentRecorderFactory(RecorderParamsI recorderParams) {
+            mRecorderParams = recorderParams;
+        }
+
+        @Override
+        public File createSegmentFile() throws IOException {
+            return File.createTempFile("segment-",
+                    "." + mRecorderParams.getOutputFormat().getFileExtension(),
+                    getCacheDir());
+        }
+
+        @Override
+        public FFmpegFrameRecorder createSegmentRecorder(File file) {
+            return Util.createFrameRecorder(file, mRecorderParams);
+        }
+    }
+
     protected class ActivityOrientationEventListener extends OrientationEventListener {
         protected int mOrientationDegrees;
 
@@ -703,31 +862,18 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
         }
     }
 
-    protected class OpenCameraTask extends AsyncTask<CameraControllerI.Facing, Void, Exception> {
+    protected class OpenCameraCallback implements CameraControllerI.CommandCallback {
 
         @Override
-        protected Exception doInBackground(CameraControllerI.Facing[] params) {
-            try {
-                CameraControllerI.Facing facing = Preconditions.checkNotNull(params[0]);
-                CameraParams.Builder cameraParamsBuilder =
-                        CameraParams.Builder.merge(CameraParams.builder(), getRecorderParams());
-                if (getRecorderParams().getVideoCameraFacing() != facing) {
-                    cameraParamsBuilder.setVideoCameraFacing(facing);
-                }
-                mCameraController
-                        .openCamera(cameraParamsBuilder.build(), mOpenCameraOrientationDegrees);
-            } catch (Exception e) {
-                return e;
-            }
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Exception e) {
-            mMediaClipsRecorder.setFacing(mCameraController.getCameraFacing());
-            mMediaClipsRecorder.setViewOrientationDegrees(
+        public void onCommandComplete(boolean result, @Nullable Exception e) {
+            mClipsRecorder.setFacing(mCameraController.getCameraFacing());
+            mClipsRecorder.setViewOrientationDegrees(
                     mCameraController.getPreviewDisplayOrientationDegrees());
-            mOpenCameraTask = null;
+            if (mClipsRecorder instanceof CameraControllerI.PreviewCallback) {
+                mCameraController.setPreviewCallback(
+                        (CameraControllerI.PreviewCallback) mClipsRecorder);
+            }
+            mIsOpeningCamera = false;
             if (e != null) {
                 Log.e(LOG_TAG, "Error opening camera", e);
                 onError(e);
@@ -735,10 +881,16 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
         }
     }
 
-    protected class SaveVideoTask extends AsyncTask<Object, Object, Exception>
-            implements VideoTransformerTask.TaskListener {
+    /**
+     * Saves the video. Progress of the transformer task is throttled and delivered on the main
+     * thread by a {@link ThrottledProgressListener}, while progress published by this task only
+     * switches the progress bar to indeterminate.
+     */
+    protected class SaveVideoTask extends AsyncTask<Object, Void, Exception>
+            implements VideoTransformerTask.TaskListener, VideoTransformerTask.MetricsListener {
 
         private VideoTransformerTask mVideoTransformerTask;
+        private int mDisplayedPercent = -1;
 
         @Override
         protected void onPreExecute() {
@@ -746,35 +898,69 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
 
             releaseResources();
 
-            Log.d(LOG_TAG, "VideoRecorder length " + mMediaClipsRecorder.getRecordedMillis());
+            Log.d(LOG_TAG, "VideoRecorder length " + mClipsRecorder.getRecordedMillis());
         }
 
         @Override
         protected Exception doInBackground(Object... params) {
+            try {
+                // The last clip may still be finishing after recording was stopped
+                mClipsRecorder.awaitClips();
+            } catch (InterruptedException e) {
+                return e;
+            }
+
             mVideoOutputFile = new File(Uri.parse(mParams.getVideoOutputFileUri()).getPath());
 
             mVideoThumbnailOutputFile = mParams.getVideoThumbnailOutputFileUri().isPresent()
                     ? new File(Uri.parse(mParams.getVideoThumbnailOutputFileUri().get()).getPath())
                     : null;
 
+            RecorderParamsI recorderParams = getSaveRecorderParams();
             FFmpegFrameRecorder recorder =
-                    Util.createFrameRecorder(mVideoOutputFile, getRecorderParams());
+                    Util.createFrameRecorder(mVideoOutputFile, recorderParams);
+            recorder.setFragmentListener(getOutputFragmentListener());
             mVideoTransformerTask = new VideoTransformerTask(
-                    recorder, getRecorderParams(), mMediaClipsRecorder.getClips());
-            mVideoTransformerTask.setProgressListener(this);
+                    recorder, recorderParams, mClipsRecorder.getClips());
+            mVideoTransformerTask.setProgressListener(new ThrottledProgressListener(this));
+            mVideoTransformerTask.setMetricsListener(this);
+            mVideoTransformerTask.setDecoderThreadCount(
+                    recorderParams.getCodecThreadCount().or(0));
+            mVideoTransformerTask.setDecoderThreadType(recorderParams.getCodecThreadType());
+            // Single take recordings are moved or remuxed instead of re-encoded when possible
+            mVideoTransformerTask.setSingleClipShortcutEnabled(true);
+            VideoThumbnailWriter thumbnailWriter = null;
+            if (mVideoThumbnailOutputFile != null) {
+                thumbnailWriter = new VideoThumbnailWriter(mVideoThumbnailOutputFile);
+                if (mParams.getVideoThumbnailMaxSize().isPresent()) {
+                    thumbnailWriter.setMaxSize(mParams.getVideoThumbnailMaxSize().get());
+                }
+                mVideoTransformerTask.setThumbnailWriter(thumbnailWriter);
+            }
+            if (Runtime.getRuntime().availableProcessors() > 1) {
+                mVideoTransformerTask.setSegmentRecorderFactory(
+                        new SegmentRecorderFactory(recorderParams));
+                mVideoTransformerTask.setSegmentSource(mBackgroundClipTranscoder);
+            }
+            SaveCheckpoint checkpoint = null;
+            if (mParams.getShouldResumeRecording()) {
+                // Transcode each clip into a segment that is kept until the save succeeds
+                checkpoint = createSaveCheckpoint();
+                mVideoTransformerTask.setSegmentRecorderFactory(
+                        new SegmentRecorderFactory(recorderParams));
+                mVideoTransformerTask.setCheckpoint(checkpoint);
+            }
 
             try {
                 mVideoTransformerTask.run();
-                mMediaClipsRecorder.deleteClips();
+                mClipsRecorder.deleteClips();
+                if (checkpoint != null) {
+                    checkpoint.clear();
+                }
                 publishProgress();
-                // Create video thumbnail
-                if (mVideoThumbnailOutputFile != null) {
-                    MediaMetadataRetriever metadataRetriever = new MediaMetadataRetriever();
-                    metadataRetriever.setDataSource(mVideoOutputFile.getAbsolutePath());
-                    Bitmap frame = metadataRetriever.getFrameAtTime(
-                            0, MediaMetadataRetriever.OPTION_NEXT_SYNC);
-                    FileOutputStream outputStream = new FileOutputStream(mVideoThumbnailOutputFile);
-                    frame.compress(CompressFormat.JPEG, 100, outputStream);
+                // The thumbnail is written in the background from the first encoded frame
+                if (thumbnailWriter != null) {
+                    thumbnailWriter.get();
                 }
                 return null;
             } catch (Throwable e) {
@@ -784,48 +970,52 @@ public class FFmpegRecorderActivity extends AbstractDynamicStyledActivity implem
 
         @Override
         public void onStart() {
-            publishProgress(0f);
+            setSaveProgress(0f);
         }
 
         @Override
         public void onProgress(int progress, int total) {
-            publishProgress(progress, total);
+            setSaveProgress(total > 0 ? (float) progress / total : 0f);
         }
 
         @Override
         public void onDone() {
-            publishProgress(1f);
+            setSaveProgress(1f);
         }
 
         @Override
-        protected void onProgressUpdate(Object... values) {
+        public void onMetrics(
+                List<TransformMetrics> clipMetrics, TransformMetrics totalMetrics) {
+            onSaveMetrics(clipMetrics, totalMetrics);
+        }
+
+        @Override
+        protected void onProgressUpdate(Void... values) {
             super.onProgressUpdate(values);
 
-            if (values.length == 0) {
-                if (!mProgressBar.isIndeterminate()) {
-                    mProgressBar.setIndeterminate(true);
-                    mProgressBar.startAnimation();
-                    mProgressText.setText(R.string.saving_video);
-                }
-            } else {
-                if (mProgressBar.isIndeterminate()) {
-                    mProgressBar.setIndeterminate(false);
-                }
-                float progress = getFloatValue(values[0]);
-                if (values.length > 1) {
-                    progress /= getFloatValue(values[1]);
-                }
-                mProgressBar.setProgress(progress * mProgressBar.getMaxProgress());
-                mProgressText.setText(
-                        String.format(getString(R.string.encoding_percent), (int)(100 * progress)));
+            if (!mProgressBar.isIndeterminate()) {
+                mProgressBar.setIndeterminate(true);
+                mProgressBar.startAnimation();
+                mProgressText.setText(R.string.saving_video);
             }
         }
 
-        protected float getFloatValue(Object o) {
-            if (o instanceof Number) {
-                return ((Number) o).floatValue();
+        // Called on the main thread
+        protected void setSaveProgress(float progress) {
+            if (isCancelled()) {
+                return;
+            }
+            if (mProgressBar.isIndeterminate()) {
+                mProgressBar.setIndeterminate(false);
+            }
+            mProgressBar.setProgress(progress * mProgressBar.getMaxProgress());
+            // Only format the text when the displayed percent changes
+            int percent = (int) (100 * progress);
+            if (percent != mDisplayedPercent) {
+                mDisplayedPercent = percent;
+                mProgressText.setText(
+                        String.format(getString(R.string.encoding_percent), percent));
             }
-            throw new InvalidParameterException(String.format("Invalid progress value %s", o));
         }
 
         @Override
@@ -3,6 +3,7 @@ package com.amosyuen.videorecorder.activity.manager;
 import android.graphics.Matrix;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import android.view.View;
 
@@ -169,13 +170,17 @@ public class TapToFocusManager implements
                     Math.round(focusRectF.left), Math.round(focusRectF.top),
                     Math.round(focusRectF.right), Math.round(focusRectF.bottom));
 
-            try {
-                mCameraController.focusOnRect(focusRect, mFocusWeight);
-                autoFocusAfterDelay();
-                Log.v(LOG_TAG, String.format("Camera focus on %s", focusRect));
-            } catch (Exception e) {
-                Log.w(LOG_TAG, "Unable to focus", e);
-            }
+            mCameraController.focusOnRect(focusRect, mFocusWeight,
+                    new CameraControllerI.CommandCallback() {
+                        @Override
+                        public void onCommandComplete(boolean result, @Nullable Exception error) {
+                            if (error != null) {
+                                Log.w(LOG_TAG, "Unable to focus", error);
+                            }
+                        }
+                    });
+            autoFocusAfterDelay();
+            Log.v(LOG_TAG, String.format("Camera focus on %s", focusRect));
         }
     }
 
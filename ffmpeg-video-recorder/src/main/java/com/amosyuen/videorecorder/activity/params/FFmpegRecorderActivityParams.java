@@ -4,6 +4,7 @@ import android.content.Context;
 import android.net.Uri;
 
 import com.amosyuen.videorecorder.activity.FFmpegRecorderActivity;
+import com.amosyuen.videorecorder.recorder.common.ImageSize;
 import com.amosyuen.videorecorder.recorder.params.RecorderParams;
 import com.google.auto.value.AutoValue;
 import com.google.common.base.Optional;
@@ -29,6 +30,11 @@ public abstract class FFmpegRecorderActivityParams implements Serializable {
      */
     public abstract Optional<String> getVideoThumbnailOutputFileUri();
 
+    /**
+     * Get the max size of the video thumbnail.
+     */
+    public abstract Optional<ImageSize> getVideoThumbnailMaxSize();
+
     /**
      * Get the interactions params.
      */
@@ -44,10 +50,29 @@ public abstract class FFmpegRecorderActivityParams implements Serializable {
      */
     public abstract RecorderActivityThemeParams getThemeParams();
 
+    /**
+     * Get whether clips are recorded by encoding camera preview frames directly with FFmpeg instead
+     * of with the media recorder.
+     */
+    public abstract boolean getShouldRecordPreviewFrames();
+
+    /**
+     * Get whether recorded clips and partially saved videos are kept on disk when the activity is
+     * paused or the process dies, and resumed the next time the activity is started.
+     */
+    public abstract boolean getShouldResumeRecording();
+
+    /**
+     * Get the target time in milliseconds to save the video within.
+     */
+    public abstract Optional<Long> getTargetSaveMillis();
+
     public abstract Builder toBuilder();
 
     public static Builder builder() {
-        return new AutoValue_FFmpegRecorderActivityParams.Builder();
+        return new AutoValue_FFmpegRecorderActivityParams.Builder()
+                .setShouldRecordPreviewFrames(false)
+                .setShouldResumeRecording(false);
     }
 
     /**
@@ -107,6 +132,19 @@ public abstract class FFmpegRecorderActivityParams implements Serializable {
          */
         public abstract Builder setVideoThumbnailOutputFileUri(Optional<String> val);
 
+        /**
+         * Set the max size of the video thumbnail. The first frame of the video is scaled down to
+         * fit it keeping its aspect ratio. If not set, the thumbnail is the size of the video.
+         */
+        public Builder setVideoThumbnailMaxSize(ImageSize val) {
+            return setVideoThumbnailMaxSize(Optional.of(val));
+        }
+        /**
+         * Set the max size of the video thumbnail. The first frame of the video is scaled down to
+         * fit it keeping its aspect ratio. If not set, the thumbnail is the size of the video.
+         */
+        public abstract Builder setVideoThumbnailMaxSize(Optional<ImageSize> val);
+
         /**
          * Get a builder for the interaction params.
          */
@@ -134,6 +172,36 @@ public abstract class FFmpegRecorderActivityParams implements Serializable {
          */
         public abstract Builder setThemeParams(RecorderActivityThemeParams val);
 
+        /**
+         * Set whether clips are recorded by encoding camera preview frames directly with FFmpeg
+         * instead of with the media recorder. Clips are then already transformed to the output
+         * size, so saving only needs to concatenate them. Defaults to false.
+         */
+        public abstract Builder setShouldRecordPreviewFrames(boolean val);
+
+        /**
+         * Set whether recorded clips and partially saved videos are kept on disk when the activity
+         * is paused or the process dies, and resumed the next time the activity is started. Clips
+         * are listed in a manifest in the cache dir, and each clip that a save transcodes is
+         * checkpointed so that the save does not transcode it again. Defaults to false.
+         */
+        public abstract Builder setShouldResumeRecording(boolean val);
+
+        /**
+         * Set the target time in milliseconds to save the video within. The video size and encoder
+         * preset are then lowered from the recorder params as needed, based on the encode
+         * throughput measured on the device. If not set, the recorder params are used as is.
+         */
+        public Builder setTargetSaveMillis(long val) {
+            return setTargetSaveMillis(Optional.of(val));
+        }
+        /**
+         * Set the target time in milliseconds to save the video within. The video size and encoder
+         * preset are then lowered from the recorder params as needed, based on the encode
+         * throughput measured on the device. If not set, the recorder params are used as is.
+         */
+        public abstract Builder setTargetSaveMillis(Optional<Long> val);
+
         public abstract FFmpegRecorderActivityParams build();
     }
 }
@@ -4,6 +4,9 @@ import android.graphics.Rect;
 import android.hardware.Camera;
 import android.hardware.Camera.Parameters;
 import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import android.view.SurfaceHolder;
@@ -19,13 +22,16 @@ import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 /**
- * Camera manager for camera 1 API.
+ * Camera manager for camera 1 API. The camera is opened and used only on a camera thread owned by
+ * the controller, so camera callbacks are also delivered on that thread. Commands are run on the
+ * camera thread in the order they are called, and listeners and command callbacks are called on the
+ * thread that created the controller.
  */
 public class CameraController implements CameraControllerI {
 
@@ -54,14 +60,50 @@ public class CameraController implements CameraControllerI {
     protected static final ImmutableSetMultimap<String, FlashMode> FLASH_MODE_INVERSE_MAP =
             FLASH_MODE_MAP.inverse();
 
+    protected final HandlerThread mCameraThread;
+    protected final Handler mCameraHandler;
+    protected final Handler mCallbackHandler;
+
+    // Only accessed on the camera thread
     protected Camera.CameraInfo mCameraInfo = new Camera.CameraInfo();
-    @Nullable protected Camera mCamera;
-    protected Camera.Parameters mParameters;
-    protected int mPreviewDisplayOrientationDegrees;
-    protected CameraPreviewCallback mCameraPreviewCallback = new CameraPreviewCallback();
     protected boolean mIsPreviewing;
+    // Written on the camera thread and read from any thread
+    @Nullable protected volatile Camera mCamera;
+    protected volatile Camera.Parameters mParameters;
+    protected volatile Facing mCameraFacing;
+    protected volatile int mCameraOrientationDegrees;
+    protected volatile int mPreviewDisplayOrientationDegrees;
+    protected CameraPreviewCallback mCameraPreviewCallback = new CameraPreviewCallback();
+    protected volatile int mPreviewBufferCount;
+    @Nullable protected volatile PreviewBufferPool mPreviewBufferPool;
+    // Only accessed on the callback thread
     protected List<CameraListener> mListeners = new ArrayList<>();
 
+    /**
+     * Creates a controller that calls listeners and command callbacks on the looper of the current
+     * thread, or on the main thread if the current thread has no looper. It must be
+     * {@link #release released} when done.
+     */
+    public CameraController() {
+        mCameraThread = new HandlerThread(LOG_TAG);
+        mCameraThread.start();
+        mCameraHandler = new Handler(mCameraThread.getLooper());
+        Looper looper = Looper.myLooper();
+        mCallbackHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
+    }
+
+    @Override
+    public void release() {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                doCloseCamera();
+                // Commands that were queued before this one have already run
+                mCameraThread.quit();
+            }
+        });
+    }
+
     @Override
     public void addListener(CameraListener listener) {
         mListeners.add(listener);
@@ -73,7 +115,7 @@ public class CameraController implements CameraControllerI {
     }
 
     @Override
-    public synchronized boolean isCameraOpen() {
+    public boolean isCameraOpen() {
         return mCamera != null;
     }
 
@@ -83,14 +125,25 @@ public class CameraController implements CameraControllerI {
     }
 
     @Nullable
-    public synchronized Camera getCamera() {
+    public Camera getCamera() {
         return mCamera;
     }
 
     @Override
-    public synchronized void openCamera(CameraParamsI params, int surfaceRotationDegrees) {
+    public void openCamera(final CameraParamsI params, final int surfaceRotationDegrees,
+            @Nullable CommandCallback callback) {
+        runCommand(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                doOpenCamera(params, surfaceRotationDegrees);
+                return true;
+            }
+        }, callback);
+    }
+
+    protected void doOpenCamera(CameraParamsI params, int surfaceRotationDegrees) {
         if (mCamera != null) {
-            closeCamera();
+            doCloseCamera();
         }
 
         Log.d(LOG_TAG, String.format(
@@ -100,7 +153,7 @@ public class CameraController implements CameraControllerI {
         Camera camera;
         if (mCamera == null || getCameraFacing() != cameraFacing) {
             if (mCamera != null) {
-                closeCamera();
+                doCloseCamera();
             }
             int camera1Facing = FACING_MAP.get(cameraFacing);
             int cameraId = -1;
@@ -194,16 +247,19 @@ public class CameraController implements CameraControllerI {
 
         camera.setParameters(parameters);
 
+        mCameraFacing = FACING_MAP.inverse().get(mCameraInfo.facing);
+        mCameraOrientationDegrees = mCameraInfo.orientation;
         mCamera = camera;
         mParameters = parameters;
-        for (CameraListener listener : mListeners) {
-            listener.onFlashModeChanged(flashMode);
-        }
+        notifyFlashModeChanged(flashMode);
 
         Log.d(LOG_TAG, "Opened camera");
-        for (CameraListener listener : mListeners) {
-            listener.onCameraOpen();
-        }
+        dispatchToListeners(new ListenerDispatch() {
+            @Override
+            public void dispatch(CameraListener listener) {
+                listener.onCameraOpen();
+            }
+        });
     }
 
     protected static ImageSize getBestImageSize(
@@ -218,113 +274,207 @@ public class CameraController implements CameraControllerI {
     }
 
     @Override
-    public synchronized void closeCamera() {
+    public void closeCamera() {
+        postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                doCloseCamera();
+            }
+        });
+    }
+
+    protected void doCloseCamera() {
         if (isCameraOpen()) {
-            stopPreview();
+            doStopPreview();
             mCamera.release();
             mCamera = null;
             mParameters = null;
 
-            for (CameraListener listener : mListeners) {
-                listener.onCameraClose();
-            }
+            dispatchToListeners(new ListenerDispatch() {
+                @Override
+                public void dispatch(CameraListener listener) {
+                    listener.onCameraClose();
+                }
+            });
         }
     }
 
     @Override
-    public synchronized void lock() {
-        if (!isCameraOpen()) {
-            return;
-        }
-        mCamera.lock();
+    public void lock() {
+        postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                if (isCameraOpen()) {
+                    try {
+                        mCamera.lock();
+                    } catch (RuntimeException e) {
+                        Log.e(LOG_TAG, "Error locking camera", e);
+                    }
+                }
+            }
+        });
     }
 
     @Override
-    public synchronized void unlock() {
-        if (!isCameraOpen()) {
-            return;
-        }
-        mCamera.unlock();
+    public void unlock() {
+        postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                if (isCameraOpen()) {
+                    try {
+                        mCamera.unlock();
+                    } catch (RuntimeException e) {
+                        Log.e(LOG_TAG, "Error unlocking camera", e);
+                    }
+                }
+            }
+        });
     }
 
     @Override
     public ImageSize getPreviewSize() {
-        if (mParameters == null) {
+        Camera.Parameters parameters = mParameters;
+        if (parameters == null) {
             return null;
         }
-        Camera.Size size = mParameters.getPreviewSize();
+        Camera.Size size = parameters.getPreviewSize();
         return new ImageSize(size.width, size.height);
     }
 
     @Override
     public ImageSize getPictureSize() {
-        if (mParameters == null) {
+        Camera.Parameters parameters = mParameters;
+        if (parameters == null) {
             return null;
         }
-        Camera.Size size = mParameters.getPictureSize();
+        Camera.Size size = parameters.getPictureSize();
         return new ImageSize(size.width, size.height);
     }
 
     @Override
-    public synchronized void setMediaRecorder(MediaRecorder recorder) {
-        if (!isCameraOpen()) {
-            return;
-        }
-        recorder.setCamera(mCamera);
+    public void setMediaRecorder(
+            final MediaRecorder recorder, @Nullable CommandCallback callback) {
+        runCommand(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                if (!isCameraOpen()) {
+                    return false;
+                }
+                recorder.setCamera(mCamera);
+                return true;
+            }
+        }, callback);
     }
 
     @Override
-    public synchronized void setPreviewCallback(@Nullable final PreviewCallback callback) {
+    public void setPreviewCallback(@Nullable final PreviewCallback callback) {
         if (!isCameraOpen()) {
             return;
         }
         mCameraPreviewCallback.setPreviewCallback(callback);
-        
+
     }
 
-    public synchronized void setPreviewDisplay(@Nullable SurfaceHolder holder) throws IOException {
-        if (!isCameraOpen()) {
-            return;
-        }
-        mCamera.setPreviewDisplay(holder);
-       
+    @Override
+    public void setPreviewBufferCount(int count) {
+        Preconditions.checkArgument(count >= 0);
+        mPreviewBufferCount = count;
+    }
+
+    @Override
+    @Nullable
+    public PreviewBufferPool.Metrics getPreviewBufferMetrics() {
+        PreviewBufferPool bufferPool = mPreviewBufferPool;
+        return bufferPool == null ? null : bufferPool.getMetrics();
+    }
+
+    @Override
+    public void setPreviewDisplay(
+            @Nullable final SurfaceHolder holder, @Nullable CommandCallback callback) {
+        runCommand(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                if (!isCameraOpen()) {
+                    return false;
+                }
+                mCamera.setPreviewDisplay(holder);
+                return true;
+            }
+        }, callback);
     }
 
     @Override
-    public synchronized void startPreview() {
+    public void startPreview(@Nullable CommandCallback callback) {
+        runCommand(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return doStartPreview();
+            }
+        }, callback);
+    }
+
+    protected boolean doStartPreview() {
         if (!isCameraOpen() || mIsPreviewing) {
-            return;
+            return false;
         }
         mCamera.startPreview();
-        mCamera.setPreviewCallback(mCameraPreviewCallback);
+        if (mPreviewBufferCount > 0) {
+            PreviewBufferPool bufferPool = new PreviewBufferPool(mCamera, getPreviewSize(),
+                    mParameters.getPreviewFormat(), mPreviewBufferCount);
+            bufferPool.start();
+            mPreviewBufferPool = bufferPool;
+            mCamera.setPreviewCallbackWithBuffer(mCameraPreviewCallback);
+        } else {
+            mPreviewBufferPool = null;
+            mCamera.setPreviewCallback(mCameraPreviewCallback);
+        }
         mCameraPreviewCallback.setFirstCall(true);
         mIsPreviewing = true;
 
         // Start with auto focus. Must be called after starting preview
-        autoFocus();
+        doAutoFocus();
+        return true;
     }
 
     @Override
-    public synchronized void stopPreview() {
+    public void stopPreview() {
+        postToCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                doStopPreview();
+            }
+        });
+    }
+
+    protected void doStopPreview() {
         if (!isCameraOpen() || !mIsPreviewing) {
             return;
         }
         mCamera.stopPreview();
-        mCamera.setPreviewCallback(null);
-        mIsPreviewing = false;
-        for (CameraListener listener : mListeners) {
-            listener.onCameraStopPreview();
+        if (mPreviewBufferPool != null) {
+            // A buffer still in the preview callback is dropped when it is released
+            mPreviewBufferPool.close();
+            mCamera.setPreviewCallbackWithBuffer(null);
+        } else {
+            mCamera.setPreviewCallback(null);
         }
+        mIsPreviewing = false;
+        dispatchToListeners(new ListenerDispatch() {
+            @Override
+            public void dispatch(CameraListener listener) {
+                listener.onCameraStopPreview();
+            }
+        });
     }
 
     @Override
     public Facing getCameraFacing() {
-        return mParameters == null ? null : FACING_MAP.inverse().get(mCameraInfo.facing);
+        return mParameters == null ? null : mCameraFacing;
     }
 
     @Override
     public int getCameraOrientationDegrees() {
-        return mParameters == null ? -1 : mCameraInfo.orientation;
+        return mParameters == null ? -1 : mCameraOrientationDegrees;
     }
 
     @Override
@@ -335,36 +485,48 @@ public class CameraController implements CameraControllerI {
     @Override
     @Nullable
     public int[] getFrameRateRange() {
-        if (mParameters == null) {
+        Camera.Parameters parameters = mParameters;
+        if (parameters == null) {
             return null;
         }
         int[] frameRateRange = new int[2];
-        mParameters.getPreviewFpsRange(frameRateRange);
+        parameters.getPreviewFpsRange(frameRateRange);
         return frameRateRange;
     }
 
     @Override
     public FlashMode getFlashMode() {
-        if (mParameters == null) {
+        Camera.Parameters parameters = mParameters;
+        if (parameters == null) {
             return null;
         }
         ImmutableSet<FlashMode> values =
-                FLASH_MODE_INVERSE_MAP.get(mParameters.getFlashMode());
+                FLASH_MODE_INVERSE_MAP.get(parameters.getFlashMode());
         return values.isEmpty() ? null : values.iterator().next();
     }
 
     @Override
     public boolean supportsFlashMode(FlashMode flashMode) {
-        return mParameters != null
-                && mParameters.getSupportedFlashModes() != null
+        Camera.Parameters parameters = mParameters;
+        return parameters != null
+                && parameters.getSupportedFlashModes() != null
                 && !Sets.intersection(
-                        ImmutableSet.copyOf(mParameters.getSupportedFlashModes()),
+                        ImmutableSet.copyOf(parameters.getSupportedFlashModes()),
                         FLASH_MODE_MAP.get(flashMode))
                 .isEmpty();
     }
 
     @Override
-    public synchronized boolean setFlashMode(FlashMode flashMode) {
+    public void setFlashMode(final FlashMode flashMode, @Nullable CommandCallback callback) {
+        runCommand(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return doSetFlashMode(flashMode);
+            }
+        }, callback);
+    }
+
+    protected boolean doSetFlashMode(FlashMode flashMode) {
         if (isCameraOpen()) {
             Camera.Parameters parameters = mCamera.getParameters();
             boolean setFlashMode = setFlashModeParams(flashMode, parameters);
@@ -373,15 +535,14 @@ public class CameraController implements CameraControllerI {
                 mParameters = parameters;
             }
             if (setFlashMode) {
-                for (CameraListener listener : mListeners) {
-                    listener.onFlashModeChanged(flashMode);
-                }
+                notifyFlashModeChanged(flashMode);
             }
+            return setFlashMode;
         }
         return false;
     }
 
-    protected synchronized boolean setFlashModeParams(FlashMode flashMode, Camera.Parameters params) {
+    protected boolean setFlashModeParams(FlashMode flashMode, Camera.Parameters params) {
         if (params.getSupportedFlashModes() != null) {
             Set<String> supportedFlashModes = ImmutableSet.copyOf(params.getSupportedFlashModes());
             for (String cameraFlashMode : FLASH_MODE_MAP.get(flashMode)) {
@@ -397,13 +558,33 @@ public class CameraController implements CameraControllerI {
         return false;
     }
 
+    protected void notifyFlashModeChanged(final FlashMode flashMode) {
+        dispatchToListeners(new ListenerDispatch() {
+            @Override
+            public void dispatch(CameraListener listener) {
+                listener.onFlashModeChanged(flashMode);
+            }
+        });
+    }
+
     @Override
     public boolean canFocusOnRect() {
-        return mParameters != null && mParameters.getMaxNumFocusAreas() > 0;
+        Camera.Parameters parameters = mParameters;
+        return parameters != null && parameters.getMaxNumFocusAreas() > 0;
     }
 
     @Override
-    public synchronized boolean focusOnRect(Rect rect, int focusWeight) {
+    public void focusOnRect(
+            final Rect rect, final int focusWeight, @Nullable CommandCallback callback) {
+        runCommand(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return doFocusOnRect(rect, focusWeight);
+            }
+        }, callback);
+    }
+
+    protected boolean doFocusOnRect(final Rect rect, int focusWeight) {
         if (isCameraOpen()) {
             Log.v(LOG_TAG, String.format("Focus on %s with weight %d", rect, focusWeight));
             Camera.Parameters parameters = mCamera.getParameters();
@@ -421,29 +602,42 @@ public class CameraController implements CameraControllerI {
             mCamera.autoFocus(new Camera.AutoFocusCallback() {
                 @Override
                 public void onAutoFocus(boolean success, Camera camera) {
-                    mCamera.cancelAutoFocus();
+                    camera.cancelAutoFocus();
                     Log.v(LOG_TAG, "Finished focusing");
                 }
             });
 
-            for (CameraListener listener : mListeners) {
-                listener.onCameraFocusOnRect(rect);
-            }
+            dispatchToListeners(new ListenerDispatch() {
+                @Override
+                public void dispatch(CameraListener listener) {
+                    listener.onCameraFocusOnRect(rect);
+                }
+            });
         }
         return true;
     }
 
     @Override
     public boolean canAutoFocus() {
-        return mParameters != null
+        Camera.Parameters parameters = mParameters;
+        return parameters != null
                 && !Sets.intersection(
-                        ImmutableSet.copyOf(mParameters.getSupportedFocusModes()),
+                        ImmutableSet.copyOf(parameters.getSupportedFocusModes()),
                         FOCUS_MODE_PREFERRED_ORDER)
                 .isEmpty();
     }
 
     @Override
-    public synchronized boolean autoFocus() {
+    public void autoFocus() {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                doAutoFocus();
+            }
+        });
+    }
+
+    protected boolean doAutoFocus() {
         if (isCameraOpen()) {
             Camera.Parameters parameters = mCamera.getParameters();
             ImmutableSet<String> focusModes =
@@ -460,19 +654,86 @@ public class CameraController implements CameraControllerI {
                 mCamera.setParameters(parameters);
                 mParameters = parameters;
                 mCamera.autoFocus(null);
-                for (CameraListener listener : mListeners) {
-                    listener.onCameraAutoFocus();
-                }
+                dispatchToListeners(new ListenerDispatch() {
+                    @Override
+                    public void dispatch(CameraListener listener) {
+                        listener.onCameraAutoFocus();
+                    }
+                });
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * Queues the command on the camera thread and calls the callback with its result on the
+     * callback thread.
+     */
+    protected void runCommand(
+            final Callable<Boolean> command, @Nullable final CommandCallback callback) {
+        boolean isQueued = mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                boolean result = false;
+                Exception error = null;
+                try {
+                    result = command.call();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Error running camera command", e);
+                    error = e;
+                }
+                postCallback(callback, result, error);
+            }
+        });
+        if (!isQueued) {
+            postCallback(callback, false,
+                    new IllegalStateException("Camera controller was released"));
+        }
+    }
+
+    protected void postCallback(@Nullable final CommandCallback callback,
+            final boolean result, @Nullable final Exception error) {
+        if (callback == null) {
+            return;
+        }
+        mCallbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onCommandComplete(result, error);
+            }
+        });
+    }
+
+    /**
+     * Queues the command on the camera thread without waiting for it. Commands are dropped once the
+     * controller is released.
+     */
+    protected void postToCameraThread(Runnable command) {
+        if (!mCameraHandler.post(command)) {
+            Log.w(LOG_TAG, "Dropped camera command since the controller was released");
+        }
+    }
+
+    protected void dispatchToListeners(final ListenerDispatch listenerDispatch) {
+        mCallbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (CameraListener listener : mListeners) {
+                    listenerDispatch.dispatch(listener);
+                }
+            }
+        });
+    }
+
+    protected interface ListenerDispatch {
+        void dispatch(CameraListener listener);
+    }
+
     protected class CameraPreviewCallback implements Camera.PreviewCallback {
 
         protected boolean mIsFirstCall = true;
-        protected PreviewCallback mPreviewCallback;
+        protected volatile PreviewCallback mPreviewCallback;
 
         public boolean isFirstCall() {
             return mIsFirstCall;
@@ -494,12 +755,21 @@ public class CameraController implements CameraControllerI {
         public void onPreviewFrame(byte[] data, Camera camera) {
             if (mIsFirstCall) {
                 mIsFirstCall = false;
-                for (CameraListener listener : mListeners) {
-                    listener.onCameraStartPreview();
-                }
+                dispatchToListeners(new ListenerDispatch() {
+                    @Override
+                    public void dispatch(CameraListener listener) {
+                        listener.onCameraStartPreview();
+                    }
+                });
+            }
+            PreviewBufferPool bufferPool = mPreviewBufferPool;
+            boolean isPooled = bufferPool != null && bufferPool.onFrame(data);
+            PreviewCallback previewCallback = mPreviewCallback;
+            if (previewCallback != null) {
+                previewCallback.onPreviewFrame(data);
             }
-            if (mPreviewCallback != null) {
-                mPreviewCallback.onPreviewFrame(data);
+            if (isPooled) {
+                bufferPool.release(data);
             }
         }
     }
@@ -8,8 +8,6 @@ import android.view.SurfaceHolder;
 import com.amosyuen.videorecorder.recorder.common.ImageSize;
 import com.amosyuen.videorecorder.recorder.params.CameraParamsI;
 
-import java.io.IOException;
-
 /**
  * Controller interface for a camera.
  */
@@ -36,23 +34,33 @@ public interface CameraControllerI {
     int getCameraCount();
 
     /**
-     * Open the camera that best matches the specified params.
-     * This should be run on a background thread to avoid blocking the UI thread.
+     * Open the camera that best matches the specified params. The camera is opened in the
+     * background and the callback is called once it is open.
      */
-    void openCamera(CameraParamsI params, int surfaceRotationDegrees);
+    void openCamera(
+            CameraParamsI params, int surfaceRotationDegrees, @Nullable CommandCallback callback);
 
     /**
-     * Close the camera and free up resources.
+     * Close the camera and free up resources. The camera is closed in the background after the
+     * commands called before this.
      */
     void closeCamera();
 
     /**
-     * Lock the camera for use only on the current thread.
+     * Close the camera and stop the thread the camera is run on. The controller can't be used
+     * afterwards.
+     */
+    void release();
+
+    /**
+     * Lock the camera for use only by this process. Runs in the background after the commands
+     * called before this.
      */
     void lock();
 
     /**
-     * Unlock the camera so that it can be locked by another thread.
+     * Unlock the camera so that it can be used by another process, such as a media recorder. Runs
+     * in the background after the commands called before this.
      */
     void unlock();
 
@@ -67,9 +75,11 @@ public interface CameraControllerI {
     ImageSize getPictureSize();
 
     /**
-     * Set the media recorder to use the camera.
+     * Set the media recorder to use the camera. Runs in the background after the commands called
+     * before this, so the recorder must not be prepared until the callback is called. The callback
+     * result is whether the camera was set.
      */
-    void setMediaRecorder(MediaRecorder recorder);
+    void setMediaRecorder(MediaRecorder recorder, @Nullable CommandCallback callback);
 
     /**
      * Sets a callback that will be called on every frame of the preview.
@@ -77,17 +87,34 @@ public interface CameraControllerI {
     void setPreviewCallback(@Nullable PreviewCallback callback);
 
     /**
-     * Sets a display to preview the camera.
+     * Sets the number of buffers that preview frames are delivered in. The buffers are reused, so
+     * that a new buffer is not allocated for every frame. A buffer is given back to the camera as
+     * soon as the preview callback returns, so the callback must copy any data it keeps. Zero
+     * delivers every frame in a new buffer. Takes effect the next time the preview is started.
+     * Default value is 0.
+     */
+    void setPreviewBufferCount(int count);
+
+    /**
+     * Returns the metrics of the preview buffers of the current or last preview, or null if frames
+     * were not delivered in buffers.
      */
-    void setPreviewDisplay(@Nullable SurfaceHolder holder) throws IOException;
+    @Nullable
+    PreviewBufferPool.Metrics getPreviewBufferMetrics();
 
     /**
-     * Start previewing the camera.
+     * Sets a display to preview the camera. Runs in the background after the commands called
+     * before this. The callback result is whether the display was set.
      */
-    void startPreview();
+    void setPreviewDisplay(@Nullable SurfaceHolder holder, @Nullable CommandCallback callback);
 
     /**
-     * Stop previewing the camera.
+     * Start previewing the camera. The callback result is whether the preview was started.
+     */
+    void startPreview(@Nullable CommandCallback callback);
+
+    /**
+     * Stop previewing the camera. Runs in the background after the commands called before this.
      */
     void stopPreview();
 
@@ -122,10 +149,10 @@ public interface CameraControllerI {
     boolean supportsFlashMode(FlashMode flashMode);
 
     /**
-     * Sets the flash mode.
-     * @return whether the camera was able to set the flash mode.
+     * Sets the flash mode. The callback result is whether the camera was able to set the flash
+     * mode.
      */
-    boolean setFlashMode(FlashMode flashMode);
+    void setFlashMode(FlashMode flashMode, @Nullable CommandCallback callback);
 
     /**
      * Returns whether the camera supports focusing on a rectangle.
@@ -136,9 +163,9 @@ public interface CameraControllerI {
      * Set camera to focus on a rectangle in camera space with specified weight.
      * @param rect Should be in the range of [-1000:-1000] to [1000:1000]
      * @param focusWeight Should be in the range [1,1000]
-     * @return whether the camera was able to focus on a rect.
+     * @param callback The result is whether the camera was able to focus on a rect.
      */
-    boolean focusOnRect(Rect rect, int focusWeight);
+    void focusOnRect(Rect rect, int focusWeight, @Nullable CommandCallback callback);
 
     /**
      * Returns whether the camera supports auto focusing.
@@ -147,9 +174,8 @@ public interface CameraControllerI {
 
     /**
      * Set camera to auto focus.
-     * @return whether the camera was able to auto focus.
      */
-    boolean autoFocus();
+    void autoFocus();
 
     /**
      * Enum for the direction the camera is facing.
@@ -181,4 +207,16 @@ public interface CameraControllerI {
     interface PreviewCallback {
         void onPreviewFrame(byte[] data);
     }
+
+    /**
+     * Callback for a camera command that is run in the background. Called on the thread that
+     * listeners are called on.
+     */
+    interface CommandCallback {
+        /**
+         * @param result The result of the command, false if there was an error.
+         * @param error The error thrown by the command, if any.
+         */
+        void onCommandComplete(boolean result, @Nullable Exception error);
+    }
 }
@@ -0,0 +1,164 @@
+package com.amosyuen.videorecorder.camera;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.amosyuen.videorecorder.recorder.common.ImageSize;
+import com.google.auto.value.AutoValue;
+import com.google.common.base.Preconditions;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Bounded pool of buffers that the camera fills with preview frames, so that the camera does not
+ * allocate a new buffer for every frame. Every buffer is handed to the camera with
+ * {@link Camera#addCallbackBuffer} and given back to it once the preview callback is done with it.
+ * The camera skips frames while all the buffers are held, which the pool reports as being
+ * exhausted in its {@link Metrics}.
+ */
+public class PreviewBufferPool {
+
+    protected static final String LOG_TAG = "PreviewBufferPool";
+
+    protected final Camera mCamera;
+    protected final int mBufferBytes;
+    protected final int mBufferCount;
+
+    // Guarded by this
+    protected final Set<byte[]> mBuffers =
+            Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+    protected int mQueuedCount;
+    protected int mMaxHeldCount;
+    protected long mFrameCount;
+    protected long mExhaustedCount;
+    protected long mExhaustedMillis;
+    protected long mExhaustedStartMillis;
+    protected boolean mIsClosed;
+
+    /**
+     * Creates a pool of buffers that fit preview frames of the size and {@link ImageFormat}.
+     */
+    public PreviewBufferPool(
+            @NonNull Camera camera, ImageSize previewSize, int previewFormat, int bufferCount) {
+        Preconditions.checkArgument(previewSize.areBothDimensionsDefined());
+        Preconditions.checkArgument(bufferCount > 0);
+        int bitsPerPixel = ImageFormat.getBitsPerPixel(previewFormat);
+        Preconditions.checkArgument(
+                bitsPerPixel > 0, "Unsupported preview format %s", previewFormat);
+        mCamera = Preconditions.checkNotNull(camera);
+        mBufferBytes = (int) (previewSize.getArea() * bitsPerPixel / 8);
+        mBufferCount = bufferCount;
+    }
+
+    public int getBufferBytes() {
+        return mBufferBytes;
+    }
+
+    public int getBufferCount() {
+        return mBufferCount;
+    }
+
+    /**
+     * Allocates the buffers and hands them to the camera. Must be called before the camera starts
+     * delivering preview frames with {@link Camera#setPreviewCallbackWithBuffer}.
+     */
+    public synchronized void start() {
+        Preconditions.checkState(mBuffers.isEmpty() && !mIsClosed);
+        Log.v(LOG_TAG, String.format(
+                "Allocating %d preview buffers of %d bytes", mBufferCount, mBufferBytes));
+        for (int i = 0; i < mBufferCount; i++) {
+            byte[] buffer = new byte[mBufferBytes];
+            mBuffers.add(buffer);
+            mCamera.addCallbackBuffer(buffer);
+        }
+        mQueuedCount = mBufferCount;
+    }
+
+    /**
+     * Called when the camera filled the buffer with a frame. The buffer is held until it is
+     * {@link #release released}. Returns false if the buffer is not from this pool, in which case
+     * it must not be released.
+     */
+    public synchronized boolean onFrame(byte[] buffer) {
+        if (!mBuffers.contains(buffer)) {
+            return false;
+        }
+        mFrameCount++;
+        mQueuedCount--;
+        mMaxHeldCount = Math.max(mMaxHeldCount, mBufferCount - mQueuedCount);
+        if (mQueuedCount == 0) {
+            mExhaustedCount++;
+            mExhaustedStartMillis = SystemClock.uptimeMillis();
+        }
+        return true;
+    }
+
+    /**
+     * Gives the buffer back to the camera to be filled again. Buffers released after the pool is
+     * closed are dropped.
+     */
+    public synchronized void release(byte[] buffer) {
+        if (mIsClosed || !mBuffers.contains(buffer)) {
+            return;
+        }
+        Preconditions.checkState(mQueuedCount < mBufferCount, "Buffer was released twice");
+        if (mQueuedCount == 0) {
+            mExhaustedMillis += SystemClock.uptimeMillis() - mExhaustedStartMillis;
+        }
+        mQueuedCount++;
+        mCamera.addCallbackBuffer(buffer);
+    }
+
+    /**
+     * Stops handing buffers to the camera. Must be called before the camera is released.
+     */
+    public synchronized void close() {
+        if (mIsClosed) {
+            return;
+        }
+        if (mQueuedCount == 0) {
+            mExhaustedMillis += SystemClock.uptimeMillis() - mExhaustedStartMillis;
+        }
+        mIsClosed = true;
+        Log.d(LOG_TAG, String.format("Preview buffer metrics %s", getMetrics()));
+    }
+
+    public synchronized Metrics getMetrics() {
+        long exhaustedMillis = mExhaustedMillis;
+        if (mQueuedCount == 0 && !mIsClosed) {
+            exhaustedMillis += SystemClock.uptimeMillis() - mExhaustedStartMillis;
+        }
+        return Metrics.create(mBufferCount, mBufferBytes, mMaxHeldCount, mFrameCount,
+                mExhaustedCount, exhaustedMillis);
+    }
+
+    /**
+     * Snapshot of how the preview buffers were used.
+     */
+    @AutoValue
+    public abstract static class Metrics {
+        /** Number of buffers in the pool. */
+        public abstract int getBufferCount();
+        /** Size of each buffer in bytes. */
+        public abstract int getBufferBytes();
+        /** Most buffers that were held by the preview callback at once. */
+        public abstract int getMaxHeldCount();
+        /** Number of frames the camera delivered. */
+        public abstract long getFrameCount();
+        /** Number of times the preview callback held every buffer, so frames were skipped. */
+        public abstract long getExhaustedCount();
+        /** Total time that the preview callback held every buffer. */
+        public abstract long getExhaustedMillis();
+
+        public static Metrics create(int bufferCount, int bufferBytes, int maxHeldCount,
+                long frameCount, long exhaustedCount, long exhaustedMillis) {
+            return new AutoValue_PreviewBufferPool_Metrics(bufferCount, bufferBytes, maxHeldCount,
+                    frameCount, exhaustedCount, exhaustedMillis);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.amosyuen.videorecorder.recorder;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.amosyuen.videorecorder.recorder.params.VideoTransformerParams;
+import com.amosyuen.videorecorder.recorder.params.VideoTransformerParamsI;
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Transcodes clips into segments on a background thread as soon as they are recorded, so that
+ * saving only needs to transcode the clips that are not done yet and concatenate the segments.
+ * Register it as the {@link MediaClipsRecorder.ClipsListener} and pass it to
+ * {@link VideoTransformerTask#setSegmentSource}.
+ */
+public class BackgroundClipTranscoder implements
+        MediaClipsRecorder.ClipsListener, VideoTransformerTask.SegmentSource {
+
+    protected static final String LOG_TAG = "BackgroundClipTranscoder";
+
+    protected final VideoTransformerParamsI mParams;
+    protected final VideoTransformerTask.SegmentRecorderFactory mSegmentRecorderFactory;
+    protected final ExecutorService mExecutor;
+    protected final Map<VideoClipI, Job> mJobs = new HashMap<>();
+
+    public BackgroundClipTranscoder(
+            VideoTransformerParamsI params,
+            VideoTransformerTask.SegmentRecorderFactory segmentRecorderFactory) {
+        mParams = Preconditions.checkNotNull(params);
+        mSegmentRecorderFactory = Preconditions.checkNotNull(segmentRecorderFactory);
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @Override
+    public void onClipAdded(MediaClipsRecorder.Clip clip) {
+        addClip(clip);
+    }
+
+    @Override
+    public void onClipRemoved(MediaClipsRecorder.Clip clip) {
+        removeClip(clip);
+    }
+
+    /**
+     * Queues the clip to be transcoded.
+     */
+    public synchronized void addClip(VideoClipI clip) {
+        Log.v(LOG_TAG, String.format("Queue clip %s", clip));
+        Job job = new Job(clip);
+        mJobs.put(clip, job);
+        job.mFuture = mExecutor.submit(job);
+    }
+
+    /**
+     * Cancels transcoding the clip and deletes its segment.
+     */
+    public synchronized void removeClip(VideoClipI clip) {
+        Job job = mJobs.remove(clip);
+        if (job != null) {
+            Log.v(LOG_TAG, String.format("Remove clip %s", clip));
+            job.cancel();
+        }
+    }
+
+    /**
+     * Cancels transcoding all clips and deletes their segments.
+     */
+    public synchronized void clear() {
+        for (Job job : mJobs.values()) {
+            job.cancel();
+        }
+        mJobs.clear();
+    }
+
+    /**
+     * Clears all clips and stops the background thread.
+     */
+    public void release() {
+        clear();
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Returns the segment of the clip, waiting for it if the clip is being transcoded with the
+     * encoder params. Stops transcoding the clip if it has not started yet or is transcoded with
+     * other encoder params, since the caller transcodes it itself.
+     */
+    @Override
+    public VideoTransformerTask.Segment getSegment(VideoClipI clip, String encoderParamsKey) {
+        Job job;
+        synchronized (this) {
+            job = mJobs.get(clip);
+            if (job == null) {
+                return null;
+            }
+            if (!job.mFuture.isDone() && !job.isTranscoding(encoderParamsKey)) {
+                Log.v(LOG_TAG, String.format("Clip %s is not being transcoded", clip));
+                mJobs.remove(clip);
+                job.cancel();
+                return null;
+            }
+        }
+        VideoTransformerTask.Segment segment;
+        try {
+            segment = job.mFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | CancellationException e) {
+            Log.w(LOG_TAG, String.format("No segment for clip %s", clip), e);
+            return null;
+        }
+        if (segment == null || !segment.getEncoderParamsKey().equals(encoderParamsKey)) {
+            Log.v(LOG_TAG, String.format(
+                    "Segment %s for clip %s was encoded with other params", segment, clip));
+            return null;
+        }
+        return segment;
+    }
+
+    protected class Job implements Callable<VideoTransformerTask.Segment> {
+        protected final VideoClipI mClip;
+        protected Future<VideoTransformerTask.Segment> mFuture;
+        // Guarded by this
+        protected boolean mCancelled;
+        protected VideoTransformerTask mTask;
+        protected File mFile;
+        // Set once the job starts transcoding
+        protected String mEncoderParamsKey;
+
+        protected Job(VideoClipI clip) {
+            mClip = clip;
+        }
+
+        @Override
+        public VideoTransformerTask.Segment call() throws Exception {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            VideoTransformerTask task;
+            synchronized (this) {
+                if (mCancelled) {
+                    return null;
+                }
+                mFile = mSegmentRecorderFactory.createSegmentFile();
+                FFmpegFrameRecorder recorder = mSegmentRecorderFactory.createSegmentRecorder(mFile);
+                // Read before the task runs, since remuxing copies the params of the clip
+                mEncoderParamsKey = VideoTransformerTask.getEncoderParamsKey(recorder);
+                // Segments are inputs to the save, which does not read rotation metadata
+                mTask = new VideoTransformerTask(
+                        recorder,
+                        VideoTransformerParams.Builder.merge(
+                                VideoTransformerParams.builder(), mParams)
+                                .setShouldRotateVideoWithMetadata(false)
+                                .build(),
+                        Collections.singletonList(mClip));
+                // Leave the other processors to the camera while recording
+                mTask.setPipelined(false);
+                mTask.setDecoderThreadCount(1);
+                task = mTask;
+            }
+            try {
+                long startMillis = System.currentTimeMillis();
+                task.run();
+                Log.v(LOG_TAG, String.format("Transcoded clip %s in %dms",
+                        mClip, System.currentTimeMillis() - startMillis));
+                return VideoTransformerTask.Segment.create(
+                        mFile, task.getOutputSize(), 0, mEncoderParamsKey);
+            } catch (RuntimeException e) {
+                mFile.delete();
+                throw e;
+            }
+        }
+
+        /**
+         * Returns whether the job started transcoding the clip with the encoder params and was
+         * not cancelled.
+         */
+        protected synchronized boolean isTranscoding(String encoderParamsKey) {
+            return !mCancelled && encoderParamsKey.equals(mEncoderParamsKey);
+        }
+
+        protected synchronized void cancel() {
+            mCancelled = true;
+            mFuture.cancel(false);
+            if (mTask != null) {
+                mTask.cancel();
+            }
+            if (mFile != null) {
+                mFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.amosyuen.videorecorder.recorder;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.amosyuen.videorecorder.camera.CameraControllerI;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JSON file that lists the recorded clips, so that the clips are not lost if the process dies.
+ * Recorders rewrite it every time a clip is added or removed and restore the clips from it.
+ */
+public class ClipManifest {
+
+    protected static final String LOG_TAG = "ClipManifest";
+
+    protected static final String KEY_CLIPS = "clips";
+    protected static final String KEY_FILE = "file";
+    protected static final String KEY_FACING = "facing";
+    protected static final String KEY_ORIENTATION_DEGREES = "orientationDegrees";
+    protected static final String KEY_DURATION_MILLIS = "durationMillis";
+    protected static final String KEY_BYTES = "bytes";
+
+    protected final File mFile;
+
+    public ClipManifest(@NonNull File file) {
+        mFile = Preconditions.checkNotNull(file);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Returns the clips in the manifest whose files still exist. Returns no clips if there is no
+     * manifest or it cannot be read.
+     */
+    public List<MediaClipsRecorder.Clip> load() {
+        List<MediaClipsRecorder.Clip> clips = new ArrayList<>();
+        if (!mFile.exists()) {
+            return clips;
+        }
+        try {
+            JSONArray clipsJson =
+                    new JSONObject(Files.toString(mFile, Charsets.UTF_8)).getJSONArray(KEY_CLIPS);
+            for (int i = 0; i < clipsJson.length(); i++) {
+                JSONObject clipJson = clipsJson.getJSONObject(i);
+                File file = new File(clipJson.getString(KEY_FILE));
+                if (!file.exists()) {
+                    Log.w(LOG_TAG, String.format("Clip file %s no longer exists", file));
+                    continue;
+                }
+                clips.add(MediaClipsRecorder.Clip.create(
+                        file,
+                        CameraControllerI.Facing.valueOf(clipJson.getString(KEY_FACING)),
+                        clipJson.getInt(KEY_ORIENTATION_DEGREES),
+                        clipJson.getLong(KEY_DURATION_MILLIS),
+                        clipJson.getLong(KEY_BYTES)));
+            }
+        } catch (IOException | JSONException | IllegalArgumentException e) {
+            Log.e(LOG_TAG, String.format("Error reading clip manifest %s", mFile), e);
+            clips.clear();
+        }
+        return clips;
+    }
+
+    /**
+     * Replaces the manifest with the clips. The manifest is either fully written or left as it was.
+     * Saving no clips deletes the manifest.
+     */
+    public void save(List<MediaClipsRecorder.Clip> clips) {
+        if (clips.isEmpty()) {
+            delete();
+            return;
+        }
+        try {
+            JSONArray clipsJson = new JSONArray();
+            for (MediaClipsRecorder.Clip clip : clips) {
+                clipsJson.put(new JSONObject()
+                        .put(KEY_FILE, clip.getFile().getAbsolutePath())
+                        .put(KEY_FACING, clip.getFacing().name())
+                        .put(KEY_ORIENTATION_DEGREES, clip.getOrientationDegrees())
+                        .put(KEY_DURATION_MILLIS, clip.getDurationMillis())
+                        .put(KEY_BYTES, clip.getBytes()));
+            }
+            writeAtomically(mFile, new JSONObject().put(KEY_CLIPS, clipsJson).toString());
+        } catch (IOException | JSONException e) {
+            Log.e(LOG_TAG, String.format("Error writing clip manifest %s", mFile), e);
+        }
+    }
+
+    /**
+     * Deletes the manifest. The clip files are not deleted.
+     */
+    public void delete() {
+        mFile.delete();
+    }
+
+    /**
+     * Writes the contents to a temp file and renames it over the file, so that a reader never sees
+     * a partially written file.
+     */
+    protected static void writeAtomically(File file, String contents) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream outputStream = new FileOutputStream(tempFile);
+        try {
+            outputStream.write(contents.getBytes(Charsets.UTF_8));
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException(String.format("Could not rename %s to %s", tempFile, file));
+        }
+    }
+}
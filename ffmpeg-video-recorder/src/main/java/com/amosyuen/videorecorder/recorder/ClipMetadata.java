@@ -0,0 +1,189 @@
+package com.amosyuen.videorecorder.recorder;
+
+import com.amosyuen.videorecorder.recorder.common.ImageSize;
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.javacpp.avcodec.AVCodecContext;
+import org.bytedeco.javacpp.avformat.AVFormatContext;
+import org.bytedeco.javacpp.avformat.AVStream;
+import org.bytedeco.javacpp.avutil.AVRational;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FrameGrabber;
+
+import java.io.File;
+
+import static org.bytedeco.javacpp.avformat.av_stream_get_r_frame_rate;
+import static org.bytedeco.javacpp.avformat.avformat_close_input;
+import static org.bytedeco.javacpp.avformat.avformat_find_stream_info;
+import static org.bytedeco.javacpp.avformat.avformat_open_input;
+import static org.bytedeco.javacpp.avutil.AVMEDIA_TYPE_AUDIO;
+import static org.bytedeco.javacpp.avutil.AVMEDIA_TYPE_VIDEO;
+import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_NONE;
+import static org.bytedeco.javacpp.avutil.AV_TIME_BASE;
+
+/**
+ * Metadata of a clip file that is needed to plan transforming it, with the same values that an
+ * {@link FFmpegFrameGrabber} would report once started. Probing only reads the container and stream
+ * headers, so no decoders are opened.
+ */
+@AutoValue
+public abstract class ClipMetadata {
+
+    /**
+     * Returns the size of the video frames, or {@link ImageSize#UNDEFINED} if there is no video.
+     */
+    public abstract ImageSize getImageSize();
+
+    /**
+     * Returns the video frame rate, or 0 if there is no video.
+     */
+    public abstract double getFrameRate();
+
+    /**
+     * Returns the length in microseconds.
+     */
+    public abstract long getLengthInTime();
+
+    /**
+     * Returns the video codec id, or 0 if there is no video.
+     */
+    public abstract int getVideoCodec();
+
+    /**
+     * Returns the video pixel format, or {@code AV_PIX_FMT_NONE} if there is no video.
+     */
+    public abstract int getPixelFormat();
+
+    /**
+     * Returns the video bitrate in bits per second, or 0 if there is no video or it is unknown.
+     */
+    public abstract long getVideoBitrate();
+
+    /**
+     * Returns the audio codec id, or 0 if there is no audio.
+     */
+    public abstract int getAudioCodec();
+
+    /**
+     * Returns the number of audio channels, or 0 if there is no audio.
+     */
+    public abstract int getAudioChannels();
+
+    /**
+     * Returns the audio sample rate, or 0 if there is no audio.
+     */
+    public abstract int getSampleRate();
+
+    /**
+     * Returns the codec parameters of every stream in the order of the streams.
+     */
+    public abstract ImmutableList<StreamParams> getStreams();
+
+    public static ClipMetadata create(ImageSize imageSize, double frameRate, long lengthInTime,
+            int videoCodec, int pixelFormat, long videoBitrate, int audioCodec, int audioChannels,
+            int sampleRate, ImmutableList<StreamParams> streams) {
+        return new AutoValue_ClipMetadata(imageSize, frameRate, lengthInTime, videoCodec,
+                pixelFormat, videoBitrate, audioCodec, audioChannels, sampleRate, streams);
+    }
+
+    /**
+     * Returns whether the streams of both clips were encoded with the same codec parameters so
+     * that their packets can be concatenated into one output stream.
+     */
+    public boolean hasSameCodecParameters(ClipMetadata other) {
+        return getStreams().equals(other.getStreams());
+    }
+
+    /**
+     * Reads the metadata of the file.
+     */
+    public static ClipMetadata probe(File file) throws FrameGrabber.Exception {
+        FFmpegFrameGrabber.tryLoad();
+        AVFormatContext formatContext = new AVFormatContext(null);
+        int ret = avformat_open_input(formatContext, file.getAbsolutePath(), null, null);
+        if (ret < 0) {
+            throw new FrameGrabber.Exception(String.format(
+                    "avformat_open_input() error %d: Could not open input %s", ret, file));
+        }
+        try {
+            ret = avformat_find_stream_info(formatContext, (PointerPointer) null);
+            if (ret < 0) {
+                throw new FrameGrabber.Exception(String.format(
+                        "avformat_find_stream_info() error %d: Could not find stream info for %s",
+                        ret, file));
+            }
+            return create(formatContext);
+        } finally {
+            avformat_close_input(formatContext);
+        }
+    }
+
+    protected static ClipMetadata create(AVFormatContext formatContext) {
+        ImageSize imageSize = ImageSize.UNDEFINED;
+        double frameRate = 0;
+        int videoCodec = 0;
+        int pixelFormat = AV_PIX_FMT_NONE;
+        long videoBitrate = 0;
+        int audioCodec = 0;
+        int audioChannels = 0;
+        int sampleRate = 0;
+        ImmutableList.Builder<StreamParams> streams = ImmutableList.builder();
+        for (int i = 0; i < formatContext.nb_streams(); i++) {
+            AVStream stream = formatContext.streams(i);
+            AVCodecContext codecContext = stream.codec();
+            // Use the first stream of each type like the frame grabber
+            if (codecContext.codec_type() == AVMEDIA_TYPE_VIDEO && videoCodec == 0) {
+                imageSize = new ImageSize(codecContext.width(), codecContext.height());
+                AVRational rate = av_stream_get_r_frame_rate(stream);
+                frameRate = rate.den() == 0 ? 0 : (double) rate.num() / rate.den();
+                videoCodec = codecContext.codec_id();
+                pixelFormat = codecContext.pix_fmt();
+                videoBitrate = codecContext.bit_rate();
+            } else if (codecContext.codec_type() == AVMEDIA_TYPE_AUDIO && audioCodec == 0) {
+                audioCodec = codecContext.codec_id();
+                audioChannels = codecContext.channels();
+                sampleRate = codecContext.sample_rate();
+            }
+            streams.add(StreamParams.create(codecContext));
+        }
+        return create(imageSize, frameRate, formatContext.duration() * 1000000L / AV_TIME_BASE,
+                videoCodec, pixelFormat, videoBitrate, audioCodec, audioChannels, sampleRate,
+                streams.build());
+    }
+
+    /**
+     * Codec parameters of a stream that must match to concatenate packets of the streams.
+     */
+    @AutoValue
+    public abstract static class StreamParams {
+        public abstract int getCodecType();
+        public abstract int getCodecId();
+        public abstract int getWidth();
+        public abstract int getHeight();
+        public abstract int getPixelFormat();
+        public abstract int getSampleRate();
+        public abstract int getChannels();
+        public abstract int getSampleFormat();
+        @SuppressWarnings("mutable")
+        public abstract byte[] getExtradata();
+
+        public static StreamParams create(int codecType, int codecId, int width, int height,
+                int pixelFormat, int sampleRate, int channels, int sampleFormat, byte[] extradata) {
+            return new AutoValue_ClipMetadata_StreamParams(codecType, codecId, width, height,
+                    pixelFormat, sampleRate, channels, sampleFormat, extradata);
+        }
+
+        public static StreamParams create(AVCodecContext codecContext) {
+            byte[] extradata = new byte[Math.max(0, codecContext.extradata_size())];
+            if (extradata.length > 0) {
+                codecContext.extradata().position(0).get(extradata);
+            }
+            return create(codecContext.codec_type(), codecContext.codec_id(),
+                    codecContext.width(), codecContext.height(), codecContext.pix_fmt(),
+                    codecContext.sample_rate(), codecContext.channels(),
+                    codecContext.sample_fmt(), extradata);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.amosyuen.videorecorder.recorder;
+
+import android.util.Log;
+
+import com.google.common.base.Preconditions;
+
+import org.bytedeco.javacv.FrameGrabber;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process wide cache of clip metadata, so that transforming clips can plan the output without
+ * opening every clip first. Recorders {@link #add} each clip when it is finished and
+ * {@link #remove} it when the clip is deleted. An entry is only used while the file has the same
+ * length and modification time as when it was probed.
+ */
+public class ClipMetadataCache {
+
+    protected static final String LOG_TAG = "ClipMetadataCache";
+
+    protected static final int DEFAULT_MAX_ENTRIES = 64;
+
+    protected static ClipMetadataCache sInstance;
+
+    // Probes files added in the background one at a time
+    protected final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    protected int mMaxEntries = DEFAULT_MAX_ENTRIES;
+    // Ordered from least to most recently used
+    protected final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > mMaxEntries;
+                }
+            };
+
+    public static synchronized ClipMetadataCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new ClipMetadataCache();
+        }
+        return sInstance;
+    }
+
+    public synchronized int getMaxEntries() {
+        return mMaxEntries;
+    }
+
+    /**
+     * Sets the max number of clips to keep metadata for. Default value is
+     * {@value #DEFAULT_MAX_ENTRIES}.
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        Preconditions.checkArgument(maxEntries > 0);
+        mMaxEntries = maxEntries;
+        while (mEntries.size() > mMaxEntries) {
+            mEntries.remove(mEntries.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Returns the metadata of the file, probing it if it is not cached.
+     */
+    public ClipMetadata get(File file) throws FrameGrabber.Exception {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        synchronized (this) {
+            Entry entry = mEntries.get(file.getAbsolutePath());
+            if (entry != null && entry.mLength == length && entry.mLastModified == lastModified) {
+                return entry.mMetadata;
+            }
+        }
+        Log.v(LOG_TAG, String.format("Metadata of %s is not cached", file));
+        return probe(file);
+    }
+
+    /**
+     * Reads the metadata of the file and caches it.
+     */
+    public ClipMetadata probe(File file) throws FrameGrabber.Exception {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        ClipMetadata metadata = ClipMetadata.probe(file);
+        synchronized (this) {
+            mEntries.put(file.getAbsolutePath(), new Entry(metadata, length, lastModified));
+        }
+        return metadata;
+    }
+
+    /**
+     * Same as {@link #probe} except that errors are logged instead of thrown, so that recorders can
+     * cache clips as they are finished. Clips that fail are probed again when they are needed.
+     */
+    public void add(File file) {
+        try {
+            probe(file);
+        } catch (FrameGrabber.Exception e) {
+            Log.e(LOG_TAG, String.format("Error probing %s", file), e);
+        }
+    }
+
+    /**
+     * Same as {@link #add} except that the file is probed on a background thread, so that
+     * recorders can cache clips as they are stopped on the main thread.
+     */
+    public void addInBackground(final File file) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                add(file);
+            }
+        });
+    }
+
+    /**
+     * Removes the metadata of the file.
+     */
+    public synchronized void remove(File file) {
+        mEntries.remove(file.getAbsolutePath());
+    }
+
+    /**
+     * Removes all metadata.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    protected static class Entry {
+        protected final ClipMetadata mMetadata;
+        protected final long mLength;
+        protected final long mLastModified;
+
+        protected Entry(ClipMetadata metadata, long length, long lastModified) {
+            mMetadata = metadata;
+            mLength = length;
+            mLastModified = lastModified;
+        }
+    }
+}
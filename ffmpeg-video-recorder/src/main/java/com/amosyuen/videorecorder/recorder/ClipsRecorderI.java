@@ -0,0 +1,114 @@
+package com.amosyuen.videorecorder.recorder;
+
+import com.amosyuen.videorecorder.camera.CameraControllerI;
+
+import java.util.List;
+
+/**
+ * Recorder for recording multiple clips.
+ */
+public interface ClipsRecorderI {
+
+    /**
+     * Sets a listener for recorder errors and limits.
+     */
+    void setMediaClipsRecorderListener(MediaClipsRecorder.MediaClipsRecorderListener listener);
+
+    /**
+     * Sets a listener that is notified when clips are added or removed.
+     */
+    void setClipsListener(MediaClipsRecorder.ClipsListener clipsListener);
+
+    /**
+     * Sets the manifest that the clips are written to whenever they change. Null to not persist
+     * the clips.
+     */
+    void setClipManifest(ClipManifest clipManifest);
+
+    /**
+     * Adds the clips in the manifest that are not already recorded, such as clips recorded before
+     * the process died. Only works when not recording.
+     */
+    void restoreClips();
+
+    /**
+     * Returns the facing of the camera that is being recorded.
+     */
+    CameraControllerI.Facing getFacing();
+
+    /**
+     * Sets the facing of the camera that is being recorded.
+     */
+    void setFacing(CameraControllerI.Facing facing);
+
+    /**
+     * Returns the orientation of the view in degrees.
+     */
+    int getViewOrientationDegrees();
+
+    /**
+     * Sets the orientation of the view in degrees.
+     */
+    void setViewOrientationDegrees(int viewOrientationDegrees);
+
+    /**
+     * Returns the recorded clips.
+     */
+    List<MediaClipsRecorder.Clip> getClips();
+
+    /**
+     * Returns whether a clip is currently being recorded.
+     */
+    boolean isRecording();
+
+    /**
+     * Returns the recorded time of the current clip in milliseconds.
+     */
+    long getCurrentRecordedTimeMillis();
+
+    /**
+     * Returns the recorded time of all clips including the current clip in milliseconds.
+     */
+    long getRecordedMillis();
+
+    /**
+     * Returns the recorded bytes of the current clip.
+     */
+    long getCurrentRecordedBytes();
+
+    /**
+     * Returns the recorded bytes of all clips including the current clip.
+     */
+    long getRecordedBytes();
+
+    /**
+     * Start recording a new clip.
+     */
+    void start();
+
+    /**
+     * Stop recording the current clip and add it to the clips. The clip may be added later if it
+     * is finished in the background.
+     */
+    void stop();
+
+    /**
+     * Waits until stopped clips are added to the clips. Must not be called on the main thread.
+     */
+    void awaitClips() throws InterruptedException;
+
+    /**
+     * Stop recording and free up resources.
+     */
+    void release();
+
+    /**
+     * Delete all recorded clips.
+     */
+    void deleteClips();
+
+    /**
+     * Remove and delete the last recorded clip. Only works when not recording.
+     */
+    void removeLastClip();
+}
@@ -0,0 +1,292 @@
+package com.amosyuen.videorecorder.recorder;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.amosyuen.videorecorder.recorder.common.ImageSize;
+import com.amosyuen.videorecorder.recorder.params.EncoderParamsI;
+import com.amosyuen.videorecorder.recorder.params.EncoderParamsI.VideoCodec;
+import com.amosyuen.videorecorder.recorder.params.EncoderParamsI.VideoPreset;
+import com.amosyuen.videorecorder.recorder.params.RecorderParams;
+import com.amosyuen.videorecorder.util.Util;
+import com.google.auto.value.AutoValue;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameRecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Persists the measured encode throughput of the device, so that encoder settings can be chosen to
+ * save a video within a target time. Throughput is measured by encoding synthetic frames with
+ * {@link FFmpegFrameRecorder} and is kept in frames per second per video codec, preset and size.
+ * Sizes that were not measured are estimated from the closest measured size of the same codec and
+ * preset, assuming throughput is inversely proportional to the number of pixels.
+ */
+public class EncodeThroughputCalibrator {
+
+    protected static final String LOG_TAG = "EncodeThroughputCalibrator";
+
+    protected static final String FPS_KEY_PREFIX = "encode_fps_";
+    protected static final int CALIBRATION_FRAMES = 30;
+    protected static final int CALIBRATION_FRAME_VARIANTS = 4;
+    protected static final int CALIBRATION_FRAME_RATE = 30;
+    protected static final float[] SCALE_FACTORS = {1f, 0.75f, 0.5f};
+
+    protected final SharedPreferences mPreferences;
+
+    public EncodeThroughputCalibrator(@NonNull SharedPreferences preferences) {
+        mPreferences = Preconditions.checkNotNull(preferences);
+    }
+
+    /**
+     * Returns the measured encode frames per second, or 0 if it has not been measured.
+     */
+    public float getMeasuredFramesPerSecond(VideoCodec codec, VideoPreset preset, ImageSize size) {
+        return mPreferences.getFloat(getKey(codec, preset, size), 0);
+    }
+
+    /**
+     * Returns the measured encode frames per second, or an estimate from the closest measured size
+     * of the codec and preset. Returns 0 if the codec and preset have not been measured.
+     */
+    public float getEstimatedFramesPerSecond(
+            VideoCodec codec, VideoPreset preset, ImageSize size) {
+        float framesPerSecond = getMeasuredFramesPerSecond(codec, preset, size);
+        if (framesPerSecond > 0) {
+            return framesPerSecond;
+        }
+        String prefix = getKeyPrefix(codec, preset);
+        long area = size.getArea();
+        long closestArea = 0;
+        for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            if (!entry.getKey().startsWith(prefix) || !(entry.getValue() instanceof Float)) {
+                continue;
+            }
+            long measuredArea = parseArea(entry.getKey().substring(prefix.length()));
+            if (measuredArea > 0 && (closestArea == 0
+                    || Math.abs(measuredArea - area) < Math.abs(closestArea - area))) {
+                closestArea = measuredArea;
+                framesPerSecond = (Float) entry.getValue();
+            }
+        }
+        return closestArea == 0 ? 0 : framesPerSecond * closestArea / area;
+    }
+
+    /**
+     * Measures the encode frames per second of the params with the preset and size, and persists
+     * it. The encoded file is written to the temp dir and deleted. This takes as long as encoding
+     * {@value #CALIBRATION_FRAMES} frames, so it should not be called on the main thread.
+     */
+    public float measure(EncoderParamsI params, VideoPreset preset, ImageSize size, File tempDir)
+            throws IOException {
+        Preconditions.checkArgument(size.areBothDimensionsDefined());
+        Frame[] frames = createFrames(size);
+        File file = File.createTempFile(
+                "calibration-", "." + params.getOutputFormat().getFileExtension(), tempDir);
+        FFmpegFrameRecorder recorder = Util.createFrameRecorder(file, params);
+        try {
+            recorder.setImageWidth(size.getWidthUnchecked());
+            recorder.setImageHeight(size.getHeightUnchecked());
+            recorder.setFrameRate(CALIBRATION_FRAME_RATE);
+            recorder.setVideoOption("preset", preset.getOptionValue());
+            recorder.setAudioChannels(0);
+            recorder.start();
+
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < CALIBRATION_FRAMES; i++) {
+                recorder.setTimestamp(i * 1000000L / CALIBRATION_FRAME_RATE);
+                recorder.record(frames[i % frames.length]);
+            }
+            // Stopping flushes the frames delayed by the encoder
+            recorder.stop();
+            long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+
+            float framesPerSecond = CALIBRATION_FRAMES * 1e9f / elapsedNanos;
+            Log.v(LOG_TAG, String.format("Measured encode %.1f fps for %s %s %s",
+                    framesPerSecond, params.getVideoCodec(), preset, size));
+            mPreferences.edit()
+                    .putFloat(getKey(params.getVideoCodec(), preset, size), framesPerSecond)
+                    .apply();
+            return framesPerSecond;
+        } catch (FrameRecorder.Exception e) {
+            throw new IOException(e);
+        } finally {
+            try {
+                recorder.release();
+            } catch (FrameRecorder.Exception e) {
+                Log.e(LOG_TAG, "Error releasing calibration recorder", e);
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * Chooses the first size and preset whose estimated time to encode the recording is within the
+     * target. Sizes and presets are tried in the given order, so they should be ordered from most
+     * to least preferred. If none are estimated to be within the target, the one with the shortest
+     * estimated time is chosen. Returns absent if none of the presets have been measured.
+     */
+    public Optional<EncodeSettings> choose(VideoCodec codec, List<ImageSize> sizes,
+            List<VideoPreset> presets, long recordedMillis, int frameRate, long targetSaveMillis) {
+        long frames = recordedMillis * frameRate / 1000;
+        EncodeSettings fastestSettings = null;
+        for (ImageSize size : sizes) {
+            for (VideoPreset preset : presets) {
+                float framesPerSecond = getEstimatedFramesPerSecond(codec, preset, size);
+                if (framesPerSecond <= 0) {
+                    continue;
+                }
+                EncodeSettings settings = EncodeSettings.create(
+                        size, preset, Math.round(frames * 1000 / framesPerSecond));
+                if (settings.getEstimatedSaveMillis() <= targetSaveMillis) {
+                    Log.v(LOG_TAG, String.format("Chose %s for target %d", settings,
+                            targetSaveMillis));
+                    return Optional.of(settings);
+                }
+                if (fastestSettings == null || settings.getEstimatedSaveMillis()
+                        < fastestSettings.getEstimatedSaveMillis()) {
+                    fastestSettings = settings;
+                }
+            }
+        }
+        Log.v(LOG_TAG, String.format("No settings within target %d, chose fastest %s",
+                targetSaveMillis, fastestSettings));
+        return Optional.fromNullable(fastestSettings);
+    }
+
+    /**
+     * Returns the params with the video size and preset chosen to save the recording within the
+     * target time. The candidates are the params size scaled by each of {@link #SCALE_FACTORS}, and
+     * the params preset down to {@link VideoPreset#ULTRAFAST} for codecs that support presets.
+     * Presets that have not been measured are measured at the full size until one is estimated to
+     * be within the target, so the first call on a device takes longer. If the params size is not
+     * fully defined, only the preset is chosen and the source size is used to estimate.
+     */
+    public RecorderParams chooseParams(RecorderParams params, ImageSize sourceSize,
+            long recordedMillis, long targetSaveMillis, File tempDir) throws IOException {
+        VideoCodec codec = params.getVideoCodec();
+        boolean canChoosePreset = codec == VideoCodec.H264 || codec == VideoCodec.HEVC;
+        boolean canChooseSize = params.getVideoSize().areBothDimensionsDefined();
+        if (!canChoosePreset && !canChooseSize) {
+            return params;
+        }
+        ImageSize videoSize = canChooseSize ? params.getVideoSize() : sourceSize;
+        int frameRate = params.getVideoFrameRate().or(CALIBRATION_FRAME_RATE);
+
+        VideoPreset paramsPreset = params.getVideoPreset().or(VideoPreset.MEDIUM);
+        List<VideoPreset> presets = new ArrayList<>();
+        for (int i = canChoosePreset ? paramsPreset.ordinal() : 0; i >= 0; i--) {
+            presets.add(canChoosePreset ? VideoPreset.values()[i] : paramsPreset);
+        }
+        for (VideoPreset preset : presets) {
+            float framesPerSecond = getMeasuredFramesPerSecond(codec, preset, videoSize);
+            if (framesPerSecond <= 0) {
+                framesPerSecond = measure(params, preset, videoSize, tempDir);
+            }
+            if (recordedMillis * frameRate / framesPerSecond <= targetSaveMillis) {
+                break;
+            }
+        }
+
+        List<ImageSize> sizes = new ArrayList<>();
+        for (float scaleFactor : canChooseSize ? SCALE_FACTORS : new float[] {1f}) {
+            sizes.add(new ImageSize(
+                    roundToEven(videoSize.getWidthUnchecked() * scaleFactor),
+                    roundToEven(videoSize.getHeightUnchecked() * scaleFactor)));
+        }
+        Optional<EncodeSettings> settings =
+                choose(codec, sizes, presets, recordedMillis, frameRate, targetSaveMillis);
+        if (!settings.isPresent()) {
+            return params;
+        }
+        RecorderParams.Builder builder = params.toBuilder();
+        if (canChooseSize) {
+            builder.setVideoSize(settings.get().getVideoSize());
+        }
+        if (canChoosePreset) {
+            builder.setVideoPreset(settings.get().getVideoPreset());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Creates NV21 frames of a gradient with noise, so that the encoder has to do a similar amount
+     * of work as for camera frames. The frames are laid out like the frames that are recorded from
+     * the camera, so the recorder guesses NV21 from the two channels with the width as the stride.
+     */
+    protected static Frame[] createFrames(ImageSize size) {
+        int width = size.getWidthUnchecked();
+        int height = size.getHeightUnchecked();
+        Random random = new Random(0);
+        Frame[] frames = new Frame[CALIBRATION_FRAME_VARIANTS];
+        for (int i = 0; i < frames.length; i++) {
+            Frame frame = new Frame(width, height, Frame.DEPTH_UBYTE, 2);
+            frame.imageStride = width;
+            ByteBuffer buffer = (ByteBuffer) frame.image[0];
+            int lumaBytes = width * height;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    buffer.put(y * width + x,
+                            (byte) ((x + y + i * 8) / 2 + random.nextInt(16)));
+                }
+            }
+            for (int j = lumaBytes; j < lumaBytes + lumaBytes / 2; j++) {
+                buffer.put(j, (byte) (128 + random.nextInt(8)));
+            }
+            frames[i] = frame;
+        }
+        return frames;
+    }
+
+    protected static int roundToEven(float val) {
+        return Math.max(2, 2 * Math.round(val / 2));
+    }
+
+    protected static String getKeyPrefix(VideoCodec codec, VideoPreset preset) {
+        return FPS_KEY_PREFIX + codec.name() + "_" + preset.name() + "_";
+    }
+
+    protected static String getKey(VideoCodec codec, VideoPreset preset, ImageSize size) {
+        return getKeyPrefix(codec, preset)
+                + size.getWidthUnchecked() + "x" + size.getHeightUnchecked();
+    }
+
+    protected static long parseArea(String sizeKey) {
+        int separatorIndex = sizeKey.indexOf('x');
+        if (separatorIndex < 0) {
+            return 0;
+        }
+        try {
+            return (long) Integer.parseInt(sizeKey.substring(0, separatorIndex))
+                    * Integer.parseInt(sizeKey.substring(separatorIndex + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Encoder settings chosen to save a recording within a target time.
+     */
+    @AutoValue
+    public abstract static class EncodeSettings {
+        public abstract ImageSize getVideoSize();
+        public abstract VideoPreset getVideoPreset();
+        public abstract long getEstimatedSaveMillis();
+
+        public static EncodeSettings create(
+                ImageSize videoSize, VideoPreset videoPreset, long estimatedSaveMillis) {
+            return new AutoValue_EncodeThroughputCalibrator_EncodeSettings(
+                    videoSize, videoPreset, estimatedSaveMillis);
+        }
+    }
+}
@@ -0,0 +1,804 @@
+package com.amosyuen.videorecorder.recorder;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.amosyuen.videorecorder.camera.CameraControllerI;
+import com.amosyuen.videorecorder.recorder.VideoTransformerTask.FilterParams;
+import com.amosyuen.videorecorder.recorder.common.ImageSize;
+import com.amosyuen.videorecorder.recorder.params.RecorderParamsI;
+import com.amosyuen.videorecorder.util.Util;
+import com.google.common.base.Preconditions;
+
+import org.bytedeco.javacv.FFmpegFrameFilter;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameFilter;
+import org.bytedeco.javacv.FrameRecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_NV21;
+
+/**
+ * Clip recorder that encodes camera preview frames and microphone samples directly with FFmpeg.
+ * Frames are rotated, flipped and scaled to the target size while recording, so every clip is
+ * recorded as {@link CameraControllerI.Facing#BACK} with no rotation and saving the clips only
+ * needs to concatenate them instead of decoding and encoding them again.
+ * Register it as the camera {@link CameraControllerI.PreviewCallback}. Preview frames are copied
+ * into a small pool of reused frames and encoded on a dedicated thread, so that the camera is not
+ * blocked by the encoder and no garbage is created per frame. Frames are dropped while the encoder
+ * is behind and every frame in the pool is queued. Stopped clips are finished on a background
+ * thread and added to the clips on the main thread, so {@link #awaitClips} must be called before
+ * the clips are saved.
+ */
+public class FFmpegClipsRecorder implements ClipsRecorderI, CameraControllerI.PreviewCallback {
+
+    protected static final String LOG_TAG = "FFmpegClipsRecorder";
+
+    protected static final int FRAME_POOL_SIZE = 3;
+    protected static final int DEFAULT_AUDIO_CHANNEL_COUNT = 1;
+    protected static final int DEFAULT_AUDIO_SAMPLING_RATE_HZ = 44100;
+    protected static final long STOP_TIMEOUT_MILLIS = 5000;
+    protected static final long FRAME_POLL_TIMEOUT_MILLIS = 100;
+
+    // Params
+    protected final CameraControllerI mCameraController;
+    protected final RecorderParamsI mParams;
+    protected final File mTempDirectory;
+    protected final TransformFilterFactory mFilterFactory;
+    protected MediaClipsRecorder.MediaClipsRecorderListener mListener;
+    protected MediaClipsRecorder.ClipsListener mClipsListener;
+    protected long mMaxRecordedMillis;
+    protected long mMaxRecordedBytes;
+    protected ClipMetadataCache mClipMetadataCache = ClipMetadataCache.getInstance();
+    protected ClipManifest mClipManifest;
+
+    // State
+    protected final Handler mHandler;
+    protected final Object mFrameLock = new Object();
+    protected final List<MediaClipsRecorder.Clip> mClips = new ArrayList<>();
+    // Stopped clips that are not finished yet. Guarded by itself
+    protected final List<ClipRecording> mFinishingRecordings = new ArrayList<>();
+    protected ExecutorService mFinishExecutor;
+    protected CameraControllerI.Facing mFacing;
+    protected int mViewOrientationDegrees;
+    // Set under mFrameLock
+    protected volatile ClipRecording mRecording;
+    protected volatile boolean mLimitReached;
+
+    public FFmpegClipsRecorder(
+            @NonNull CameraControllerI cameraController,
+            @NonNull RecorderParamsI params,
+            @NonNull File tempDirectory) {
+        mHandler = new Handler();
+        mCameraController = Preconditions.checkNotNull(cameraController);
+        mParams = Preconditions.checkNotNull(params);
+        mTempDirectory = Preconditions.checkNotNull(tempDirectory);
+        mFilterFactory = new TransformFilterFactory(params);
+    }
+
+    @Override
+    public void setMediaClipsRecorderListener(
+            MediaClipsRecorder.MediaClipsRecorderListener listener) {
+        mListener = listener;
+    }
+
+    public MediaClipsRecorder.ClipsListener getClipsListener() {
+        return mClipsListener;
+    }
+
+    @Override
+    public void setClipsListener(MediaClipsRecorder.ClipsListener clipsListener) {
+        mClipsListener = clipsListener;
+    }
+
+    public long getMaxRecordedMillis() {
+        return mMaxRecordedMillis;
+    }
+
+    /**
+     * Sets the max total recorded millis across all clips. Zero or less means no limit.
+     */
+    public void setMaxRecordedMillis(long maxRecordedMillis) {
+        mMaxRecordedMillis = maxRecordedMillis;
+    }
+
+    public long getMaxRecordedBytes() {
+        return mMaxRecordedBytes;
+    }
+
+    /**
+     * Sets the max total recorded bytes across all clips. Zero or less means no limit.
+     */
+    public void setMaxRecordedBytes(long maxRecordedBytes) {
+        mMaxRecordedBytes = maxRecordedBytes;
+    }
+
+    public ClipMetadataCache getClipMetadataCache() {
+        return mClipMetadataCache;
+    }
+
+    /**
+     * Sets the cache to add the metadata of recorded clips to. Default value is
+     * {@link ClipMetadataCache#getInstance()}.
+     */
+    public void setClipMetadataCache(ClipMetadataCache clipMetadataCache) {
+        mClipMetadataCache = clipMetadataCache;
+    }
+
+    public ClipManifest getClipManifest() {
+        return mClipManifest;
+    }
+
+    @Override
+    public void setClipManifest(ClipManifest clipManifest) {
+        mClipManifest = clipManifest;
+    }
+
+    @Override
+    public void restoreClips() {
+        if (mClipManifest == null || isRecording()) {
+            return;
+        }
+        for (MediaClipsRecorder.Clip clip : mClipManifest.load()) {
+            if (mClips.contains(clip)) {
+                continue;
+            }
+            Log.v(LOG_TAG, String.format("Restored clip %s", clip));
+            mClips.add(clip);
+            if (mClipsListener != null) {
+                mClipsListener.onClipAdded(clip);
+            }
+        }
+    }
+
+    protected void saveClipManifest() {
+        if (mClipManifest != null) {
+            mClipManifest.save(mClips);
+        }
+    }
+
+    @Override
+    public CameraControllerI.Facing getFacing() {
+        return mFacing;
+    }
+
+    @Override
+    public void setFacing(CameraControllerI.Facing facing) {
+        mFacing = facing;
+    }
+
+    @Override
+    public int getViewOrientationDegrees() {
+        return mViewOrientationDegrees;
+    }
+
+    @Override
+    public void setViewOrientationDegrees(int viewOrientationDegrees) {
+        mViewOrientationDegrees = viewOrientationDegrees;
+    }
+
+    @Override
+    public List<MediaClipsRecorder.Clip> getClips() {
+        return mClips;
+    }
+
+    @Override
+    public boolean isRecording() {
+        return mRecording != null;
+    }
+
+    @Override
+    public long getCurrentRecordedTimeMillis() {
+        ClipRecording recording = mRecording;
+        return recording == null ? 0 : recording.getDurationMillis();
+    }
+
+    @Override
+    public long getRecordedMillis() {
+        long recordedTimeMillis = getCurrentRecordedTimeMillis();
+        for (MediaClipsRecorder.Clip clip : mClips) {
+            recordedTimeMillis += clip.getDurationMillis();
+        }
+        synchronized (mFinishingRecordings) {
+            for (ClipRecording recording : mFinishingRecordings) {
+                if (!recording.mIsDiscarded) {
+                    recordedTimeMillis += recording.getDurationMillis();
+                }
+            }
+        }
+        return recordedTimeMillis;
+    }
+
+    @Override
+    public long getCurrentRecordedBytes() {
+        ClipRecording recording = mRecording;
+        return recording == null ? 0 : recording.mFile.length();
+    }
+
+    @Override
+    public long getRecordedBytes() {
+        long recordedBytes = getCurrentRecordedBytes();
+        for (MediaClipsRecorder.Clip clip : mClips) {
+            recordedBytes += clip.getBytes();
+        }
+        synchronized (mFinishingRecordings) {
+            for (ClipRecording recording : mFinishingRecordings) {
+                if (!recording.mIsDiscarded) {
+                    recordedBytes += recording.mFile.length();
+                }
+            }
+        }
+        return recordedBytes;
+    }
+
+    @Override
+    public void start() {
+        if (isRecording()) {
+            return;
+        }
+        Log.v(LOG_TAG, "Preparing recorder");
+        File file = null;
+        FFmpegFrameRecorder recorder = null;
+        FFmpegFrameFilter filter = null;
+        ClipRecording recording;
+        try {
+            ImageSize previewSize = mCameraController.getPreviewSize();
+            int cameraFrameRate = mCameraController.getFrameRateRange()[1] / 1000;
+            FilterParams filterParams = FilterParams.create(
+                    previewSize, cameraFrameRate, mFacing, mViewOrientationDegrees);
+            ImageSize outputSize = mFilterFactory.calculateTransformedSize(filterParams);
+
+            if (mFilterFactory.needsFilter(filterParams)) {
+                filter = mFilterFactory.createFilter(filterParams, outputSize);
+                filter.setPixelFormat(AV_PIX_FMT_NV21);
+                filter.start();
+            }
+
+            file = File.createTempFile("ffmpeg-clips-",
+                    "." + mParams.getOutputFormat().getFileExtension(), mTempDirectory);
+            file.deleteOnExit();
+            recorder = Util.createFrameRecorder(file, mParams);
+            if (recorder.getAudioChannels() < 0) {
+                recorder.setAudioChannels(DEFAULT_AUDIO_CHANNEL_COUNT);
+            }
+            recorder.setSampleRate(
+                    mParams.getAudioSamplingRateHz().or(DEFAULT_AUDIO_SAMPLING_RATE_HZ));
+            recorder.setFrameRate(mParams.getVideoFrameRate().or(cameraFrameRate));
+            recorder.setImageWidth(outputSize.getWidthUnchecked());
+            recorder.setImageHeight(outputSize.getHeightUnchecked());
+            // Clips are only read locally when saving, so moving the index to the front of the
+            // file when the clip stops would only add a rewrite
+            recorder.setFastStart(false);
+            recorder.start();
+
+            recording = new ClipRecording(file, recorder, filter, previewSize);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Error preparing recorder", e);
+            releaseRecorder(recorder, filter);
+            if (file != null) {
+                file.delete();
+            }
+            notifyError(e);
+            return;
+        }
+
+        mLimitReached = false;
+        synchronized (mFrameLock) {
+            mRecording = recording;
+            recording.start();
+        }
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data) {
+        synchronized (mFrameLock) {
+            ClipRecording recording = mRecording;
+            if (recording == null || !recording.queueFrame(data)) {
+                return;
+            }
+        }
+        checkLimits();
+    }
+
+    protected void checkLimits() {
+        if (mLimitReached) {
+            return;
+        }
+        if (mMaxRecordedMillis > 0 && getRecordedMillis() >= mMaxRecordedMillis) {
+            mLimitReached = true;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mListener != null) {
+                        mListener.onMediaRecorderMaxDurationReached();
+                    }
+                }
+            });
+        } else if (mMaxRecordedBytes > 0 && getRecordedBytes() >= mMaxRecordedBytes) {
+            mLimitReached = true;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mListener != null) {
+                        mListener.onMediaRecorderMaxFileSizeReached();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops recording the current clip. The clip is finished on a background thread, since that
+     * waits for the queued frames to be encoded, and is added to the clips on the main thread once
+     * it is finished.
+     */
+    @Override
+    public void stop() {
+        final ClipRecording recording;
+        synchronized (mFrameLock) {
+            recording = mRecording;
+            if (recording == null) {
+                return;
+            }
+            mRecording = null;
+            recording.mStopTimeMillis = SystemClock.uptimeMillis();
+        }
+        Log.v(LOG_TAG, "Stopping recorder");
+        synchronized (mFinishingRecordings) {
+            mFinishingRecordings.add(recording);
+        }
+        if (mFinishExecutor == null) {
+            mFinishExecutor = Executors.newSingleThreadExecutor();
+        }
+        mFinishExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final MediaClipsRecorder.Clip clip = recording.finish();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onRecordingFinished(recording, clip);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Called on the main thread when a stopped clip is finished. The clip is null if it could not
+     * be finished.
+     */
+    protected void onRecordingFinished(
+            ClipRecording recording, @Nullable MediaClipsRecorder.Clip clip) {
+        try {
+            if (clip == null) {
+                return;
+            }
+            if (recording.mIsDiscarded) {
+                Log.v(LOG_TAG, String.format("Discarded clip %s", clip));
+                clip.getFile().delete();
+                if (mClipMetadataCache != null) {
+                    mClipMetadataCache.remove(clip.getFile());
+                }
+                return;
+            }
+            mClips.add(clip);
+            saveClipManifest();
+            if (mClipsListener != null) {
+                mClipsListener.onClipAdded(clip);
+            }
+        } finally {
+            synchronized (mFinishingRecordings) {
+                mFinishingRecordings.remove(recording);
+                mFinishingRecordings.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void awaitClips() throws InterruptedException {
+        synchronized (mFinishingRecordings) {
+            while (!mFinishingRecordings.isEmpty()) {
+                mFinishingRecordings.wait();
+            }
+        }
+    }
+
+    protected static void releaseRecorder(
+            @Nullable FFmpegFrameRecorder recorder, @Nullable FFmpegFrameFilter filter) {
+        if (recorder != null) {
+            try {
+                recorder.release();
+            } catch (FrameRecorder.Exception e) {
+                Log.e(LOG_TAG, "Error releasing recorder", e);
+            }
+        }
+        if (filter != null) {
+            try {
+                filter.release();
+            } catch (FrameFilter.Exception e) {
+                Log.e(LOG_TAG, "Error releasing filter", e);
+            }
+        }
+    }
+
+    /**
+     * Stops recording without waiting for the current clip to be finished.
+     */
+    @Override
+    public void release() {
+        stop();
+        if (mFinishExecutor != null) {
+            // Clips that are still being finished are finished before the executor exits
+            mFinishExecutor.shutdown();
+            mFinishExecutor = null;
+        }
+    }
+
+    @Override
+    public void deleteClips() {
+        synchronized (mFinishingRecordings) {
+            for (ClipRecording recording : mFinishingRecordings) {
+                recording.mIsDiscarded = true;
+            }
+        }
+        for (MediaClipsRecorder.Clip clip : mClips) {
+            clip.getFile().delete();
+            if (mClipMetadataCache != null) {
+                mClipMetadataCache.remove(clip.getFile());
+            }
+            if (mClipsListener != null) {
+                mClipsListener.onClipRemoved(clip);
+            }
+        }
+        mClips.clear();
+        saveClipManifest();
+    }
+
+    @Override
+    public void removeLastClip() {
+        if (isRecording()) {
+            return;
+        }
+        synchronized (mFinishingRecordings) {
+            // The last clip is the latest one that is still being finished, if any
+            for (int i = mFinishingRecordings.size() - 1; i >= 0; i--) {
+                ClipRecording recording = mFinishingRecordings.get(i);
+                if (!recording.mIsDiscarded) {
+                    recording.mIsDiscarded = true;
+                    return;
+                }
+            }
+        }
+        if (mClips.isEmpty()) {
+            return;
+        }
+        MediaClipsRecorder.Clip clip = mClips.remove(mClips.size() - 1);
+        clip.getFile().delete();
+        saveClipManifest();
+        if (mClipMetadataCache != null) {
+            mClipMetadataCache.remove(clip.getFile());
+        }
+        if (mClipsListener != null) {
+            mClipsListener.onClipRemoved(clip);
+        }
+    }
+
+    protected void notifyError(final Exception e) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) {
+                    mListener.onMediaRecorderError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Recorder, frames and threads of a single clip. The camera callback only copies frames into
+     * the free frames and queues them under the frame lock, while the encoder and audio threads
+     * share the recorder under its own lock, so the camera is never blocked by encoding.
+     */
+    protected class ClipRecording {
+        protected final File mFile;
+        protected final FFmpegFrameRecorder mRecorder;
+        @Nullable
+        protected final FFmpegFrameFilter mFilter;
+        protected final Object mRecorderLock = new Object();
+        protected final BlockingQueue<Frame> mFreeFrames;
+        protected final BlockingQueue<Frame> mQueuedFrames;
+        protected final EncoderThread mEncoderThread;
+        protected final AudioThread mAudioThread;
+        // Guarded by mFrameLock
+        protected volatile boolean mHasFirstFrame;
+        protected volatile long mStartTimeMillis;
+        protected volatile long mStopTimeMillis;
+        // Guarded by mRecorderLock
+        protected boolean mIsReleased;
+        // Set on the main thread when the clip is removed before it is finished
+        protected volatile boolean mIsDiscarded;
+
+        protected ClipRecording(File file, FFmpegFrameRecorder recorder,
+                @Nullable FFmpegFrameFilter filter, ImageSize frameSize) throws IOException {
+            mFile = file;
+            mRecorder = recorder;
+            mFilter = filter;
+            mFreeFrames = new ArrayBlockingQueue<>(FRAME_POOL_SIZE);
+            mQueuedFrames = new ArrayBlockingQueue<>(FRAME_POOL_SIZE);
+            for (int i = 0; i < FRAME_POOL_SIZE; i++) {
+                Frame frame = new Frame(frameSize.getWidthUnchecked(),
+                        frameSize.getHeightUnchecked(), Frame.DEPTH_UBYTE, 2);
+                // The stride of NV21 is the stride of its luma plane, which is the width
+                frame.imageStride = frame.imageWidth;
+                mFreeFrames.add(frame);
+            }
+            mEncoderThread = new EncoderThread(this);
+            mAudioThread = new AudioThread(
+                    this, recorder.getSampleRate(), recorder.getAudioChannels());
+        }
+
+        protected void start() {
+            mStartTimeMillis = SystemClock.uptimeMillis();
+            mEncoderThread.start();
+            mAudioThread.start();
+        }
+
+        protected long getDurationMillis() {
+            long stopTimeMillis = mStopTimeMillis;
+            return Math.max(0, (stopTimeMillis > 0 ? stopTimeMillis : SystemClock.uptimeMillis())
+                    - mStartTimeMillis);
+        }
+
+        /**
+         * Copies the frame into a free frame and queues it to be encoded. Returns false if the
+         * frame was dropped since the encoder is behind. Must be called under the frame lock.
+         */
+        protected boolean queueFrame(byte[] data) {
+            Frame frame = mFreeFrames.poll();
+            if (frame == null) {
+                Log.v(LOG_TAG, "Dropping preview frame since the encoder is behind");
+                return false;
+            }
+            if (!mHasFirstFrame) {
+                // Time the clip from the first frame rather than from when recording was started
+                mHasFirstFrame = true;
+                mStartTimeMillis = SystemClock.uptimeMillis();
+            }
+            ((ByteBuffer) frame.image[0].position(0)).put(data);
+            frame.timestamp = (SystemClock.uptimeMillis() - mStartTimeMillis) * 1000L;
+            // Never blocks since there are only as many frames as the queue holds
+            mQueuedFrames.offer(frame);
+            return true;
+        }
+
+        protected void recordFrame(Frame frame)
+                throws FrameFilter.Exception, FrameRecorder.Exception {
+            synchronized (mRecorderLock) {
+                if (mIsReleased) {
+                    return;
+                }
+                if (frame.timestamp > mRecorder.getTimestamp()) {
+                    mRecorder.setTimestamp(frame.timestamp);
+                }
+                // Recorded without a pixel format so that the recorder guesses NV21 from the two
+                // channels and uses the width as the stride, like the frames the filter outputs
+                if (mFilter == null) {
+                    mRecorder.record(frame);
+                    return;
+                }
+                mFilter.push(frame);
+                Frame filteredFrame;
+                while ((filteredFrame = mFilter.pull()) != null) {
+                    mRecorder.record(filteredFrame);
+                }
+            }
+        }
+
+        /**
+         * Returns false if the recording is released and the samples were not recorded.
+         */
+        protected boolean recordSamples(Buffer samples) throws FrameRecorder.Exception {
+            synchronized (mRecorderLock) {
+                if (mIsReleased) {
+                    return false;
+                }
+                // Drop samples before the first frame to keep audio and video in sync
+                if (mHasFirstFrame) {
+                    mRecorder.recordSamples(samples);
+                }
+                return true;
+            }
+        }
+
+        /**
+         * Waits for the queued frames to be encoded and finishes the clip file. Returns null if
+         * the clip could not be finished, in which case the file is deleted. Called on the finish
+         * thread.
+         */
+        @Nullable
+        protected MediaClipsRecorder.Clip finish() {
+            MediaClipsRecorder.Clip clip = null;
+            try {
+                mAudioThread.finish();
+                mEncoderThread.finish(STOP_TIMEOUT_MILLIS);
+                long durationMillis;
+                synchronized (mRecorderLock) {
+                    durationMillis = mRecorder.getTimestamp() / 1000L;
+                    mRecorder.stop();
+                }
+                clip = MediaClipsRecorder.Clip.create(mFile,
+                        CameraControllerI.Facing.BACK, 0, durationMillis, mFile.length());
+                Log.v(LOG_TAG, String.format("Recorded clip %s", clip));
+                if (mClipMetadataCache != null && !mIsDiscarded) {
+                    mClipMetadataCache.add(mFile);
+                }
+            } catch (Exception e) {
+                // The recorder can fail to finish the file if it is stopped immediately after it
+                // is started. In this case the output file is not properly constructed and should
+                // be deleted.
+                Log.e(LOG_TAG, "Error stopping recorder", e);
+                mFile.delete();
+                clip = null;
+            }
+            release();
+            return clip;
+        }
+
+        protected void release() {
+            mAudioThread.finish();
+            mEncoderThread.finish(0);
+            synchronized (mRecorderLock) {
+                mIsReleased = true;
+                releaseRecorder(mRecorder, mFilter);
+            }
+        }
+    }
+
+    /**
+     * Records queued preview frames and returns them to the free frames until finished. Frames that
+     * are still queued when it is finished are recorded before it exits.
+     */
+    protected class EncoderThread extends Thread {
+        protected final ClipRecording mRecording;
+        protected volatile boolean mIsRunning = true;
+
+        protected EncoderThread(ClipRecording recording) {
+            super(LOG_TAG + "-encoder");
+            mRecording = recording;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Frame frame = mRecording.mQueuedFrames.poll(
+                            FRAME_POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    if (frame == null) {
+                        if (!mIsRunning) {
+                            break;
+                        }
+                        continue;
+                    }
+                    try {
+                        mRecording.recordFrame(frame);
+                    } finally {
+                        mRecording.mFreeFrames.offer(frame);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.v(LOG_TAG, "Encoder interrupted");
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Error recording frame", e);
+                notifyError(e);
+            }
+        }
+
+        /**
+         * Waits up to the timeout for the queued frames to be recorded. A timeout of zero
+         * interrupts the thread without waiting.
+         */
+        protected void finish(long timeoutMillis) {
+            mIsRunning = false;
+            if (timeoutMillis <= 0) {
+                interrupt();
+                return;
+            }
+            try {
+                join(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (isAlive()) {
+                Log.w(LOG_TAG, "Timed out waiting for frames to be encoded");
+                interrupt();
+            }
+        }
+    }
+
+    /**
+     * Reads samples from the microphone and records them until finished.
+     */
+    protected class AudioThread extends Thread {
+        protected final ClipRecording mRecording;
+        protected final AudioRecord mAudioRecord;
+        protected final ShortBuffer mBuffer;
+        protected final short[] mSamples;
+        protected volatile boolean mIsRunning = true;
+
+        protected AudioThread(ClipRecording recording, int sampleRate, int channelCount)
+                throws IOException {
+            super(LOG_TAG + "-audio");
+            mRecording = recording;
+            int channelConfig = channelCount == 1
+                    ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
+            int bufferSize = AudioRecord.getMinBufferSize(
+                    sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+            mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate,
+                    channelConfig, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+            if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+                mAudioRecord.release();
+                throw new IOException("Unable to initialize audio record");
+            }
+            mSamples = new short[bufferSize / 2];
+            // Direct so that the recorder can reuse its pointer to the samples
+            mBuffer = ByteBuffer.allocateDirect(bufferSize)
+                    .order(ByteOrder.nativeOrder())
+                    .asShortBuffer();
+        }
+
+        @Override
+        public void run() {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+            mAudioRecord.startRecording();
+            try {
+                while (mIsRunning) {
+                    int read = mAudioRecord.read(mSamples, 0, mSamples.length);
+                    if (read <= 0) {
+                        continue;
+                    }
+                    mBuffer.clear();
+                    mBuffer.put(mSamples, 0, read);
+                    mBuffer.flip();
+                    if (!mRecording.recordSamples(mBuffer)) {
+                        break;
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Error recording audio", e);
+                notifyError(e);
+            } finally {
+                mAudioRecord.stop();
+                mAudioRecord.release();
+            }
+        }
+
+        protected void finish() {
+            mIsRunning = false;
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
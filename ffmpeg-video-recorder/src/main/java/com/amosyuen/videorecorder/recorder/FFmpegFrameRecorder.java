@@ -82,6 +82,7 @@ import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import java.util.Arrays;
 import java.util.Map.Entry;
 
 import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_AAC;
@@ -132,7 +133,9 @@ import static org.bytedeco.javacpp.avformat.avformat_network_init;
 import static org.bytedeco.javacpp.avformat.avformat_new_stream;
 import static org.bytedeco.javacpp.avformat.avformat_write_header;
 import static org.bytedeco.javacpp.avformat.avio_close;
+import static org.bytedeco.javacpp.avformat.avio_flush;
 import static org.bytedeco.javacpp.avformat.avio_open;
+import static org.bytedeco.javacpp.avformat.avio_tell;
 import static org.bytedeco.javacpp.avutil.AVMEDIA_TYPE_AUDIO;
 import static org.bytedeco.javacpp.avutil.AVMEDIA_TYPE_VIDEO;
 import static org.bytedeco.javacpp.avutil.AV_NOPTS_VALUE;
@@ -156,6 +159,7 @@ import static org.bytedeco.javacpp.avutil.AV_SAMPLE_FMT_S32;
 import static org.bytedeco.javacpp.avutil.AV_SAMPLE_FMT_S32P;
 import static org.bytedeco.javacpp.avutil.AV_SAMPLE_FMT_U8;
 import static org.bytedeco.javacpp.avutil.AV_SAMPLE_FMT_U8P;
+import static org.bytedeco.javacpp.avutil.AV_TIME_BASE;
 import static org.bytedeco.javacpp.avutil.FF_QP2LAMBDA;
 import static org.bytedeco.javacpp.avutil.av_d2q;
 import static org.bytedeco.javacpp.avutil.av_dict_free;
@@ -168,6 +172,7 @@ import static org.bytedeco.javacpp.avutil.av_get_bytes_per_sample;
 import static org.bytedeco.javacpp.avutil.av_get_default_channel_layout;
 import static org.bytedeco.javacpp.avutil.av_inv_q;
 import static org.bytedeco.javacpp.avutil.av_malloc;
+import static org.bytedeco.javacpp.avutil.av_q2d;
 import static org.bytedeco.javacpp.avutil.av_rescale_q;
 import static org.bytedeco.javacpp.avutil.av_sample_fmt_is_planar;
 import static org.bytedeco.javacpp.avutil.av_samples_get_buffer_size;
@@ -188,6 +193,17 @@ public class FFmpegFrameRecorder extends FrameRecorder {
     public static org.bytedeco.javacv.FFmpegFrameRecorder createDefault(File f, int w, int h)   throws Exception { return new org.bytedeco.javacv.FFmpegFrameRecorder(f, w, h); }
     public static org.bytedeco.javacv.FFmpegFrameRecorder createDefault(String f, int w, int h) throws Exception { return new org.bytedeco.javacv.FFmpegFrameRecorder(f, w, h); }
 
+    /** Number of recently recorded image buffers whose pointers are kept for reuse. */
+    private static final int IMAGE_POINTER_CACHE_SIZE = 8;
+
+    /** Upper bounds of the MP4 index size, used to reserve space for fast start output. */
+    private static final int INDEX_HEADER_BYTES = 16 * 1024;
+    private static final int INDEX_BYTES_PER_VIDEO_FRAME = 32;
+    private static final int INDEX_BYTES_PER_AUDIO_FRAME = 20;
+    private static final double INDEX_SIZE_MARGIN = 1.25;
+    /** MP4 flags that write a fragment for each keyframe when there is a fragment listener. */
+    private static final String FRAGMENT_MOVFLAGS = "frag_keyframe+empty_moov+default_base_moof";
+
     private static Exception loadingException = null;
     public static void tryLoad() throws Exception {
         if (loadingException != null) {
@@ -251,9 +267,12 @@ public class FFmpegFrameRecorder extends FrameRecorder {
         this.sampleRate    = 44100;
 
         this.interleaved = true;
+        this.threadCount = -1;
+        this.threadType = -1;
 
         this.video_pkt = new AVPacket();
         this.audio_pkt = new AVPacket();
+        this.time_base_q = new AVRational().num(1).den(AV_TIME_BASE);
     }
     public void release() throws Exception {
         synchronized (org.bytedeco.javacpp.avcodec.class) {
@@ -282,6 +301,13 @@ public class FFmpegFrameRecorder extends FrameRecorder {
             av_frame_free(tmp_picture);
             tmp_picture = null;
         }
+        picture_av = null;
+        tmp_picture_av = null;
+        picture_ptr = null;
+        tmp_picture_ptr = null;
+        picture_bytes = null;
+        clearImagePointers();
+        clearStreamPointers();
         if (video_outbuf != null) {
             av_free(video_outbuf);
             video_outbuf = null;
@@ -352,11 +378,29 @@ public class FFmpegFrameRecorder extends FrameRecorder {
 
     private String filename;
     private AVFrame picture, tmp_picture;
+    private AVPicture picture_av, tmp_picture_av;
+    private PointerPointer picture_ptr, tmp_picture_ptr;
+    private BytePointer picture_bytes;
+    private IntPointer picture_linesize, tmp_picture_linesize;
+    private AVRational video_c_time_base, video_st_time_base, audio_c_time_base, audio_st_time_base;
+    private AVIOContext oc_pb;
     private BytePointer picture_buf;
+    private final Buffer[] image_buffers = new Buffer[IMAGE_POINTER_CACHE_SIZE];
+    private final BytePointer[] image_ptrs = new BytePointer[IMAGE_POINTER_CACHE_SIZE];
+    private int image_cache_next;
+    private BytePointer image_copy;
+    private long pointer_allocations;
+    private volatile long mux_nanos, packet_bytes;
+    private int threadCount, threadType;
+    private boolean fastStart;
+    private long expectedLengthInTime;
+    private FragmentListener fragmentListener;
+    private long fragment_offset;
     private BytePointer video_outbuf;
     private int video_outbuf_size;
     private AVFrame frame;
     private Pointer[] samples_in;
+    private Buffer[] samples_in_buffers;
     private BytePointer[] samples_out;
     private PointerPointer samples_in_ptr;
     private PointerPointer samples_out_ptr;
@@ -374,6 +418,9 @@ public class FFmpegFrameRecorder extends FrameRecorder {
     private AVPacket video_pkt, audio_pkt;
     private int[] got_video_packet, got_audio_packet;
     private AVFormatContext ifmt_ctx;
+    private double input_video_packet_rate, input_audio_packet_rate;
+    private AVRational time_base_q;
+    private long video_last_dts, audio_last_dts;
 
     @Override public int getFrameNumber() {
         return picture == null ? super.getFrameNumber() : (int)picture.pts();
@@ -390,6 +437,163 @@ public class FFmpegFrameRecorder extends FrameRecorder {
         setFrameNumber((int)Math.round(timestamp * getFrameRate() / 1000000L));
     }
 
+    /**
+     * Returns the number of pointers that have been allocated on the Java heap to wrap the buffers of
+     * recorded frames. This stays constant while recording frames whose buffers are reused. The
+     * wrappers of the native pictures, line sizes and time bases that every frame uses are created
+     * once when the recorder starts and are not counted. Allocations made by the native encoder and
+     * muxer are not covered.
+     */
+    public long getPointerAllocationCount() {
+        return pointer_allocations;
+    }
+
+    /**
+     * Returns the total time in nanoseconds spent writing packets to the output.
+     */
+    public long getMuxNanos() {
+        return mux_nanos;
+    }
+
+    /**
+     * Returns the total size in bytes of the packets written to the output.
+     */
+    public long getPacketBytes() {
+        return packet_bytes;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+    /**
+     * Sets the number of threads of the codecs. 0 lets the codecs choose based on the number of
+     * processors. Negative values leave the codec defaults.
+     */
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    public int getThreadType() {
+        return threadType;
+    }
+    /**
+     * Sets the threading methods of the codecs as a combination of
+     * {@link AVCodecContext#FF_THREAD_FRAME} and {@link AVCodecContext#FF_THREAD_SLICE}.
+     * Negative values leave the codec defaults.
+     */
+    public void setThreadType(int threadType) {
+        this.threadType = threadType;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public boolean isFastStart() {
+        return fastStart;
+    }
+    /**
+     * Sets whether MP4 and MOV output has the index at the front of the file so that it can be
+     * played before it is fully downloaded. If the expected length is set, space for the index is
+     * reserved at the front when the header is written. Otherwise the muxer moves the index to the
+     * front when the recorder is stopped, which rewrites the whole file.
+     */
+    public void setFastStart(boolean fastStart) {
+        this.fastStart = fastStart;
+    }
+
+    public long getExpectedLengthInTime() {
+        return expectedLengthInTime;
+    }
+    /**
+     * Sets the expected length of the recording in microseconds, which is used to reserve space
+     * for the index of fast start output. Recording longer than this may fail when the recorder is
+     * stopped. When remuxing, the space is sized from the packet rate of the input, and the index
+     * is moved when the recorder is stopped if the input does not have packet counts.
+     */
+    public void setExpectedLengthInTime(long expectedLengthInTime) {
+        this.expectedLengthInTime = expectedLengthInTime;
+    }
+
+    public FragmentListener getFragmentListener() {
+        return fragmentListener;
+    }
+    /**
+     * Sets the listener that is notified as the output file is written, so that it can be read
+     * before the recorder is stopped, such as to upload it while it is being encoded. Bytes are
+     * only final for formats that never go back to rewrite them, such as fragmented MP4 and MPEG-TS.
+     * MP4 and MOV output is fragmented at each keyframe, so that the header is notified first and
+     * every range after it is made of whole fragments that start with a moof box.
+     */
+    public void setFragmentListener(FragmentListener fragmentListener) {
+        this.fragmentListener = fragmentListener;
+    }
+
+    /**
+     * Flushes the output written since the last fragment to the file and notifies the fragment
+     * listener. Called after each write to the muxer, which only writes fragmented MP4 output
+     * when a fragment is complete, so the notified ranges end on fragment boundaries.
+     */
+    private void flushFragment() {
+        if (fragmentListener == null || (oformat.flags() & AVFMT_NOFILE) != 0) {
+            return;
+        }
+        long position = avio_tell(oc_pb);
+        if (position > fragment_offset) {
+            avio_flush(oc_pb);
+            fragmentListener.onFragmentWritten(fragment_offset, position - fragment_offset);
+            fragment_offset = position;
+        }
+    }
+
+    /**
+     * Returns a size in bytes that the MP4 index of a recording of the expected length fits in, or
+     * -1 if it cannot be estimated. The index has up to {@value #INDEX_BYTES_PER_VIDEO_FRAME} bytes
+     * per video packet and {@value #INDEX_BYTES_PER_AUDIO_FRAME} bytes per audio packet. Remuxed
+     * input can have more packets per second than its nominal frame rate, so the rate is taken
+     * from the packet counts of the input instead, and cannot be estimated without them.
+     */
+    protected long estimateIndexSize() {
+        double seconds = expectedLengthInTime / 1000000.0;
+        double bytes = INDEX_HEADER_BYTES;
+        if (video_st != null) {
+            double packetRate = frameRate;
+            if (ifmt_ctx != null) {
+                if (input_video_packet_rate <= 0) {
+                    return -1;
+                }
+                packetRate = Math.max(packetRate, input_video_packet_rate);
+            }
+            bytes += seconds * packetRate * INDEX_BYTES_PER_VIDEO_FRAME;
+        }
+        if (audio_st != null) {
+            int audioFrameSize = audio_c != null && audio_c.frame_size() > 0
+                    ? audio_c.frame_size() : 1024;
+            double packetRate = (double) sampleRate / audioFrameSize;
+            if (ifmt_ctx != null) {
+                if (input_audio_packet_rate <= 0) {
+                    return -1;
+                }
+                packetRate = Math.max(packetRate, input_audio_packet_rate);
+            }
+            bytes += seconds * packetRate * INDEX_BYTES_PER_AUDIO_FRAME;
+        }
+        return Math.round(bytes * INDEX_SIZE_MARGIN);
+    }
+
+    /**
+     * Returns the packets per second of the input stream from its packet count and duration, or 0
+     * if the container does not store them.
+     */
+    private static double getPacketRate(AVStream stream) {
+        if (stream == null || stream.nb_frames() <= 0 || stream.duration() <= 0
+                || stream.duration() == AV_NOPTS_VALUE) {
+            return 0;
+        }
+        double seconds = stream.duration() * av_q2d(stream.time_base());
+        return seconds > 0 ? stream.nb_frames() / seconds : 0;
+    }
+
     public void start(AVFormatContext ifmt_ctx) throws Exception {
         this.ifmt_ctx = ifmt_ctx;
         start();
@@ -405,7 +609,14 @@ public class FFmpegFrameRecorder extends FrameRecorder {
         int ret;
         picture = null;
         tmp_picture = null;
+        picture_av = null;
+        tmp_picture_av = null;
+        picture_ptr = null;
+        tmp_picture_ptr = null;
+        picture_bytes = null;
         picture_buf = null;
+        clearImagePointers();
+        clearStreamPointers();
         frame = null;
         video_outbuf = null;
         audio_outbuf = null;
@@ -416,6 +627,8 @@ public class FFmpegFrameRecorder extends FrameRecorder {
         audio_st = null;
         got_video_packet = new int[1];
         got_audio_packet = new int[1];
+        video_last_dts = AV_NOPTS_VALUE;
+        audio_last_dts = AV_NOPTS_VALUE;
 
         /* auto detect the output format from the name. */
         String format_name = format == null || format.length() == 0 ? null : format;
@@ -458,6 +671,8 @@ public class FFmpegFrameRecorder extends FrameRecorder {
                 }
             }
         }
+        input_video_packet_rate = getPacketRate(inpVideoStream);
+        input_audio_packet_rate = getPacketRate(inpAudioStream);
 
         if (imageWidth > 0 && imageHeight > 0) {
             if (videoCodec != AV_CODEC_ID_NONE) {
@@ -682,6 +897,18 @@ public class FFmpegFrameRecorder extends FrameRecorder {
             }
         }
 
+        for (AVCodecContext c : new AVCodecContext[] { video_c, audio_c }) {
+            if (c == null) {
+                continue;
+            }
+            if (threadCount >= 0) {
+                c.thread_count(threadCount);
+            }
+            if (threadType >= 0) {
+                c.thread_type(threadType);
+            }
+        }
+
         av_dump_format(oc, 0, filename, 1);
 
         /* now that all the parameters are set, we can open the audio and
@@ -733,6 +960,18 @@ public class FFmpegFrameRecorder extends FrameRecorder {
                 throw new Exception("av_frame_alloc() error: Could not allocate temporary picture.");
             }
 
+            /* wrap the pictures once so that recording frames does not allocate */
+            picture_av = new AVPicture(picture);
+            tmp_picture_av = new AVPicture(tmp_picture);
+            picture_ptr = new PointerPointer(picture);
+            tmp_picture_ptr = new PointerPointer(tmp_picture);
+            picture_bytes = new BytePointer(picture);
+            picture_linesize = picture.linesize();
+            tmp_picture_linesize = tmp_picture.linesize();
+        }
+
+        /* also set when copying packets, so that the rotation of remuxed video can be set */
+        if (video_st != null) {
             AVDictionary metadata = new AVDictionary(null);
             for (Entry<String, String> e : videoMetadata.entrySet()) {
                 av_dict_set(metadata, e.getKey(), e.getValue(), 0);
@@ -785,6 +1024,7 @@ public class FFmpegFrameRecorder extends FrameRecorder {
                 samples_out[i] = new BytePointer(av_malloc(data_size)).capacity(data_size);
             }
             samples_in = new Pointer[AVFrame.AV_NUM_DATA_POINTERS];
+            samples_in_buffers = new Buffer[AVFrame.AV_NUM_DATA_POINTERS];
             samples_in_ptr  = new PointerPointer(AVFrame.AV_NUM_DATA_POINTERS);
             samples_out_ptr = new PointerPointer(AVFrame.AV_NUM_DATA_POINTERS);
 
@@ -816,6 +1056,24 @@ public class FFmpegFrameRecorder extends FrameRecorder {
         for (Entry<String, String> e : this.options.entrySet()) {
             av_dict_set(options, e.getKey(), e.getValue(), 0);
         }
+        boolean isMp4 = "mp4".equals(format_name) || "mov".equals(format_name);
+        if (fragmentListener != null && isMp4) {
+            // Fragments are only final as they are written when the output is fragmented
+            String movflags = this.options.get("movflags");
+            if (movflags == null || !movflags.contains("frag_keyframe")) {
+                av_dict_set(options, "movflags", movflags == null
+                        ? FRAGMENT_MOVFLAGS : movflags + "+" + FRAGMENT_MOVFLAGS, 0);
+            }
+        } else if (fastStart && isMp4) {
+            long indexSize = expectedLengthInTime > 0 ? estimateIndexSize() : -1;
+            if (indexSize > 0) {
+                av_dict_set(options, "moov_size", "" + indexSize, 0);
+            } else {
+                // Moving the index rewrites the file, but cannot fail like a reservation that is
+                // too small
+                av_dict_set(options, "movflags", "faststart", 0);
+            }
+        }
         AVDictionary metadata = new AVDictionary(null);
         for (Entry<String, String> e : this.metadata.entrySet()) {
             av_dict_set(metadata, e.getKey(), e.getValue(), 0);
@@ -823,6 +1081,19 @@ public class FFmpegFrameRecorder extends FrameRecorder {
         /* write the stream header, if any */
         avformat_write_header(oc.metadata(metadata), options);
         av_dict_free(options);
+
+        /* the header sets the stream time bases, so wrap them once it is written */
+        if (video_st != null) {
+            video_c_time_base = video_c.time_base();
+            video_st_time_base = video_st.time_base();
+        }
+        if (audio_st != null) {
+            audio_c_time_base = audio_c.time_base();
+            audio_st_time_base = audio_st.time_base();
+        }
+        oc_pb = oc.pb();
+        fragment_offset = 0;
+        flushFragment();
     }
 
     public void stop() throws Exception {
@@ -839,7 +1110,14 @@ public class FFmpegFrameRecorder extends FrameRecorder {
                 }
 
                 /* write the trailer, if any */
-                av_write_trailer(oc);
+                int ret = av_write_trailer(oc);
+                if (ret < 0) {
+                    throw new Exception("av_write_trailer() error " + ret + ": Could not write trailer. Was the reserved index size too small?");
+                }
+                flushFragment();
+                if (fragmentListener != null) {
+                    fragmentListener.onOutputFinished(fragment_offset);
+                }
             } finally {
                 release();
             }
@@ -875,9 +1153,7 @@ public class FFmpegFrameRecorder extends FrameRecorder {
                passing the same picture again */
         } else {
             int step = stride * Math.abs(depth) / 8;
-            BytePointer data = image[0] instanceof ByteBuffer
-                    ? new BytePointer((ByteBuffer)image[0].position(0))
-                    : new BytePointer(new Pointer(image[0].position(0)));
+            BytePointer data = imagePointer(image[0]);
 
             if (pixelFormat == AV_PIX_FMT_NONE) {
                 if ((depth == Frame.DEPTH_UBYTE || depth == Frame.DEPTH_BYTE) && channels == 3) {
@@ -905,8 +1181,8 @@ public class FFmpegFrameRecorder extends FrameRecorder {
                 if (img_convert_ctx == null) {
                     throw new Exception("sws_getCachedContext() error: Cannot initialize the conversion context.");
                 }
-                avpicture_fill(new AVPicture(tmp_picture), data, pixelFormat, width, height);
-                avpicture_fill(new AVPicture(picture), picture_buf, video_c.pix_fmt(), video_c.width(), video_c.height());
+                avpicture_fill(tmp_picture_av, data, pixelFormat, width, height);
+                avpicture_fill(picture_av, picture_buf, video_c.pix_fmt(), video_c.width(), video_c.height());
                 tmp_picture.linesize(0, step);
                 tmp_picture.format(pixelFormat);
                 tmp_picture.width(width);
@@ -914,10 +1190,10 @@ public class FFmpegFrameRecorder extends FrameRecorder {
                 picture.format(video_c.pix_fmt());
                 picture.width(video_c.width());
                 picture.height(video_c.height());
-                sws_scale(img_convert_ctx, new PointerPointer(tmp_picture), tmp_picture.linesize(),
-                        0, height, new PointerPointer(picture), picture.linesize());
+                sws_scale(img_convert_ctx, tmp_picture_ptr, tmp_picture_linesize,
+                        0, height, picture_ptr, picture_linesize);
             } else {
-                avpicture_fill(new AVPicture(picture), data, pixelFormat, width, height);
+                avpicture_fill(picture_av, data, pixelFormat, width, height);
                 picture.linesize(0, step);
                 picture.format(pixelFormat);
                 picture.width(width);
@@ -933,7 +1209,7 @@ public class FFmpegFrameRecorder extends FrameRecorder {
             av_init_packet(video_pkt);
             video_pkt.flags(video_pkt.flags() | AV_PKT_FLAG_KEY);
             video_pkt.stream_index(video_st.index());
-            video_pkt.data(new BytePointer(picture));
+            video_pkt.data(picture_bytes);
             video_pkt.size(Loader.sizeof(AVPicture.class));
         } else {
             /* encode the image */
@@ -949,10 +1225,10 @@ public class FFmpegFrameRecorder extends FrameRecorder {
             /* if zero size, it means the image was buffered */
             if (got_video_packet[0] != 0) {
                 if (video_pkt.pts() != AV_NOPTS_VALUE) {
-                    video_pkt.pts(av_rescale_q(video_pkt.pts(), video_c.time_base(), video_st.time_base()));
+                    video_pkt.pts(av_rescale_q(video_pkt.pts(), video_c_time_base, video_st_time_base));
                 }
                 if (video_pkt.dts() != AV_NOPTS_VALUE) {
-                    video_pkt.dts(av_rescale_q(video_pkt.dts(), video_c.time_base(), video_st.time_base()));
+                    video_pkt.dts(av_rescale_q(video_pkt.dts(), video_c_time_base, video_st_time_base));
                 }
                 video_pkt.stream_index(video_st.index());
             } else {
@@ -964,6 +1240,57 @@ public class FFmpegFrameRecorder extends FrameRecorder {
         return image != null ? (video_pkt.flags() & AV_PKT_FLAG_KEY) != 0 : got_video_packet[0] != 0;
     }
 
+    /**
+     * Returns a pointer to the image buffer. A direct buffer is wrapped without copying. Grabbers,
+     * filters and frame pools reuse a few buffers for every frame, so the wrappers of recently
+     * recorded buffers are cached. A buffer backed by an array is copied into a reused native
+     * buffer.
+     */
+    private BytePointer imagePointer(Buffer buffer) throws Exception {
+        buffer.position(0);
+        if (buffer.isDirect()) {
+            for (int i = 0; i < image_buffers.length; i++) {
+                if (image_buffers[i] == buffer) {
+                    return image_ptrs[i].position(0);
+                }
+            }
+            int i = image_cache_next;
+            image_cache_next = (i + 1) % image_buffers.length;
+            image_buffers[i] = buffer;
+            image_ptrs[i] = buffer instanceof ByteBuffer
+                    ? new BytePointer((ByteBuffer)buffer)
+                    : new BytePointer(new Pointer(buffer));
+            pointer_allocations++;
+            return image_ptrs[i].position(0);
+        } else if (buffer instanceof ByteBuffer && buffer.hasArray()) {
+            ByteBuffer b = (ByteBuffer)buffer;
+            int size = b.limit();
+            if (image_copy == null || image_copy.capacity() < size) {
+                image_copy = new BytePointer(size);
+                pointer_allocations++;
+            }
+            return image_copy.position(0).put(b.array(), b.arrayOffset(), size).position(0);
+        }
+        throw new Exception("Image Buffer must be direct or backed by a byte array: " + buffer);
+    }
+
+    private void clearStreamPointers() {
+        picture_linesize = null;
+        tmp_picture_linesize = null;
+        video_c_time_base = null;
+        video_st_time_base = null;
+        audio_c_time_base = null;
+        audio_st_time_base = null;
+        oc_pb = null;
+    }
+
+    private void clearImagePointers() {
+        Arrays.fill(image_buffers, null);
+        Arrays.fill(image_ptrs, null);
+        image_cache_next = 0;
+        image_copy = null;
+    }
+
     public boolean recordSamples(Buffer ... samples) throws Exception {
         return recordSamples(0, 0, samples);
     }
@@ -991,10 +1318,13 @@ public class FFmpegFrameRecorder extends FrameRecorder {
             inputDepth = 1;
             for (int i = 0; i < samples.length; i++) {
                 ByteBuffer b = (ByteBuffer)samples[i];
-                if (samples_in[i] instanceof BytePointer && samples_in[i].capacity() >= inputSize && b.hasArray()) {
+                if (reuseSamplesIn(i, b)) {
+                    continue;
+                }
+                if (samples_in[i] instanceof BytePointer && samples_in_buffers[i] == null && samples_in[i].capacity() >= inputSize && b.hasArray()) {
                     ((BytePointer)samples_in[i]).position(0).put(b.array(), b.position(), inputSize);
                 } else {
-                    samples_in[i] = new BytePointer(b);
+                    setSamplesIn(i, b, new BytePointer(b));
                 }
             }
         } else if (samples != null && samples[0] instanceof ShortBuffer) {
@@ -1002,10 +1332,13 @@ public class FFmpegFrameRecorder extends FrameRecorder {
             inputDepth = 2;
             for (int i = 0; i < samples.length; i++) {
                 ShortBuffer b = (ShortBuffer)samples[i];
-                if (samples_in[i] instanceof ShortPointer && samples_in[i].capacity() >= inputSize && b.hasArray()) {
+                if (reuseSamplesIn(i, b)) {
+                    continue;
+                }
+                if (samples_in[i] instanceof ShortPointer && samples_in_buffers[i] == null && samples_in[i].capacity() >= inputSize && b.hasArray()) {
                     ((ShortPointer)samples_in[i]).position(0).put(b.array(), samples[i].position(), inputSize);
                 } else {
-                    samples_in[i] = new ShortPointer(b);
+                    setSamplesIn(i, b, new ShortPointer(b));
                 }
             }
         } else if (samples != null && samples[0] instanceof IntBuffer) {
@@ -1013,10 +1346,13 @@ public class FFmpegFrameRecorder extends FrameRecorder {
             inputDepth = 4;
             for (int i = 0; i < samples.length; i++) {
                 IntBuffer b = (IntBuffer)samples[i];
-                if (samples_in[i] instanceof IntPointer && samples_in[i].capacity() >= inputSize && b.hasArray()) {
+                if (reuseSamplesIn(i, b)) {
+                    continue;
+                }
+                if (samples_in[i] instanceof IntPointer && samples_in_buffers[i] == null && samples_in[i].capacity() >= inputSize && b.hasArray()) {
                     ((IntPointer)samples_in[i]).position(0).put(b.array(), samples[i].position(), inputSize);
                 } else {
-                    samples_in[i] = new IntPointer(b);
+                    setSamplesIn(i, b, new IntPointer(b));
                 }
             }
         } else if (samples != null && samples[0] instanceof FloatBuffer) {
@@ -1024,10 +1360,13 @@ public class FFmpegFrameRecorder extends FrameRecorder {
             inputDepth = 4;
             for (int i = 0; i < samples.length; i++) {
                 FloatBuffer b = (FloatBuffer)samples[i];
-                if (samples_in[i] instanceof FloatPointer && samples_in[i].capacity() >= inputSize && b.hasArray()) {
+                if (reuseSamplesIn(i, b)) {
+                    continue;
+                }
+                if (samples_in[i] instanceof FloatPointer && samples_in_buffers[i] == null && samples_in[i].capacity() >= inputSize && b.hasArray()) {
                     ((FloatPointer)samples_in[i]).position(0).put(b.array(), b.position(), inputSize);
                 } else {
-                    samples_in[i] = new FloatPointer(b);
+                    setSamplesIn(i, b, new FloatPointer(b));
                 }
             }
         } else if (samples != null && samples[0] instanceof DoubleBuffer) {
@@ -1035,10 +1374,13 @@ public class FFmpegFrameRecorder extends FrameRecorder {
             inputDepth = 8;
             for (int i = 0; i < samples.length; i++) {
                 DoubleBuffer b = (DoubleBuffer)samples[i];
-                if (samples_in[i] instanceof DoublePointer && samples_in[i].capacity() >= inputSize && b.hasArray()) {
+                if (reuseSamplesIn(i, b)) {
+                    continue;
+                }
+                if (samples_in[i] instanceof DoublePointer && samples_in_buffers[i] == null && samples_in[i].capacity() >= inputSize && b.hasArray()) {
                     ((DoublePointer)samples_in[i]).position(0).put(b.array(), b.position(), inputSize);
                 } else {
-                    samples_in[i] = new DoublePointer(b);
+                    setSamplesIn(i, b, new DoublePointer(b));
                 }
             }
         } else if (samples != null) {
@@ -1098,6 +1440,25 @@ public class FFmpegFrameRecorder extends FrameRecorder {
         return samples != null ? frame.key_frame() != 0 : record((AVFrame)null);
     }
 
+    /**
+     * Reuses the pointer that already wraps the direct buffer for the plane, as grabbers reuse
+     * their sample buffers for every frame. Returns whether the pointer was reused.
+     */
+    private boolean reuseSamplesIn(int i, Buffer b) {
+        if (!b.isDirect() || samples_in_buffers[i] != b || samples_in[i] == null) {
+            return false;
+        }
+        samples_in[i].position(b.position());
+        return true;
+    }
+
+    private void setSamplesIn(int i, Buffer b, Pointer p) {
+        samples_in[i] = p;
+        // Only direct buffers are wrapped, other buffers are copied into the pointer
+        samples_in_buffers[i] = b.isDirect() ? b : null;
+        pointer_allocations++;
+    }
+
     boolean record(AVFrame frame) throws Exception {
         int ret;
 
@@ -1112,10 +1473,10 @@ public class FFmpegFrameRecorder extends FrameRecorder {
         }
         if (got_audio_packet[0] != 0) {
             if (audio_pkt.pts() != AV_NOPTS_VALUE) {
-                audio_pkt.pts(av_rescale_q(audio_pkt.pts(), audio_c.time_base(), audio_st.time_base()));
+                audio_pkt.pts(av_rescale_q(audio_pkt.pts(), audio_c_time_base, audio_st_time_base));
             }
             if (audio_pkt.dts() != AV_NOPTS_VALUE) {
-                audio_pkt.dts(av_rescale_q(audio_pkt.dts(), audio_c.time_base(), audio_st.time_base()));
+                audio_pkt.dts(av_rescale_q(audio_pkt.dts(), audio_c_time_base, audio_st_time_base));
             }
             audio_pkt.flags(audio_pkt.flags() | AV_PKT_FLAG_KEY);
             audio_pkt.stream_index(audio_st.index());
@@ -1136,6 +1497,9 @@ public class FFmpegFrameRecorder extends FrameRecorder {
 
         synchronized (oc) {
             int ret;
+            long startNanos = System.nanoTime();
+            // The packet is unreferenced by the write
+            packet_bytes += avPacket.size();
             if (interleaved && avStream != null) {
                 if ((ret = av_interleaved_write_frame(oc, avPacket)) < 0) {
                     throw new Exception("av_interleaved_write_frame() error " + ret + " while writing interleaved " + mediaTypeStr + " packet.");
@@ -1145,6 +1509,8 @@ public class FFmpegFrameRecorder extends FrameRecorder {
                     throw new Exception("av_write_frame() error " + ret + " while writing " + mediaTypeStr + " packet.");
                 }
             }
+            mux_nanos += System.nanoTime() - startNanos;
+            flushFragment();
         }
     }
 
@@ -1180,4 +1546,77 @@ public class FFmpegFrameRecorder extends FrameRecorder {
         return true;
     }
 
+    /**
+     * Writes a compressed packet read from {@code inputContext} without decoding it. The packet
+     * timestamps are rebased so that the input starts {@code timestampOffset} microseconds into the
+     * output, which allows packets from several inputs to be concatenated. The input streams must
+     * have the same codec parameters as the context passed to {@link #start(AVFormatContext)}.
+     */
+    public boolean recordPacket(AVPacket pkt, AVFormatContext inputContext, long timestampOffset) throws Exception {
+        if (pkt == null) {
+            return false;
+        }
+
+        AVStream in_stream = inputContext.streams(pkt.stream_index());
+        int mediaType = in_stream.codec().codec_type();
+        AVStream out_stream;
+        long last_dts;
+        if (mediaType == AVMEDIA_TYPE_VIDEO && video_st != null) {
+            out_stream = video_st;
+            last_dts = video_last_dts;
+        } else if (mediaType == AVMEDIA_TYPE_AUDIO && audio_st != null && audioChannels > 0) {
+            out_stream = audio_st;
+            last_dts = audio_last_dts;
+        } else {
+            av_free_packet(pkt);
+            return false;
+        }
+
+        AVRational in_time_base = in_stream.time_base();
+        AVRational out_time_base = out_stream.time_base();
+        long start_time = inputContext.start_time() != AV_NOPTS_VALUE ? inputContext.start_time() : 0;
+        long offset = av_rescale_q(timestampOffset - start_time, time_base_q, out_time_base);
+        if (pkt.dts() != AV_NOPTS_VALUE) {
+            long dts = av_rescale_q(pkt.dts(), in_time_base, out_time_base) + offset;
+            /* muxers require strictly increasing dts, which rounding at the clip boundaries may break */
+            if (last_dts != AV_NOPTS_VALUE && dts <= last_dts) {
+                dts = last_dts + 1;
+            }
+            pkt.dts(dts);
+            last_dts = dts;
+        }
+        if (pkt.pts() != AV_NOPTS_VALUE) {
+            long pts = av_rescale_q(pkt.pts(), in_time_base, out_time_base) + offset;
+            pkt.pts(pkt.dts() != AV_NOPTS_VALUE ? Math.max(pts, pkt.dts()) : pts);
+        }
+        pkt.duration((int) av_rescale_q(pkt.duration(), in_time_base, out_time_base));
+        pkt.pos(-1);
+        pkt.stream_index(out_stream.index());
+
+        if (mediaType == AVMEDIA_TYPE_VIDEO) {
+            video_last_dts = last_dts;
+        } else {
+            audio_last_dts = last_dts;
+        }
+        writePacket(mediaType, pkt);
+        av_free_packet(pkt);
+
+        return true;
+    }
+
+    /**
+     * Listener for the output file as it is written. Called on the thread that is recording.
+     */
+    public interface FragmentListener {
+        /**
+         * Called when the bytes of the output file from the offset to the offset plus the length
+         * have been written to the file.
+         */
+        void onFragmentWritten(long offset, long length);
+
+        /**
+         * Called when the recorder is stopped and the output file is complete.
+         */
+        void onOutputFinished(long length);
+    }
 }
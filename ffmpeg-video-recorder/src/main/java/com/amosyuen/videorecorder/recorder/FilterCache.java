@@ -0,0 +1,162 @@
+package com.amosyuen.videorecorder.recorder;
+
+import android.util.Log;
+
+import com.amosyuen.videorecorder.recorder.VideoTransformerTask.FilterParams;
+import com.amosyuen.videorecorder.recorder.common.ImageSize;
+import com.google.auto.value.AutoValue;
+import com.google.common.base.Preconditions;
+
+import org.bytedeco.javacv.FFmpegFrameFilter;
+import org.bytedeco.javacv.FrameFilter;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Process wide cache of started filters, so that saving videos with the same settings one after
+ * another does not construct and initialize the same filter graphs again. A filter is used by one
+ * thread at a time: {@link #acquire} takes an idle filter out of the cache or creates a new one,
+ * and {@link #release} puts it back. The least recently released idle filters are destroyed when
+ * there are more than the max number of idle filters. Call {@link #clear} to free the idle filters,
+ * such as when the app is asked to trim memory.
+ */
+public class FilterCache {
+
+    protected static final String LOG_TAG = "FilterCache";
+
+    protected static final int DEFAULT_MAX_IDLE_FILTERS = 4;
+
+    protected static FilterCache sInstance;
+
+    protected int mMaxIdleFilters = DEFAULT_MAX_IDLE_FILTERS;
+    // Ordered from least to most recently released
+    protected final LinkedList<IdleFilter> mIdleFilters = new LinkedList<>();
+    protected final Map<FFmpegFrameFilter, Key> mAcquiredFilters = new IdentityHashMap<>();
+
+    public static synchronized FilterCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new FilterCache();
+        }
+        return sInstance;
+    }
+
+    public synchronized int getMaxIdleFilters() {
+        return mMaxIdleFilters;
+    }
+
+    /**
+     * Sets the max number of idle filters to keep. Default value is
+     * {@value #DEFAULT_MAX_IDLE_FILTERS}.
+     */
+    public void setMaxIdleFilters(int maxIdleFilters) {
+        Preconditions.checkArgument(maxIdleFilters >= 0);
+        synchronized (this) {
+            mMaxIdleFilters = maxIdleFilters;
+        }
+        evict();
+    }
+
+    /**
+     * Returns a started filter from the factory that transforms frames with the specified params
+     * into the output size. The filter must be returned with {@link #release} when done.
+     */
+    public FFmpegFrameFilter acquire(
+            TransformFilterFactory filterFactory, FilterParams params, ImageSize outputSize)
+                    throws FrameFilter.Exception {
+        Key key = Key.create(filterFactory.getFilterDescription(params, outputSize),
+                params.getImageSize(), params.getFrameRate());
+        synchronized (this) {
+            // Take the most recently released filter
+            Iterator<IdleFilter> iterator = mIdleFilters.descendingIterator();
+            while (iterator.hasNext()) {
+                IdleFilter idleFilter = iterator.next();
+                if (idleFilter.mKey.equals(key)) {
+                    iterator.remove();
+                    mAcquiredFilters.put(idleFilter.mFilter, key);
+                    Log.v(LOG_TAG, String.format("Reusing filter %s", key));
+                    return idleFilter.mFilter;
+                }
+            }
+        }
+        // Construct the graph outside the lock so that other threads are not blocked
+        FFmpegFrameFilter filter = filterFactory.createFilter(params, outputSize);
+        filter.start();
+        synchronized (this) {
+            mAcquiredFilters.put(filter, key);
+        }
+        return filter;
+    }
+
+    /**
+     * Returns a filter from {@link #acquire} to the cache.
+     */
+    public void release(FFmpegFrameFilter filter) {
+        synchronized (this) {
+            Key key = mAcquiredFilters.remove(filter);
+            Preconditions.checkArgument(key != null, "Filter was not acquired from this cache");
+            mIdleFilters.addLast(new IdleFilter(key, filter));
+        }
+        evict();
+    }
+
+    /**
+     * Destroys all idle filters.
+     */
+    public void clear() {
+        LinkedList<IdleFilter> idleFilters;
+        synchronized (this) {
+            idleFilters = new LinkedList<>(mIdleFilters);
+            mIdleFilters.clear();
+        }
+        for (IdleFilter idleFilter : idleFilters) {
+            destroy(idleFilter.mFilter);
+        }
+    }
+
+    protected void evict() {
+        while (true) {
+            IdleFilter idleFilter;
+            synchronized (this) {
+                if (mIdleFilters.size() <= mMaxIdleFilters) {
+                    return;
+                }
+                idleFilter = mIdleFilters.removeFirst();
+            }
+            Log.v(LOG_TAG, String.format("Evicting filter %s", idleFilter.mKey));
+            destroy(idleFilter.mFilter);
+        }
+    }
+
+    protected static void destroy(FFmpegFrameFilter filter) {
+        try {
+            filter.stop();
+            filter.release();
+        } catch (FrameFilter.Exception e) {
+            Log.e(LOG_TAG, "Error releasing filter", e);
+        }
+    }
+
+    @AutoValue
+    protected abstract static class Key {
+        public abstract String getDescription();
+        public abstract ImageSize getImageSize();
+        public abstract int getFrameRate();
+
+        public static Key create(String description, ImageSize imageSize, int frameRate) {
+            return new AutoValue_FilterCache_Key(description, imageSize, frameRate);
+        }
+    }
+
+    protected static class IdleFilter {
+        protected final Key mKey;
+        protected final FFmpegFrameFilter mFilter;
+
+        protected IdleFilter(Key key, FFmpegFrameFilter filter) {
+            mKey = key;
+            mFilter = filter;
+        }
+    }
+}
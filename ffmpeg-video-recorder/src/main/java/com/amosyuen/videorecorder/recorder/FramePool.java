@@ -0,0 +1,162 @@
+package com.amosyuen.videorecorder.recorder;
+
+import com.google.common.base.Preconditions;
+
+import org.bytedeco.javacv.Frame;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded pool of frames for handing frames from one thread to another. Frame grabbers and filters
+ * reuse the buffers of the frames they return, so a frame must be copied into a pooled frame before
+ * another thread can use it. Copying blocks while every pooled frame is in use, which applies
+ * back-pressure to the thread producing the frames.
+ */
+public class FramePool {
+
+    protected final BlockingQueue<PooledFrame> mFreeFrames;
+
+    public FramePool(int size) {
+        Preconditions.checkArgument(size > 0);
+        mFreeFrames = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            mFreeFrames.add(new PooledFrame(this));
+        }
+    }
+
+    /**
+     * Copies the frame into a pooled frame. Blocks until a pooled frame is free.
+     */
+    public PooledFrame copy(Frame frame, long timestamp) throws InterruptedException {
+        PooledFrame pooledFrame = mFreeFrames.take();
+        pooledFrame.copyFrom(frame);
+        pooledFrame.mTimestamp = timestamp;
+        return pooledFrame;
+    }
+
+    protected void release(PooledFrame pooledFrame) {
+        Preconditions.checkState(mFreeFrames.offer(pooledFrame));
+    }
+
+    /**
+     * Frame owned by a pool. The image and sample buffers are kept between uses so that copying
+     * frames of the same size does not allocate.
+     */
+    public static class PooledFrame {
+
+        protected final FramePool mPool;
+        protected final Frame mFrame = new Frame();
+        protected Buffer[] mImageBuffers;
+        protected Buffer[] mSampleBuffers;
+        protected long mTimestamp;
+
+        protected PooledFrame(FramePool pool) {
+            mPool = pool;
+        }
+
+        public Frame getFrame() {
+            return mFrame;
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * Returns the frame to its pool. The frame must not be used afterwards.
+         */
+        public void release() {
+            mPool.release(this);
+        }
+
+        protected void copyFrom(Frame frame) {
+            mFrame.keyFrame = frame.keyFrame;
+            if (frame.image != null) {
+                mImageBuffers = copyBuffers(frame.image, mImageBuffers);
+                mFrame.image = mImageBuffers;
+                mFrame.imageWidth = frame.imageWidth;
+                mFrame.imageHeight = frame.imageHeight;
+                mFrame.imageDepth = frame.imageDepth;
+                mFrame.imageChannels = frame.imageChannels;
+                mFrame.imageStride = frame.imageStride;
+            } else {
+                mFrame.image = null;
+            }
+            if (frame.samples != null) {
+                mSampleBuffers = copyBuffers(frame.samples, mSampleBuffers);
+                mFrame.samples = mSampleBuffers;
+                mFrame.sampleRate = frame.sampleRate;
+                mFrame.audioChannels = frame.audioChannels;
+            } else {
+                mFrame.samples = null;
+            }
+        }
+    }
+
+    protected static Buffer[] copyBuffers(Buffer[] src, Buffer[] dst) {
+        if (dst == null || dst.length != src.length) {
+            dst = new Buffer[src.length];
+        }
+        for (int i = 0; i < src.length; i++) {
+            dst[i] = copyBuffer(src[i], dst[i]);
+        }
+        return dst;
+    }
+
+    /**
+     * Copies the remaining elements of the source buffer into the destination buffer, allocating a
+     * new direct buffer if the destination is not the same type or is too small.
+     */
+    protected static Buffer copyBuffer(Buffer src, Buffer dst) {
+        int length = src.remaining();
+        if (src instanceof ByteBuffer) {
+            ByteBuffer copy = dst instanceof ByteBuffer && dst.capacity() >= length
+                    ? (ByteBuffer) dst : allocateDirect(length);
+            copy.clear();
+            copy.put(((ByteBuffer) src).duplicate());
+            copy.flip();
+            return copy;
+        } else if (src instanceof ShortBuffer) {
+            ShortBuffer copy = dst instanceof ShortBuffer && dst.capacity() >= length
+                    ? (ShortBuffer) dst : allocateDirect(length * 2).asShortBuffer();
+            copy.clear();
+            copy.put(((ShortBuffer) src).duplicate());
+            copy.flip();
+            return copy;
+        } else if (src instanceof IntBuffer) {
+            IntBuffer copy = dst instanceof IntBuffer && dst.capacity() >= length
+                    ? (IntBuffer) dst : allocateDirect(length * 4).asIntBuffer();
+            copy.clear();
+            copy.put(((IntBuffer) src).duplicate());
+            copy.flip();
+            return copy;
+        } else if (src instanceof FloatBuffer) {
+            FloatBuffer copy = dst instanceof FloatBuffer && dst.capacity() >= length
+                    ? (FloatBuffer) dst : allocateDirect(length * 4).asFloatBuffer();
+            copy.clear();
+            copy.put(((FloatBuffer) src).duplicate());
+            copy.flip();
+            return copy;
+        } else if (src instanceof DoubleBuffer) {
+            DoubleBuffer copy = dst instanceof DoubleBuffer && dst.capacity() >= length
+                    ? (DoubleBuffer) dst : allocateDirect(length * 8).asDoubleBuffer();
+            copy.clear();
+            copy.put(((DoubleBuffer) src).duplicate());
+            copy.flip();
+            return copy;
+        }
+        throw new IllegalArgumentException(String.format("Unsupported buffer type %s", src));
+    }
+
+    protected static ByteBuffer allocateDirect(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+}
@@ -5,6 +5,7 @@ import android.media.MediaRecorder;
 import android.os.Handler;
 import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.amosyuen.videorecorder.camera.CameraControllerI;
@@ -22,16 +23,19 @@ import static android.R.attr.duration;
  * Media recorder for recording multiple clips
  */
 public class MediaClipsRecorder implements
-        MediaRecorder.OnErrorListener, MediaRecorder.OnInfoListener {
+        ClipsRecorderI, MediaRecorder.OnErrorListener, MediaRecorder.OnInfoListener {
 
     protected static final String LOG_TAG = "MediaClipsRecorder";
-
     protected static final long START_DELAY_MILLIS = 600;
 
     // Params
     protected MediaRecorderConfigurer mMediaRecorderConfigurer;
     protected File mTempDirectory;
     protected MediaClipsRecorderListener mListener;
+    protected ClipsListener mClipsListener;
+    protected StartDelayCalibrator mStartDelayCalibrator;
+    protected ClipMetadataCache mClipMetadataCache = ClipMetadataCache.getInstance();
+    protected ClipManifest mClipManifest;
 
     // State
     protected Handler mHandler;
@@ -39,6 +43,9 @@ public class MediaClipsRecorder implements
     protected List<Clip> mClips;
     protected File mCurrentFile;
     protected long mStartTimeMillis;
+    protected long mStartCalledMillis;
+    protected boolean mIsStarting;
+    protected int mStartCount;
     protected CameraControllerI.Facing mFacing;
     protected int mViewOrientationDegrees;
     protected boolean mMediaServerStopErrorRetried;
@@ -54,22 +61,104 @@ public class MediaClipsRecorder implements
         newTempFile();
     }
 
-    public void setMediaCLipstRecorderListener(MediaClipsRecorderListener listener) {
+    @Override
+    public void setMediaClipsRecorderListener(MediaClipsRecorderListener listener) {
         mListener = listener;
     }
 
+    /**
+     * @deprecated Use {@link #setMediaClipsRecorderListener} instead.
+     */
+    @Deprecated
+    public void setMediaCLipstRecorderListener(MediaClipsRecorderListener listener) {
+        setMediaClipsRecorderListener(listener);
+    }
+
+    public ClipsListener getClipsListener() {
+        return mClipsListener;
+    }
+
+    /**
+     * Sets a listener that is notified when clips are added or removed.
+     */
+    @Override
+    public void setClipsListener(ClipsListener clipsListener) {
+        mClipsListener = clipsListener;
+    }
+
+    public StartDelayCalibrator getStartDelayCalibrator() {
+        return mStartDelayCalibrator;
+    }
+
+    /**
+     * Sets the calibrator for the delay between starting the media recorder and the first recorded
+     * frame. Without one, or until it has measured the delay, the delay is assumed to be
+     * {@value #START_DELAY_MILLIS}ms.
+     */
+    public void setStartDelayCalibrator(StartDelayCalibrator startDelayCalibrator) {
+        mStartDelayCalibrator = startDelayCalibrator;
+    }
+
+    public ClipMetadataCache getClipMetadataCache() {
+        return mClipMetadataCache;
+    }
+
+    /**
+     * Sets the cache to add the metadata of recorded clips to, so that saving does not need to open
+     * the clips to read it. Default value is {@link ClipMetadataCache#getInstance()}.
+     */
+    public void setClipMetadataCache(ClipMetadataCache clipMetadataCache) {
+        mClipMetadataCache = clipMetadataCache;
+    }
+
+    public ClipManifest getClipManifest() {
+        return mClipManifest;
+    }
+
+    @Override
+    public void setClipManifest(ClipManifest clipManifest) {
+        mClipManifest = clipManifest;
+    }
+
+    @Override
+    public void restoreClips() {
+        if (mClipManifest == null || isRecording()) {
+            return;
+        }
+        for (Clip clip : mClipManifest.load()) {
+            if (mClips.contains(clip)) {
+                continue;
+            }
+            Log.v(LOG_TAG, String.format("Restored clip %s", clip));
+            mClips.add(clip);
+            if (mClipsListener != null) {
+                mClipsListener.onClipAdded(clip);
+            }
+        }
+    }
+
+    protected void saveClipManifest() {
+        if (mClipManifest != null) {
+            mClipManifest.save(mClips);
+        }
+    }
+
+    @Override
     public CameraControllerI.Facing getFacing() {
         return mFacing;
     }
 
+    @Override
     public void setFacing(CameraControllerI.Facing facing) {
         mFacing = facing;
     }
 
+    @Override
     public int getViewOrientationDegrees() {
         return mViewOrientationDegrees;
     }
 
+    @Override
     public void setViewOrientationDegrees(int viewOrientationDegrees) {
         mViewOrientationDegrees = viewOrientationDegrees;
     }
@@ -86,18 +175,23 @@ public class MediaClipsRecorder implements
         }
     }
 
+    @Override
     public List<Clip> getClips() {
         return mClips;
     }
 
+    @Override
     public boolean isRecording() {
-        return mStartTimeMillis > 0;
+        return mStartTimeMillis > 0 || mIsStarting;
     }
 
+    @Override
     public long getCurrentRecordedTimeMillis() {
-        return isRecording() ? Math.max(0, SystemClock.uptimeMillis() - mStartTimeMillis) : 0;
+        return mStartTimeMillis > 0
+                ? Math.max(0, SystemClock.uptimeMillis() - mStartTimeMillis) : 0;
     }
 
+    @Override
     public long getRecordedMillis() {
         long recordedTimeMillis = getCurrentRecordedTimeMillis();
         for (Clip clip : mClips) {
@@ -106,10 +200,12 @@ public class MediaClipsRecorder implements
         return recordedTimeMillis;
     }
 
+    @Override
     public long getCurrentRecordedBytes() {
-        return isRecording() ? mCurrentFile.getTotalSpace() : 0;
+        return isRecording() ? mCurrentFile.length() : 0;
     }
 
+    @Override
     public long getRecordedBytes() {
         long recordedBytes = getCurrentRecordedBytes();
         for (Clip clip : mClips) {
@@ -118,14 +214,43 @@ public class MediaClipsRecorder implements
         return recordedBytes;
     }
 
+    @Override
     public void start() {
-        if (mMediaRecorder == null) {
+        if (mMediaRecorder == null || isRecording()) {
             return;
         }
-        Log.v(LOG_TAG, "Preparing recorder");
+        Log.v(LOG_TAG, "Setting recorder camera");
         if (mCurrentFile == null) {
             newTempFile();
         }
+        mIsStarting = true;
+        final int startCount = ++mStartCount;
+        final MediaRecorder mediaRecorder = mMediaRecorder;
+        mMediaRecorderConfigurer.setMediaRecorderCamera(mediaRecorder,
+                new CameraControllerI.CommandCallback() {
+                    @Override
+                    public void onCommandComplete(boolean result, @Nullable Exception error) {
+                        // Ignore if the recorder was stopped or replaced while the camera was set
+                        if (!mIsStarting || startCount != mStartCount
+                                || mediaRecorder != mMediaRecorder) {
+                            return;
+                        }
+                        mIsStarting = false;
+                        if (!result) {
+                            Log.e(LOG_TAG, "Error setting recorder camera", error);
+                            if (mListener != null) {
+                                mListener.onMediaRecorderError(error != null ? error
+                                        : new IllegalStateException("Camera is not open"));
+                            }
+                            return;
+                        }
+                        prepareAndStart();
+                    }
+                });
+    }
+
+    protected void prepareAndStart() {
+        Log.v(LOG_TAG, "Preparing recorder");
         try {
             mMediaRecorderConfigurer.configureMediaRecorder(mMediaRecorder);
             mMediaRecorder.setOutputFile(mCurrentFile.getAbsolutePath());
@@ -146,7 +271,10 @@ public class MediaClipsRecorder implements
         try {
             mMediaRecorder.start();
             // There's a slight delay before it starts recording.
-            mStartTimeMillis = SystemClock.uptimeMillis() + START_DELAY_MILLIS;
+            mStartCalledMillis = SystemClock.uptimeMillis();
+            mStartTimeMillis = mStartCalledMillis + (mStartDelayCalibrator == null
+                    ? START_DELAY_MILLIS
+                    : mStartDelayCalibrator.getStartDelayMillis(mFacing, START_DELAY_MILLIS));
         } catch (Exception e) {
             if (mMediaRecorder != null) {
                 release();
@@ -158,19 +286,37 @@ public class MediaClipsRecorder implements
         }
     }
 
+    @Override
     public void stop() {
         if (!isRecording()) {
             return;
         }
+        if (mIsStarting) {
+            // The recorder camera is still being set, so there is nothing recorded yet
+            mIsStarting = false;
+            return;
+        }
         long duration = getCurrentRecordedTimeMillis();
+        long elapsedMillis = SystemClock.uptimeMillis() - mStartCalledMillis;
         mStartTimeMillis = 0;
         try {
             mMediaRecorder.stop();
             long fileDuration = getCurrentFileDuration();
             Log.v(LOG_TAG, String.format(
                     "File duration %d compared to computed duration %d", fileDuration, duration));
-            mClips.add(Clip.create(mCurrentFile, mFacing, mViewOrientationDegrees,
-                    fileDuration, mCurrentFile.getTotalSpace()));
+            if (mStartDelayCalibrator != null && fileDuration > 0) {
+                mStartDelayCalibrator.addMeasurement(mFacing, elapsedMillis - fileDuration);
+            }
+            Clip clip = Clip.create(mCurrentFile, mFacing, mViewOrientationDegrees,
+                    fileDuration, mCurrentFile.length());
+            if (mClipMetadataCache != null) {
+                mClipMetadataCache.addInBackground(clip.getFile());
+            }
+            mClips.add(clip);
+            saveClipManifest();
+            if (mClipsListener != null) {
+                mClipsListener.onClipAdded(clip);
+            }
         } catch (RuntimeException e) {
             // RuntimeException is thrown when stop() is called immediately after start().
             // In this case the output file is not properly constructed ans should be deleted.
@@ -180,6 +326,12 @@ public class MediaClipsRecorder implements
         mCurrentFile = null;
     }
 
+    @Override
+    public void awaitClips() {
+        // Clips are added when they are stopped
+    }
+
+    @Override
     public void release() {
         if (mMediaRecorder == null) {
             return;
@@ -197,21 +349,38 @@ public class MediaClipsRecorder implements
         return duration == null ? 0 : Long.parseLong(duration);
     }
 
+    @Override
     public void deleteClips() {
         for (Clip clip : mClips) {
             clip.getFile().delete();
+            if (mClipMetadataCache != null) {
+                mClipMetadataCache.remove(clip.getFile());
+            }
+            if (mClipsListener != null) {
+                mClipsListener.onClipRemoved(clip);
+            }
         }
         mClips.clear();
+        saveClipManifest();
     }
 
     /**
-     * Remove the last recorded clip. Only works when not recording.
+     * Remove and delete the last recorded clip. Only works when not recording.
      */
+    @Override
     public void removeLastClip() {
-        if (!isRecording() || mClips.isEmpty()) {
+        if (isRecording() || mClips.isEmpty()) {
             return;
         }
-        mClips.remove(mClips.size() - 1);
+        Clip clip = mClips.remove(mClips.size() - 1);
+        clip.getFile().delete();
+        saveClipManifest();
+        if (mClipMetadataCache != null) {
+            mClipMetadataCache.remove(clip.getFile());
+        }
+        if (mClipsListener != null) {
+            mClipsListener.onClipRemoved(clip);
+        }
     }
 
     @Override
@@ -269,9 +438,24 @@ public class MediaClipsRecorder implements
     }
 
     public interface MediaRecorderConfigurer {
+        /**
+         * Sets the camera of the recorder without blocking. The callback must be called on the
+         * thread that started the recorder once the camera is set.
+         */
+        void setMediaRecorderCamera(
+                MediaRecorder recorder, CameraControllerI.CommandCallback callback);
+
+        /**
+         * Configures the rest of the recorder after its camera is set.
+         */
         void configureMediaRecorder(MediaRecorder recorder);
     }
 
+    public interface ClipsListener {
+        void onClipAdded(Clip clip);
+        void onClipRemoved(Clip clip);
+    }
+
     public interface MediaClipsRecorderListener {
         void onMediaRecorderMaxDurationReached();
         void onMediaRecorderMaxFileSizeReached();
@@ -0,0 +1,175 @@
+package com.amosyuen.videorecorder.recorder;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.amosyuen.videorecorder.camera.CameraControllerI;
+import com.amosyuen.videorecorder.recorder.common.ImageSize;
+import com.google.auto.value.AutoValue;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * JSON file that records the segments a save has finished transcoding, so that a save that was
+ * killed resumes from the last transcoded clip instead of starting over. The segment files are
+ * owned by the checkpoint until {@link #clear} deletes them, which should be done once the save
+ * succeeds or the recording is discarded.
+ */
+public class SaveCheckpoint implements VideoTransformerTask.Checkpoint {
+
+    protected static final String LOG_TAG = "SaveCheckpoint";
+
+    protected static final String KEY_SEGMENTS = "segments";
+    protected static final String KEY_CLIP_FILE = "clipFile";
+    protected static final String KEY_CLIP_BYTES = "clipBytes";
+    protected static final String KEY_FACING = "facing";
+    protected static final String KEY_ORIENTATION_DEGREES = "orientationDegrees";
+    protected static final String KEY_SEGMENT_FILE = "segmentFile";
+    protected static final String KEY_WIDTH = "width";
+    protected static final String KEY_HEIGHT = "height";
+    protected static final String KEY_METADATA_ROTATION_DEGREES = "metadataRotationDegrees";
+    protected static final String KEY_ENCODER_PARAMS = "encoderParams";
+
+    protected final File mFile;
+    // Guarded by this
+    protected final Map<ClipKey, VideoTransformerTask.Segment> mSegments = new LinkedHashMap<>();
+
+    /**
+     * Creates a checkpoint that is stored in the file, loading the segments already in it.
+     */
+    public SaveCheckpoint(@NonNull File file) {
+        mFile = Preconditions.checkNotNull(file);
+        load();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public synchronized VideoTransformerTask.Segment getSegment(
+            VideoClipI clip, String encoderParamsKey) {
+        VideoTransformerTask.Segment segment =
+                mSegments.get(ClipKey.create(clip, encoderParamsKey));
+        if (segment == null || !segment.getFile().exists()) {
+            return null;
+        }
+        return segment;
+    }
+
+    @Override
+    public synchronized void onSegmentTranscoded(
+            VideoClipI clip, VideoTransformerTask.Segment segment) {
+        Log.v(LOG_TAG, String.format("Checkpoint segment %s for clip %s", segment, clip));
+        VideoTransformerTask.Segment oldSegment =
+                mSegments.put(ClipKey.create(clip, segment.getEncoderParamsKey()), segment);
+        if (oldSegment != null && !oldSegment.getFile().equals(segment.getFile())) {
+            oldSegment.getFile().delete();
+        }
+        save();
+    }
+
+    /**
+     * Deletes all the segments and the checkpoint file.
+     */
+    public synchronized void clear() {
+        for (VideoTransformerTask.Segment segment : mSegments.values()) {
+            segment.getFile().delete();
+        }
+        mSegments.clear();
+        mFile.delete();
+    }
+
+    protected synchronized void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        try {
+            JSONArray segmentsJson = new JSONObject(Files.toString(mFile, Charsets.UTF_8))
+                    .getJSONArray(KEY_SEGMENTS);
+            for (int i = 0; i < segmentsJson.length(); i++) {
+                JSONObject segmentJson = segmentsJson.getJSONObject(i);
+                String encoderParamsKey = segmentJson.getString(KEY_ENCODER_PARAMS);
+                mSegments.put(
+                        ClipKey.create(
+                                segmentJson.getString(KEY_CLIP_FILE),
+                                segmentJson.getLong(KEY_CLIP_BYTES),
+                                CameraControllerI.Facing.valueOf(
+                                        segmentJson.getString(KEY_FACING)),
+                                segmentJson.getInt(KEY_ORIENTATION_DEGREES),
+                                encoderParamsKey),
+                        VideoTransformerTask.Segment.create(
+                                new File(segmentJson.getString(KEY_SEGMENT_FILE)),
+                                new ImageSize(
+                                        segmentJson.getInt(KEY_WIDTH),
+                                        segmentJson.getInt(KEY_HEIGHT)),
+                                segmentJson.getInt(KEY_METADATA_ROTATION_DEGREES),
+                                encoderParamsKey));
+            }
+            Log.d(LOG_TAG, String.format("Loaded %d checkpointed segments", mSegments.size()));
+        } catch (IOException | JSONException | IllegalArgumentException e) {
+            Log.e(LOG_TAG, String.format("Error reading save checkpoint %s", mFile), e);
+            clear();
+        }
+    }
+
+    protected synchronized void save() {
+        try {
+            JSONArray segmentsJson = new JSONArray();
+            for (Map.Entry<ClipKey, VideoTransformerTask.Segment> entry : mSegments.entrySet()) {
+                ClipKey key = entry.getKey();
+                VideoTransformerTask.Segment segment = entry.getValue();
+                segmentsJson.put(new JSONObject()
+                        .put(KEY_CLIP_FILE, key.getPath())
+                        .put(KEY_CLIP_BYTES, key.getBytes())
+                        .put(KEY_FACING, key.getFacing().name())
+                        .put(KEY_ORIENTATION_DEGREES, key.getOrientationDegrees())
+                        .put(KEY_SEGMENT_FILE, segment.getFile().getAbsolutePath())
+                        .put(KEY_WIDTH, segment.getImageSize().getWidthUnchecked())
+                        .put(KEY_HEIGHT, segment.getImageSize().getHeightUnchecked())
+                        .put(KEY_METADATA_ROTATION_DEGREES, segment.getMetadataRotationDegrees())
+                        .put(KEY_ENCODER_PARAMS, key.getEncoderParamsKey()));
+            }
+            ClipManifest.writeAtomically(
+                    mFile, new JSONObject().put(KEY_SEGMENTS, segmentsJson).toString());
+        } catch (IOException | JSONException e) {
+            Log.e(LOG_TAG, String.format("Error writing save checkpoint %s", mFile), e);
+        }
+    }
+
+    /**
+     * Identifies a clip by its file, the params it is transformed with and the params of the
+     * encoder it is transcoded with, so that a save with other output params does not resume from
+     * its segments. The file length guards against a new clip that reused the path of an old one.
+     */
+    @AutoValue
+    protected abstract static class ClipKey {
+        public abstract String getPath();
+        public abstract long getBytes();
+        public abstract CameraControllerI.Facing getFacing();
+        public abstract int getOrientationDegrees();
+        /** See {@link VideoTransformerTask#getEncoderParamsKey}. */
+        public abstract String getEncoderParamsKey();
+
+        public static ClipKey create(String path, long bytes, CameraControllerI.Facing facing,
+                int orientationDegrees, String encoderParamsKey) {
+            return new AutoValue_SaveCheckpoint_ClipKey(
+                    path, bytes, facing, orientationDegrees, encoderParamsKey);
+        }
+
+        public static ClipKey create(VideoClipI clip, String encoderParamsKey) {
+            return create(clip.getFile().getAbsolutePath(), clip.getFile().length(),
+                    clip.getFacing(), clip.getOrientationDegrees(), encoderParamsKey);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.amosyuen.videorecorder.recorder;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.amosyuen.videorecorder.camera.CameraControllerI;
+import com.google.common.base.Preconditions;
+
+/**
+ * Persists the measured delay between starting the media recorder and the first recorded frame,
+ * so that the recorded time can be estimated accurately while recording. The delay is measured at
+ * the end of every clip as the elapsed time minus the duration of the recorded file, and is kept
+ * as a moving average per camera facing since devices and cameras differ.
+ */
+public class StartDelayCalibrator {
+
+    protected static final String LOG_TAG = "StartDelayCalibrator";
+
+    protected static final String DELAY_KEY_PREFIX = "start_delay_millis_";
+    protected static final float SMOOTHING_FACTOR = 0.25f;
+    protected static final long MAX_DELAY_MILLIS = 2000;
+
+    protected final SharedPreferences mPreferences;
+
+    public StartDelayCalibrator(@NonNull SharedPreferences preferences) {
+        mPreferences = Preconditions.checkNotNull(preferences);
+    }
+
+    /**
+     * Returns the calibrated start delay for the camera facing, or the default delay if it has not
+     * been measured.
+     */
+    public long getStartDelayMillis(CameraControllerI.Facing facing, long defaultDelayMillis) {
+        return mPreferences.getLong(getKey(facing), defaultDelayMillis);
+    }
+
+    /**
+     * Adds a measured start delay for the camera facing.
+     */
+    public void addMeasurement(CameraControllerI.Facing facing, long delayMillis) {
+        if (delayMillis < 0 || delayMillis > MAX_DELAY_MILLIS) {
+            Log.v(LOG_TAG, String.format("Ignoring start delay measurement %d", delayMillis));
+            return;
+        }
+        String key = getKey(facing);
+        long calibratedDelayMillis = mPreferences.contains(key)
+                ? Math.round(mPreferences.getLong(key, 0) * (1 - SMOOTHING_FACTOR)
+                        + delayMillis * SMOOTHING_FACTOR)
+                : delayMillis;
+        Log.v(LOG_TAG, String.format("Measured start delay %d for facing %s, calibrated to %d",
+                delayMillis, facing, calibratedDelayMillis));
+        mPreferences.edit().putLong(key, calibratedDelayMillis).apply();
+    }
+
+    protected static String getKey(CameraControllerI.Facing facing) {
+        return DELAY_KEY_PREFIX + facing;
+    }
+}
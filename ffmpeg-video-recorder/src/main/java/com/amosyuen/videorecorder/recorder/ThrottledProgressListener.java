@@ -0,0 +1,143 @@
+package com.amosyuen.videorecorder.recorder;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Progress listener that forwards progress to another listener on the thread of a handler, by
+ * default the main thread. {@link VideoTransformerTask} reports progress for every frame, so
+ * progress is only forwarded once the min interval has passed and it has changed by at least the
+ * min fraction of the total. Progress reported while a previous update is still waiting to be
+ * delivered replaces it. Start and done are always forwarded, in order, and the last progress that
+ * was throttled is forwarded before done.
+ */
+public class ThrottledProgressListener implements VideoTransformerTask.TaskListener {
+
+    protected static final long DEFAULT_MIN_INTERVAL_MILLIS = 100;
+    protected static final float DEFAULT_MIN_PROGRESS_FRACTION = 0.01f;
+
+    protected final VideoTransformerTask.TaskListener mListener;
+    protected final Handler mHandler;
+    protected long mMinIntervalMillis = DEFAULT_MIN_INTERVAL_MILLIS;
+    protected float mMinProgressFraction = DEFAULT_MIN_PROGRESS_FRACTION;
+
+    // Guarded by this
+    protected int mPendingProgress;
+    protected int mPendingTotal;
+    protected boolean mIsProgressPending;
+    // Whether the last progress was throttled and not posted
+    protected boolean mIsProgressThrottled;
+    protected long mLastProgressMillis;
+    protected int mLastProgress;
+
+    protected final Runnable mDispatchStart = new Runnable() {
+        @Override
+        public void run() {
+            mListener.onStart();
+        }
+    };
+    protected final Runnable mDispatchProgress = new Runnable() {
+        @Override
+        public void run() {
+            int progress;
+            int total;
+            synchronized (ThrottledProgressListener.this) {
+                progress = mPendingProgress;
+                total = mPendingTotal;
+                mIsProgressPending = false;
+            }
+            mListener.onProgress(progress, total);
+        }
+    };
+    protected final Runnable mDispatchDone = new Runnable() {
+        @Override
+        public void run() {
+            mListener.onDone();
+        }
+    };
+
+    public ThrottledProgressListener(@NonNull VideoTransformerTask.TaskListener listener) {
+        this(listener, new Handler(Looper.getMainLooper()));
+    }
+
+    public ThrottledProgressListener(
+            @NonNull VideoTransformerTask.TaskListener listener, @NonNull Handler handler) {
+        mListener = Preconditions.checkNotNull(listener);
+        mHandler = Preconditions.checkNotNull(handler);
+    }
+
+    public synchronized long getMinIntervalMillis() {
+        return mMinIntervalMillis;
+    }
+
+    /**
+     * Sets the min time between forwarded progress updates. Default value is
+     * {@value #DEFAULT_MIN_INTERVAL_MILLIS}.
+     */
+    public synchronized void setMinIntervalMillis(long minIntervalMillis) {
+        Preconditions.checkArgument(minIntervalMillis >= 0);
+        mMinIntervalMillis = minIntervalMillis;
+    }
+
+    public synchronized float getMinProgressFraction() {
+        return mMinProgressFraction;
+    }
+
+    /**
+     * Sets the min change in progress as a fraction of the total between forwarded progress
+     * updates. Default value is {@value #DEFAULT_MIN_PROGRESS_FRACTION}.
+     */
+    public synchronized void setMinProgressFraction(float minProgressFraction) {
+        Preconditions.checkArgument(minProgressFraction >= 0 && minProgressFraction <= 1);
+        mMinProgressFraction = minProgressFraction;
+    }
+
+    @Override
+    public void onStart() {
+        synchronized (this) {
+            mLastProgressMillis = 0;
+            mLastProgress = 0;
+            mIsProgressThrottled = false;
+        }
+        mHandler.post(mDispatchStart);
+    }
+
+    @Override
+    public void onProgress(int progress, int total) {
+        long nowMillis = SystemClock.uptimeMillis();
+        synchronized (this) {
+            mPendingProgress = progress;
+            mPendingTotal = total;
+            if (mIsProgressPending) {
+                // The update that is waiting to be delivered picks up this progress
+                return;
+            }
+            if (nowMillis - mLastProgressMillis < mMinIntervalMillis
+                    || Math.abs(progress - mLastProgress) < mMinProgressFraction * total) {
+                mIsProgressThrottled = true;
+                return;
+            }
+            mIsProgressThrottled = false;
+            mIsProgressPending = true;
+            mLastProgressMillis = nowMillis;
+            mLastProgress = progress;
+        }
+        mHandler.post(mDispatchProgress);
+    }
+
+    @Override
+    public void onDone() {
+        synchronized (this) {
+            if (mIsProgressThrottled && !mIsProgressPending) {
+                mIsProgressThrottled = false;
+                mIsProgressPending = true;
+                mHandler.post(mDispatchProgress);
+            }
+        }
+        mHandler.post(mDispatchDone);
+    }
+}
@@ -0,0 +1,214 @@
+package com.amosyuen.videorecorder.recorder;
+
+import android.util.Log;
+
+import com.amosyuen.videorecorder.camera.CameraControllerI;
+import com.amosyuen.videorecorder.recorder.VideoTransformerTask.FilterParams;
+import com.amosyuen.videorecorder.recorder.common.ImageSize;
+import com.amosyuen.videorecorder.recorder.params.VideoTransformerParamsI;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+
+import org.bytedeco.javacv.FFmpegFrameFilter;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Calculates the size that frames are transformed into and creates filters that rotate, flip,
+ * scale, crop and pad frames into that size.
+ */
+public class TransformFilterFactory {
+
+    protected static final String LOG_TAG = "TransformFilterFactory";
+
+    protected final VideoTransformerParamsI mParams;
+
+    public TransformFilterFactory(VideoTransformerParamsI params) {
+        mParams = Preconditions.checkNotNull(params);
+    }
+
+    public static ImageSize getRotatedRecordedSize(ImageSize recordedSize, int rotationDegrees) {
+        return (rotationDegrees % 180 == 90)
+                ? recordedSize.toBuilder().invert().build()
+                : recordedSize;
+    }
+
+    /**
+     * Returns the resulting transformed size for a specific recorded size.
+     */
+    public ImageSize calculateTransformedSize(ImageSize recordedSize, ImageSize targetSize) {
+        if (!targetSize.areBothDimensionsDefined()) {
+            targetSize = targetSize.toBuilder()
+                    .calculateUndefinedDimensions(recordedSize)
+                    .build();
+        }
+        ImageSize.Builder builder = recordedSize.toBuilder()
+                .scale(targetSize, mParams.getVideoImageFit(), mParams.getVideoImageScale());
+        if (mParams.getShouldCropVideo()) {
+            builder.min(targetSize);
+        }
+        if (mParams.getShouldPadVideo()) {
+            builder.max(targetSize);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the resulting transformed size for frames with the specified params.
+     */
+    public ImageSize calculateTransformedSize(FilterParams params) {
+        return calculateTransformedSize(
+                getRotatedRecordedSize(params.getImageSize(), params.getRotationDegrees()),
+                mParams.getVideoSize());
+    }
+
+    /**
+     * Returns the target size for frames with the specified params.
+     */
+    public ImageSize getTargetSize(FilterParams params) {
+        ImageSize targetSize = mParams.getVideoSize();
+        if (targetSize.isOneDimensionDefined()) {
+            targetSize = targetSize.toBuilder()
+                    .calculateUndefinedDimensions(getRotatedRecordedSize(
+                            params.getImageSize(), params.getRotationDegrees()))
+                    .build();
+        }
+        return targetSize;
+    }
+
+    /**
+     * Returns whether frames with the specified params need to be filtered.
+     */
+    public boolean needsFilter(FilterParams params) {
+        return params.getRotationDegrees() != 0
+                || params.getFacing() != CameraControllerI.Facing.BACK
+                || !params.getImageSize().equals(getTargetSize(params));
+    }
+
+    /**
+     * Returns the filter graph description that transforms frames with the specified params into
+     * the output size. The transforms are planned to touch each pixel as few times as possible:
+     * mirroring is folded into the rotation, frames are cropped before they are rotated and scaled
+     * when the result is the same, and scaling is skipped when it would not change the size.
+     */
+    public String getFilterDescription(FilterParams params, ImageSize outputSize) {
+        ImageSize targetSize = getTargetSize(params);
+        int rotationDegrees = params.getRotationDegrees();
+        ImageSize rotatedImageSize = getRotatedRecordedSize(params.getImageSize(), rotationDegrees);
+
+        ImageSize.Builder imageSizeBuilder = rotatedImageSize.toBuilder()
+                .scale(targetSize, mParams.getVideoImageFit(), mParams.getVideoImageScale());
+        int scaledWidth = imageSizeBuilder.getWidthUnchecked();
+        int scaledHeight = imageSizeBuilder.getHeightUnchecked();
+        if (mParams.getShouldCropVideo()) {
+            imageSizeBuilder.min(targetSize);
+        }
+        int croppedWidth = imageSizeBuilder.getWidthUnchecked();
+        int croppedHeight = imageSizeBuilder.getHeightUnchecked();
+
+        ArrayList<String> transforms = new ArrayList<>();
+        int scaleInputWidth = rotatedImageSize.getWidthUnchecked();
+        int scaleInputHeight = rotatedImageSize.getHeightUnchecked();
+        boolean shouldCrop = croppedWidth < scaledWidth || croppedHeight < scaledHeight;
+        if (shouldCrop) {
+            int sourceCropWidth =
+                    getSourceCropLength(scaleInputWidth, scaledWidth, croppedWidth);
+            int sourceCropHeight =
+                    getSourceCropLength(scaleInputHeight, scaledHeight, croppedHeight);
+            if (sourceCropWidth > 0 && sourceCropHeight > 0) {
+                // The crop is in the orientation of the recorded frame since it is done first
+                transforms.add(rotationDegrees % 180 == 90
+                        ? "crop=" + sourceCropHeight + ":" + sourceCropWidth
+                        : "crop=" + sourceCropWidth + ":" + sourceCropHeight);
+                scaleInputWidth = sourceCropWidth;
+                scaleInputHeight = sourceCropHeight;
+                scaledWidth = croppedWidth;
+                scaledHeight = croppedHeight;
+                shouldCrop = false;
+            }
+        }
+        String orientationTransform = getOrientationTransform(
+                params.getFacing() == CameraControllerI.Facing.FRONT, rotationDegrees);
+        if (orientationTransform != null) {
+            transforms.add(orientationTransform);
+        }
+        if (scaledWidth != scaleInputWidth || scaledHeight != scaleInputHeight) {
+            transforms.add("scale=" + scaledWidth + ":" + scaledHeight
+                    + ":flags=" + mParams.getVideoScalerQuality().optionValue);
+        }
+        if (shouldCrop) {
+            transforms.add("crop=" + croppedWidth + ":" + croppedHeight);
+        }
+        if (croppedWidth < outputSize.getWidthUnchecked()
+                || croppedHeight < outputSize.getHeightUnchecked()) {
+            transforms.add("pad=" + outputSize.getWidthUnchecked()
+                    + ":" + outputSize.getHeightUnchecked() + ":(ow-iw)/2:(oh-ih)/2");
+        }
+        if (transforms.isEmpty()) {
+            transforms.add("null");
+        }
+        return Joiner.on(',').join(transforms);
+    }
+
+    /**
+     * Returns the single transform that mirrors horizontally if specified and then rotates
+     * clockwise by the rotation, or null if there is nothing to transform.
+     */
+    protected static String getOrientationTransform(boolean mirror, int rotationDegrees) {
+        switch (rotationDegrees) {
+            case 0:
+                return mirror ? "hflip" : null;
+            case 90:
+                // Mirroring and then rotating clockwise is rotating clockwise and flipping
+                // vertically
+                return mirror ? "transpose=clock_flip" : "transpose=clock";
+            case 180:
+                // Mirroring cancels out the horizontal flip of the rotation
+                return mirror ? "vflip" : "vflip,hflip";
+            case 270:
+                // Mirroring and then rotating counter clockwise is transposing
+                return mirror ? "transpose=cclock_flip" : "transpose=cclock";
+            default:
+                throw new InvalidParameterException(String.format(
+                        Locale.US, "Unsupported rotation %d", rotationDegrees));
+        }
+    }
+
+    /**
+     * Returns the length of the source that scales into the centered crop of the scaled length, or
+     * -1 if the crop does not line up exactly with source pixels. Cropping the source instead is
+     * only the same if the cropped length and both crop offsets are whole source pixels, which also
+     * keeps the crop centered when the frame is flipped.
+     */
+    protected static int getSourceCropLength(int sourceLength, int scaledLength, int croppedLength) {
+        if (croppedLength == scaledLength) {
+            return sourceLength;
+        }
+        long product = (long) croppedLength * sourceLength;
+        if (product % scaledLength != 0) {
+            return -1;
+        }
+        int sourceCropLength = (int) (product / scaledLength);
+        if ((sourceLength - sourceCropLength) % 2 != 0 || (scaledLength - croppedLength) % 2 != 0) {
+            return -1;
+        }
+        return sourceCropLength;
+    }
+
+    /**
+     * Creates a filter that transforms frames with the specified params into the output size. The
+     * filter is not started so that its pixel format can still be changed.
+     */
+    public FFmpegFrameFilter createFilter(FilterParams params, ImageSize outputSize) {
+        String description = getFilterDescription(params, outputSize);
+        Log.v(LOG_TAG, String.format(
+                "Creating filter with transforms %s for params %s", description, params));
+        ImageSize imageSize = params.getImageSize();
+        FFmpegFrameFilter filter = new FFmpegFrameFilter(
+                description, imageSize.getWidthUnchecked(), imageSize.getHeightUnchecked());
+        filter.setFrameRate(params.getFrameRate());
+        return filter;
+    }
+}
@@ -0,0 +1,162 @@
+package com.amosyuen.videorecorder.recorder;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics of transforming clips, either for a single clip or for the whole task. Stage times are
+ * the time spent in each stage summed across threads, so with pipelining or parallel clips they can
+ * add up to more than the wall time. Safe to update from multiple threads.
+ */
+public class TransformMetrics {
+
+    /**
+     * Stages of transforming a clip.
+     */
+    public enum Stage {
+        /** Opening the clip file and reading its stream info. */
+        OPEN,
+        /** Decoding frames, or reading packets when remuxing. */
+        DECODE,
+        /** Rotating, flipping and scaling frames. */
+        FILTER,
+        /** Encoding frames. */
+        ENCODE,
+        /** Writing packets to the output file. */
+        MUX,
+    }
+
+    protected final AtomicLongArray mStageNanos = new AtomicLongArray(Stage.values().length);
+    protected final AtomicLong mFrameCount = new AtomicLong();
+    protected final AtomicLong mDroppedFrameCount = new AtomicLong();
+    protected final AtomicLong mBytesWritten = new AtomicLong();
+    protected final AtomicLong mPeakNativeHeapBytes = new AtomicLong();
+    protected volatile long mWallNanos;
+
+    public long getStageNanos(Stage stage) {
+        return mStageNanos.get(stage.ordinal());
+    }
+
+    public void addStageNanos(Stage stage, long nanos) {
+        mStageNanos.addAndGet(stage.ordinal(), nanos);
+    }
+
+    /**
+     * Returns the time spent in all stages.
+     */
+    public long getTotalStageNanos() {
+        long nanos = 0;
+        for (int i = 0; i < mStageNanos.length(); i++) {
+            nanos += mStageNanos.get(i);
+        }
+        return nanos;
+    }
+
+    /**
+     * Returns the number of video frames that were written.
+     */
+    public long getFrameCount() {
+        return mFrameCount.get();
+    }
+
+    public void addFrames(long frameCount) {
+        mFrameCount.addAndGet(frameCount);
+    }
+
+    /**
+     * Returns the number of video frames that were decoded but not written.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount.get();
+    }
+
+    public void addDroppedFrames(long frameCount) {
+        mDroppedFrameCount.addAndGet(frameCount);
+    }
+
+    /**
+     * Returns the number of bytes of packets written to the output.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    public void addBytesWritten(long bytes) {
+        mBytesWritten.addAndGet(bytes);
+    }
+
+    public void setBytesWritten(long bytes) {
+        mBytesWritten.set(bytes);
+    }
+
+    /**
+     * Returns the highest sampled native heap allocation.
+     */
+    public long getPeakNativeHeapBytes() {
+        return mPeakNativeHeapBytes.get();
+    }
+
+    public void updatePeakNativeHeapBytes(long bytes) {
+        long peakBytes;
+        while ((peakBytes = mPeakNativeHeapBytes.get()) < bytes) {
+            if (mPeakNativeHeapBytes.compareAndSet(peakBytes, bytes)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the wall time, or 0 if it was not measured.
+     */
+    public long getWallNanos() {
+        return mWallNanos;
+    }
+
+    public void setWallNanos(long wallNanos) {
+        mWallNanos = wallNanos;
+    }
+
+    /**
+     * Returns the video frames written per second of wall time, or per second spent in all stages
+     * if the wall time was not measured.
+     */
+    public float getFramesPerSecond() {
+        long nanos = mWallNanos > 0 ? mWallNanos : getTotalStageNanos();
+        return nanos == 0 ? 0 : (float) getFrameCount() * TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
+    /**
+     * Adds the stage times, frame counts and bytes of the other metrics to these metrics.
+     */
+    public void add(TransformMetrics other) {
+        for (int i = 0; i < mStageNanos.length(); i++) {
+            mStageNanos.addAndGet(i, other.mStageNanos.get(i));
+        }
+        addFrames(other.getFrameCount());
+        addDroppedFrames(other.getDroppedFrameCount());
+        addBytesWritten(other.getBytesWritten());
+        updatePeakNativeHeapBytes(other.getPeakNativeHeapBytes());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("TransformMetrics{");
+        for (Stage stage : Stage.values()) {
+            builder.append(stage.name().toLowerCase(Locale.US))
+                    .append("Millis=")
+                    .append(TimeUnit.NANOSECONDS.toMillis(getStageNanos(stage)))
+                    .append(", ");
+        }
+        return builder
+                .append("wallMillis=").append(TimeUnit.NANOSECONDS.toMillis(mWallNanos))
+                .append(", frames=").append(getFrameCount())
+                .append(", droppedFrames=").append(getDroppedFrameCount())
+                .append(", fps=").append(String.format(Locale.US, "%.1f", getFramesPerSecond()))
+                .append(", bytesWritten=").append(getBytesWritten())
+                .append(", peakNativeHeapBytes=").append(getPeakNativeHeapBytes())
+                .append("}")
+                .toString();
+    }
+}
@@ -0,0 +1,266 @@
+package com.amosyuen.videorecorder.recorder;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.os.AsyncTask;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.amosyuen.videorecorder.recorder.common.ImageScale;
+import com.amosyuen.videorecorder.recorder.common.ImageSize;
+import com.google.common.base.Preconditions;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Writes a JPEG thumbnail of a video from one of its frames. {@link VideoTransformerTask} hands it
+ * the first video frame it encodes, so the thumbnail shows exactly what was encoded without opening
+ * and decoding the output again. Capturing only copies the pixels of the frame. Scaling, rotating
+ * and compressing run on the executor, and {@link #get} waits for them to finish.
+ */
+public class VideoThumbnailWriter {
+
+    protected static final String LOG_TAG = "VideoThumbnailWriter";
+
+    protected static final int DEFAULT_QUALITY = 90;
+
+    protected final File mFile;
+    protected final Executor mExecutor;
+    protected ImageSize mMaxSize = ImageSize.UNDEFINED;
+    protected int mQuality = DEFAULT_QUALITY;
+
+    // Guarded by this
+    protected boolean mIsCaptured;
+    protected FutureTask<File> mFuture;
+
+    /**
+     * Creates a writer that compresses the thumbnail on {@link AsyncTask#THREAD_POOL_EXECUTOR}.
+     */
+    public VideoThumbnailWriter(@NonNull File file) {
+        this(file, AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    public VideoThumbnailWriter(@NonNull File file, @NonNull Executor executor) {
+        mFile = Preconditions.checkNotNull(file);
+        mExecutor = Preconditions.checkNotNull(executor);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public synchronized ImageSize getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Sets the max size of the thumbnail as it is displayed. The frame is scaled down to fit it
+     * keeping its aspect ratio. If undefined, the thumbnail is the size of the frame. Default value
+     * is undefined.
+     */
+    public synchronized void setMaxSize(@NonNull ImageSize maxSize) {
+        Preconditions.checkArgument(
+                maxSize.areBothDimensionsDefined() || !maxSize.isAtLeastOneDimensionDefined());
+        mMaxSize = maxSize;
+    }
+
+    public synchronized int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Sets the JPEG quality from 0 to 100. Default value is {@value #DEFAULT_QUALITY}.
+     */
+    public synchronized void setQuality(int quality) {
+        Preconditions.checkArgument(quality >= 0 && quality <= 100);
+        mQuality = quality;
+    }
+
+    /**
+     * Returns whether a frame was captured.
+     */
+    public synchronized boolean isCaptured() {
+        return mIsCaptured;
+    }
+
+    /**
+     * Copies the pixels of the frame and starts writing the thumbnail on the executor. Only the
+     * first frame is captured, so later calls do nothing. Frames must be 8 bit BGR, BGRA or gray
+     * images, which is what frame grabbers and filters output by default.
+     * @param rotationDegrees Clockwise rotation to display the frame with.
+     */
+    public void capture(Frame frame, int rotationDegrees) {
+        Preconditions.checkArgument(frame.image != null);
+        Preconditions.checkArgument(frame.imageDepth == Frame.DEPTH_UBYTE);
+        final int width = frame.imageWidth;
+        final int height = frame.imageHeight;
+        final int channels = frame.imageChannels;
+        Preconditions.checkArgument(channels == 1 || channels == 3 || channels == 4);
+        final ImageSize maxSize;
+        final int quality;
+        synchronized (this) {
+            if (mIsCaptured) {
+                return;
+            }
+            // Claim the capture before copying, so that other threads do not copy frames too
+            mIsCaptured = true;
+            maxSize = mMaxSize;
+            quality = mQuality;
+        }
+
+        // Copy the rows without their padding, as the frame is reused once this returns
+        final byte[] pixels = new byte[width * height * channels];
+        ByteBuffer buffer = ((ByteBuffer) frame.image[0]).duplicate();
+        int rowBytes = width * channels;
+        for (int y = 0; y < height; y++) {
+            buffer.position(y * frame.imageStride);
+            buffer.get(pixels, y * rowBytes, rowBytes);
+        }
+        final int normalizedRotationDegrees = ((rotationDegrees % 360) + 360) % 360;
+        FutureTask<File> future = new FutureTask<>(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                write(pixels, width, height, channels, normalizedRotationDegrees, maxSize,
+                        quality);
+                return mFile;
+            }
+        });
+        synchronized (this) {
+            mFuture = future;
+        }
+        mExecutor.execute(future);
+    }
+
+    /**
+     * Captures the first video frame of the file. Used when the frames of the video were copied
+     * rather than encoded, so none was captured while transforming it.
+     * @param rotationDegrees Clockwise rotation to display the frame with.
+     */
+    public void capture(File videoFile, int rotationDegrees) throws FrameGrabber.Exception {
+        FFmpegFrameGrabber frameGrabber = new FFmpegFrameGrabber(videoFile);
+        try {
+            frameGrabber.start();
+            Frame frame = frameGrabber.grabImage();
+            if (frame == null) {
+                throw new FrameGrabber.Exception(
+                        String.format("Video %s does not have any frames", videoFile));
+            }
+            capture(frame, rotationDegrees);
+        } finally {
+            frameGrabber.stop();
+            frameGrabber.release();
+        }
+    }
+
+    /**
+     * Waits for the thumbnail to be written and returns its file.
+     */
+    public File get() throws IOException, InterruptedException {
+        FutureTask<File> future;
+        synchronized (this) {
+            future = mFuture;
+        }
+        Preconditions.checkState(future != null, "No frame was captured");
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw cause instanceof RuntimeException
+                    ? (RuntimeException) cause : new RuntimeException(cause);
+        }
+    }
+
+    protected void write(byte[] pixels, int width, int height, int channels, int rotationDegrees,
+            ImageSize maxSize, int quality) throws IOException {
+        long startNanos = System.nanoTime();
+        ImageSize thumbnailSize = new ImageSize(width, height);
+        if (maxSize.areBothDimensionsDefined()) {
+            // The max size applies to the rotated thumbnail
+            thumbnailSize = thumbnailSize.toBuilder()
+                    .scaleToFit(TransformFilterFactory.getRotatedRecordedSize(
+                            maxSize, rotationDegrees), ImageScale.DOWNSCALE)
+                    .build();
+        }
+        int thumbnailWidth = Math.max(1, thumbnailSize.getWidthUnchecked());
+        int thumbnailHeight = Math.max(1, thumbnailSize.getHeightUnchecked());
+        Bitmap bitmap = Bitmap.createBitmap(
+                downscale(pixels, width, height, channels, thumbnailWidth, thumbnailHeight),
+                thumbnailWidth, thumbnailHeight, Bitmap.Config.ARGB_8888);
+        if (rotationDegrees != 0) {
+            Matrix matrix = new Matrix();
+            matrix.postRotate(rotationDegrees);
+            Bitmap rotatedBitmap = Bitmap.createBitmap(
+                    bitmap, 0, 0, thumbnailWidth, thumbnailHeight, matrix, false);
+            bitmap.recycle();
+            bitmap = rotatedBitmap;
+        }
+        int bitmapWidth = bitmap.getWidth();
+        int bitmapHeight = bitmap.getHeight();
+        FileOutputStream outputStream = new FileOutputStream(mFile);
+        try {
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, outputStream)) {
+                throw new IOException(String.format("Error compressing thumbnail %s", mFile));
+            }
+        } finally {
+            outputStream.close();
+            bitmap.recycle();
+        }
+        Log.v(LOG_TAG, String.format("Wrote %dx%d thumbnail %s in %.3fms",
+                bitmapWidth, bitmapHeight, mFile,
+                (System.nanoTime() - startNanos) / 1e6));
+    }
+
+    /**
+     * Scales the pixels down to the target size by averaging the pixels that each target pixel
+     * covers, and converts them to ARGB colors.
+     */
+    protected static int[] downscale(byte[] pixels, int width, int height, int channels,
+            int targetWidth, int targetHeight) {
+        int[] colors = new int[targetWidth * targetHeight];
+        for (int ty = 0; ty < targetHeight; ty++) {
+            int startY = ty * height / targetHeight;
+            int endY = Math.max(startY + 1, (ty + 1) * height / targetHeight);
+            for (int tx = 0; tx < targetWidth; tx++) {
+                int startX = tx * width / targetWidth;
+                int endX = Math.max(startX + 1, (tx + 1) * width / targetWidth);
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int y = startY; y < endY; y++) {
+                    int index = (y * width + startX) * channels;
+                    for (int x = startX; x < endX; x++) {
+                        if (channels == 1) {
+                            int gray = pixels[index] & 0xFF;
+                            r += gray;
+                            g += gray;
+                            b += gray;
+                        } else {
+                            b += pixels[index] & 0xFF;
+                            g += pixels[index + 1] & 0xFF;
+                            r += pixels[index + 2] & 0xFF;
+                        }
+                        index += channels;
+                    }
+                }
+                int count = (endY - startY) * (endX - startX);
+                colors[ty * targetWidth + tx] =
+                        0xFF000000 | (r / count) << 16 | (g / count) << 8 | (b / count);
+            }
+        }
+        return colors;
+    }
+}
@@ -1,15 +1,20 @@
 package com.amosyuen.videorecorder.recorder;
 
 
-import android.text.TextUtils;
+import android.os.Debug;
 import android.util.Log;
 
 import com.amosyuen.videorecorder.camera.CameraControllerI;
 import com.amosyuen.videorecorder.recorder.common.ImageSize;
+import com.amosyuen.videorecorder.recorder.params.EncoderParamsI;
+import com.amosyuen.videorecorder.recorder.params.VideoTransformerParams;
 import com.amosyuen.videorecorder.recorder.params.VideoTransformerParamsI;
 import com.google.auto.value.AutoValue;
 import com.google.common.base.Preconditions;
 
+import org.bytedeco.javacpp.avcodec.AVPacket;
+import org.bytedeco.javacpp.avformat.AVFormatContext;
+import org.bytedeco.javacpp.avformat.AVStream;
 import org.bytedeco.javacv.FFmpegFrameFilter;
 import org.bytedeco.javacv.FFmpegFrameGrabber;
 import org.bytedeco.javacv.Frame;
@@ -17,13 +22,36 @@ import org.bytedeco.javacv.FrameFilter;
 import org.bytedeco.javacv.FrameGrabber;
 import org.bytedeco.javacv.FrameRecorder;
 
-import java.security.InvalidParameterException;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.bytedeco.javacpp.avutil.AVMEDIA_TYPE_VIDEO;
+import static org.bytedeco.javacpp.avutil.AV_NOPTS_VALUE;
+import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_NONE;
+import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_YUV420P;
+import static org.bytedeco.javacpp.avutil.av_q2d;
 
 /**
  * Task that combines multiple video files and transforms video into the desired size.
@@ -32,10 +60,37 @@ public class VideoTransformerTask implements Runnable {
 
     protected static final String LOG_TAG = "VideoTransformerTask";
 
+    protected static final int DEFAULT_PIPELINE_QUEUE_SIZE = 3;
+    protected static final int NATIVE_HEAP_SAMPLE_INTERVAL_FRAMES = 30;
+    // Clips are recorded with a variable frame rate, so their average rate is not exact
+    protected static final double REMUX_FRAME_RATE_TOLERANCE = 1;
+    protected static final double REMUX_BITRATE_TOLERANCE = 0.1;
+
     protected final FFmpegFrameRecorder mRecorder;
     protected final VideoTransformerParamsI mParams;
+    protected final TransformFilterFactory mFilterFactory;
+    // Rotation written to the container metadata instead of rotating the frames
+    protected final int mMetadataRotationDegrees;
     protected Collection<? extends VideoClipI> mClips;
     protected TaskListener mProgressListener;
+    protected MetricsListener mMetricsListener;
+    protected FilterCache mFilterCache = FilterCache.getInstance();
+    protected ClipMetadataCache mClipMetadataCache = ClipMetadataCache.getInstance();
+    protected List<TransformMetrics> mClipMetrics;
+    protected boolean mRemuxEnabled = true;
+    protected boolean mSingleClipShortcutEnabled;
+    protected boolean mPipelined = Runtime.getRuntime().availableProcessors() > 1;
+    protected int mPipelineQueueSize = DEFAULT_PIPELINE_QUEUE_SIZE;
+    protected SegmentRecorderFactory mSegmentRecorderFactory;
+    protected int mMaxParallelClips = Runtime.getRuntime().availableProcessors();
+    protected SegmentSource mSegmentSource;
+    protected Checkpoint mCheckpoint;
+    protected VideoThumbnailWriter mThumbnailWriter;
+    protected volatile boolean mCancelled;
+    protected ImageSize mOutputSize;
+    protected int mDecoderThreadCount;
+    protected EncoderParamsI.CodecThreadType mDecoderThreadType =
+            EncoderParamsI.CodecThreadType.AUTO;
 
     public VideoTransformerTask(
             FFmpegFrameRecorder recorder,
@@ -45,6 +100,31 @@ public class VideoTransformerTask implements Runnable {
         mParams = Preconditions.checkNotNull(params);
         mClips = Preconditions.checkNotNull(filesToTransform);
         Preconditions.checkArgument(!filesToTransform.isEmpty());
+        mMetadataRotationDegrees = params.getShouldRotateVideoWithMetadata()
+                ? getSharedOrientationDegrees(filesToTransform) : 0;
+        if (mMetadataRotationDegrees == 0) {
+            mFilterFactory = new TransformFilterFactory(params);
+        } else {
+            // Frames are transformed without rotating them, so the target size is not rotated
+            mFilterFactory = new TransformFilterFactory(
+                    VideoTransformerParams.Builder.merge(VideoTransformerParams.builder(), params)
+                            .setVideoSize(TransformFilterFactory.getRotatedRecordedSize(
+                                    params.getVideoSize(), mMetadataRotationDegrees))
+                            .build());
+        }
+    }
+
+    /**
+     * Returns the orientation that all the clips have, or 0 if they have different orientations.
+     */
+    protected static int getSharedOrientationDegrees(Collection<? extends VideoClipI> clips) {
+        int orientationDegrees = clips.iterator().next().getOrientationDegrees();
+        for (VideoClipI clip : clips) {
+            if (clip.getOrientationDegrees() != orientationDegrees) {
+                return 0;
+            }
+        }
+        return orientationDegrees;
     }
 
     public TaskListener getProgressListener() {
@@ -55,37 +135,252 @@ public class VideoTransformerTask implements Runnable {
         mProgressListener = progressListener;
     }
 
+    public MetricsListener getMetricsListener() {
+        return mMetricsListener;
+    }
+
+    /**
+     * Sets a listener that is called with the metrics of each clip and of the whole task when the
+     * task finishes successfully.
+     */
+    public void setMetricsListener(MetricsListener metricsListener) {
+        mMetricsListener = metricsListener;
+    }
+
+    public FilterCache getFilterCache() {
+        return mFilterCache;
+    }
+
+    /**
+     * Sets the cache to reuse filters from. Filters are destroyed when the task finishes if it is
+     * null. Default value is {@link FilterCache#getInstance()}.
+     */
+    public void setFilterCache(FilterCache filterCache) {
+        mFilterCache = filterCache;
+    }
+
+    public ClipMetadataCache getClipMetadataCache() {
+        return mClipMetadataCache;
+    }
+
+    /**
+     * Sets the cache to read the metadata of clips from. Clips are probed without caching if it is
+     * null. Default value is {@link ClipMetadataCache#getInstance()}.
+     */
+    public void setClipMetadataCache(ClipMetadataCache clipMetadataCache) {
+        mClipMetadataCache = clipMetadataCache;
+    }
+
+    public boolean isRemuxEnabled() {
+        return mRemuxEnabled;
+    }
+
+    /**
+     * Sets whether clips that already match the output should be concatenated by copying their
+     * compressed packets instead of being decoded and re-encoded. Default value is {@code true}.
+     */
+    public void setRemuxEnabled(boolean remuxEnabled) {
+        mRemuxEnabled = remuxEnabled;
+    }
+
+    public boolean isSingleClipShortcutEnabled() {
+        return mSingleClipShortcutEnabled;
+    }
+
+    /**
+     * Sets whether a single clip that already matches the output is moved to the output file
+     * instead of being copied, and whether a single clip that only needs rotating is remuxed with
+     * the rotation written as container metadata instead of rotating every frame. The clip is only
+     * moved once the rest of the task succeeded, and its file no longer exists after that, so the
+     * clips should be deleted once the task returns. Only enable this for the final output, since
+     * inputs are not rotated by their container metadata when transforming them. Default value is
+     * {@code false}.
+     */
+    public void setSingleClipShortcutEnabled(boolean singleClipShortcutEnabled) {
+        mSingleClipShortcutEnabled = singleClipShortcutEnabled;
+    }
+
+    public boolean isPipelined() {
+        return mPipelined;
+    }
+
+    /**
+     * Sets whether decoding, filtering and encoding should run concurrently on separate threads.
+     * Default value is {@code true} on devices with more than one processor.
+     */
+    public void setPipelined(boolean pipelined) {
+        mPipelined = pipelined;
+    }
+
+    public int getPipelineQueueSize() {
+        return mPipelineQueueSize;
+    }
+
+    /**
+     * Sets the max number of frames that can be queued between two pipeline stages.
+     */
+    public void setPipelineQueueSize(int pipelineQueueSize) {
+        Preconditions.checkArgument(pipelineQueueSize > 0);
+        mPipelineQueueSize = pipelineQueueSize;
+    }
+
+    public SegmentRecorderFactory getSegmentRecorderFactory() {
+        return mSegmentRecorderFactory;
+    }
+
+    /**
+     * Sets the factory for the recorders of intermediate segments. If set, multiple clips are
+     * transcoded in parallel into one segment each, and the segments are then concatenated into the
+     * output without re-encoding. If not set, clips are transcoded one after another.
+     */
+    public void setSegmentRecorderFactory(SegmentRecorderFactory segmentRecorderFactory) {
+        mSegmentRecorderFactory = segmentRecorderFactory;
+    }
+
+    public int getMaxParallelClips() {
+        return mMaxParallelClips;
+    }
+
+    /**
+     * Sets the max number of clips to transcode in parallel. Default value is the number of
+     * available processors.
+     */
+    public void setMaxParallelClips(int maxParallelClips) {
+        Preconditions.checkArgument(maxParallelClips > 0);
+        mMaxParallelClips = maxParallelClips;
+    }
+
+    public SegmentSource getSegmentSource() {
+        return mSegmentSource;
+    }
+
+    /**
+     * Sets the source of segments that were already transcoded from the clips, such as by a
+     * {@link BackgroundClipTranscoder} while the clips were being recorded. Segments that have the
+     * same size and encoder params as the output are used instead of transcoding the clip again,
+     * and segments that are still being transcoded are waited for while the other clips are
+     * transcoded. Requires a {@link SegmentRecorderFactory} to be set.
+     */
+    public void setSegmentSource(SegmentSource segmentSource) {
+        mSegmentSource = segmentSource;
+    }
+
+    public Checkpoint getCheckpoint() {
+        return mCheckpoint;
+    }
+
+    /**
+     * Sets a checkpoint that each clip is handed to as soon as it is transcoded into a segment, and
+     * that segments are reused from, so that a task that was killed does not transcode those clips
+     * again. Requires a {@link SegmentRecorderFactory}.
+     */
+    public void setCheckpoint(Checkpoint checkpoint) {
+        mCheckpoint = checkpoint;
+    }
+
+    public VideoThumbnailWriter getThumbnailWriter() {
+        return mThumbnailWriter;
+    }
+
+    /**
+     * Sets a writer that is handed the first video frame of the output as it is encoded, so that
+     * the thumbnail is written while the rest of the video is transformed. If the frames are
+     * copied rather than encoded, the first frame of the output is captured once it is written.
+     */
+    public void setThumbnailWriter(VideoThumbnailWriter thumbnailWriter) {
+        mThumbnailWriter = thumbnailWriter;
+    }
+
+    public int getDecoderThreadCount() {
+        return mDecoderThreadCount;
+    }
+
+    /**
+     * Sets the number of threads to decode each clip with. Default value is 0, which chooses the
+     * number of threads based on the number of processors.
+     */
+    public void setDecoderThreadCount(int decoderThreadCount) {
+        Preconditions.checkArgument(decoderThreadCount >= 0);
+        mDecoderThreadCount = decoderThreadCount;
+    }
+
+    public EncoderParamsI.CodecThreadType getDecoderThreadType() {
+        return mDecoderThreadType;
+    }
+
+    /**
+     * Sets the threading method to decode clips with. Default value is
+     * {@link EncoderParamsI.CodecThreadType#AUTO}.
+     */
+    public void setDecoderThreadType(EncoderParamsI.CodecThreadType decoderThreadType) {
+        mDecoderThreadType = Preconditions.checkNotNull(decoderThreadType);
+    }
+
+    /**
+     * Returns the size of the output video as it is displayed. Only valid after the task has run.
+     */
+    public ImageSize getOutputSize() {
+        return mOutputSize;
+    }
+
+    /**
+     * Cancels the task. The task throws a {@link CancellationException} from the thread that is
+     * running it.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    protected void checkNotCancelled() {
+        if (mCancelled) {
+            throw new CancellationException("Video transformer task was cancelled");
+        }
+    }
+
     @Override
     public void run() {
         if (mProgressListener != null) {
             mProgressListener.onStart();
         }
 
+        long startNanos = System.nanoTime();
+        mClipMetrics = new ArrayList<>(mClips.size());
+        for (int i = 0; i < mClips.size(); i++) {
+            mClipMetrics.add(new TransformMetrics());
+        }
         HashMap<FilterParams, FFmpegFrameFilter> filterMap = new HashMap<>();
         try {
             long totalMillis = 0;
-            LinkedList<FrameGrabberWrapper> frameGrabbers = new LinkedList<>();
-            ImageSize targetSize = mParams.getVideoSize();
+            LinkedList<ClipInput> inputs = new LinkedList<>();
             ImageSize.Builder outputSizeBuilder = ImageSize.UNDEFINED.toBuilder();
+            // Only read the metadata up front. Frame grabbers are opened one clip at a time so
+            // that decoders for all the clips are not held at once.
             for (VideoClipI clip : mClips) {
                 Log.v(LOG_TAG, String.format("Transforming clip %s", clip));
 
-                FrameGrabber frameGrabber = new FFmpegFrameGrabber(clip.getFile());
-                frameGrabber.start();
-                totalMillis += frameGrabber.getLengthInTime();
-                ImageSize recordedSize =
-                        new ImageSize(frameGrabber.getImageWidth(), frameGrabber.getImageHeight());
+                int clipIndex = inputs.size();
+                long openStartNanos = System.nanoTime();
+                ClipMetadata metadata = getClipMetadata(clip.getFile());
+                mClipMetrics.get(clipIndex).addStageNanos(
+                        TransformMetrics.Stage.OPEN, System.nanoTime() - openStartNanos);
+                totalMillis += metadata.getLengthInTime();
                 FilterParams filterParams = FilterParams.create(
-                        recordedSize, (int) Math.round(frameGrabber.getFrameRate()),
-                        clip.getFacing(), clip.getOrientationDegrees());
-                frameGrabbers.add(FrameGrabberWrapper.create(frameGrabber, filterParams));
+                        metadata.getImageSize(), (int) Math.round(metadata.getFrameRate()),
+                        clip.getFacing(),
+                        mMetadataRotationDegrees == 0 ? clip.getOrientationDegrees() : 0);
+                inputs.add(ClipInput.create(clip.getFile(), metadata, filterParams, clipIndex));
 
                 // Calculate the transformed size and take the max of them to determine the actual
                 // output size as different files may have different transformed sizes.
-                outputSizeBuilder.max(calculateTransformedSize(getRotatedRecordedSize(
-                        recordedSize, clip.getOrientationDegrees()), targetSize));
+                outputSizeBuilder.max(mFilterFactory.calculateTransformedSize(filterParams));
             }
             ImageSize outputSize = outputSizeBuilder.build();
+            mOutputSize = TransformFilterFactory.getRotatedRecordedSize(
+                    outputSize, mMetadataRotationDegrees);
             Log.d(LOG_TAG, String.format(
                     "Start transforming %d files of length %.3fs to output size %s",
                     mClips.size(),
@@ -94,164 +389,870 @@ public class VideoTransformerTask implements Runnable {
 
             // Initialize recorder
             if (mRecorder.getAudioChannels() < 0) {
-                mRecorder.setAudioChannels(
-                        frameGrabbers.peek().getFrameGrabber().getAudioChannels());
+                mRecorder.setAudioChannels(inputs.peek().getMetadata().getAudioChannels());
             }
             mRecorder.setImageWidth(outputSize.getWidthUnchecked());
             mRecorder.setImageHeight(outputSize.getHeightUnchecked());
-            mRecorder.start();
+            // Lets fast start output reserve space for the index instead of rewriting the file
+            mRecorder.setExpectedLengthInTime(totalMillis);
+            if (mMetadataRotationDegrees != 0) {
+                Log.d(LOG_TAG, String.format(
+                        "Rotating output %d degrees with metadata", mMetadataRotationDegrees));
+                mRecorder.setVideoMetadata("rotate", String.valueOf(mMetadataRotationDegrees));
+            }
+            File singleClipFile = null;
+            if (canRemux(inputs, outputSize)) {
+                if (canMoveSingleClip(inputs)) {
+                    // Only moved once everything else succeeded, since the clip is gone once it is
+                    // moved and a failure after that would lose the recording
+                    singleClipFile = inputs.peek().getFile();
+                } else {
+                    remux(inputs, totalMillis, mProgressListener);
+                }
+            } else if (canRemuxWithRotation(inputs, outputSize)) {
+                // The recorder copies the size of the stored frames, which are not rotated
+                ClipInput input = inputs.peek();
+                mRecorder.setImageWidth(input.getMetadata().getImageSize().getWidthUnchecked());
+                mRecorder.setImageHeight(input.getMetadata().getImageSize().getHeightUnchecked());
+                mRecorder.setVideoMetadata(
+                        "rotate", String.valueOf(input.getFilterParams().getRotationDegrees()));
+                remux(inputs, totalMillis, mProgressListener);
+            } else if (shouldTranscodeParallel(inputs)) {
+                transcodeParallel(inputs, outputSize, totalMillis);
+            } else {
+                mRecorder.start();
+                if (mPipelined) {
+                    transcodePipelined(inputs, filterMap, outputSize, totalMillis);
+                } else {
+                    transcode(mRecorder, inputs, filterMap, outputSize, totalMillis,
+                            mProgressListener);
+                }
+            }
+            // The recorder is not started when the single clip is moved
+            if (singleClipFile == null) {
+                mRecorder.stop();
+            }
+            if (mThumbnailWriter != null && !mThumbnailWriter.isCaptured()) {
+                // A clip that is moved has the same content as the output
+                mThumbnailWriter.capture(
+                        singleClipFile != null
+                                ? singleClipFile : new File(mRecorder.getFilename()),
+                        getOutputRotationDegrees());
+            }
+            if (singleClipFile != null && !moveSingleClip(inputs, totalMillis)) {
+                remux(inputs, totalMillis, mProgressListener);
+                mRecorder.stop();
+            }
+            Log.v(LOG_TAG, "Finished transforming");
+            reportMetrics(startNanos);
+        } catch (FrameGrabber.Exception | FrameFilter.Exception | FrameRecorder.Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (mRecorder != null) {
+                try {
+                    mRecorder.release();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Error releasing recorder", e);
+                }
+            }
+            releaseFilters(filterMap);
+        }
+        if (mProgressListener != null) {
+            mProgressListener.onDone();
+        }
+    }
 
-            long processedMillis = 0;
-            while (!frameGrabbers.isEmpty()) {
-                FrameGrabberWrapper wrapper = frameGrabbers.poll();
-                FrameGrabber frameGrabber = wrapper.getFrameGrabber();
-                // Create a filter to transform image size into desired size if needed
-                FFmpegFrameFilter filter =
-                        getFilter(filterMap, wrapper.getFilterParams(), outputSize);
+    protected void reportMetrics(long startNanos) {
+        TransformMetrics totalMetrics = new TransformMetrics();
+        for (TransformMetrics clipMetrics : mClipMetrics) {
+            totalMetrics.add(clipMetrics);
+        }
+        totalMetrics.setWallNanos(System.nanoTime() - startNanos);
+        // Includes the packets flushed when the recorder was stopped
+        totalMetrics.setBytesWritten(mRecorder.getPacketBytes());
+        totalMetrics.updatePeakNativeHeapBytes(Debug.getNativeHeapAllocatedSize());
+        Log.d(LOG_TAG, String.format("Transform metrics %s", totalMetrics));
+        if (mMetricsListener != null) {
+            mMetricsListener.onMetrics(Collections.unmodifiableList(mClipMetrics), totalMetrics);
+        }
+    }
+
+    protected ClipMetadata getClipMetadata(File file) throws FrameGrabber.Exception {
+        return mClipMetadataCache == null
+                ? ClipMetadata.probe(file) : mClipMetadataCache.get(file);
+    }
+
+    protected FFmpegFrameGrabber createFrameGrabber(File file) {
+        FFmpegFrameGrabber frameGrabber = new FFmpegFrameGrabber(file);
+        frameGrabber.setVideoOption("threads",
+                mDecoderThreadCount == 0 ? "auto" : Integer.toString(mDecoderThreadCount));
+        frameGrabber.setVideoOption("thread_type", mDecoderThreadType.optionValue);
+        return frameGrabber;
+    }
+
+    /**
+     * Creates and starts a frame grabber for the clip. It must be released with
+     * {@link #releaseFrameGrabber} when done.
+     */
+    protected FFmpegFrameGrabber openFrameGrabber(ClipInput input) throws FrameGrabber.Exception {
+        long startNanos = System.nanoTime();
+        FFmpegFrameGrabber frameGrabber = createFrameGrabber(input.getFile());
+        try {
+            frameGrabber.start();
+        } catch (FrameGrabber.Exception e) {
+            releaseFrameGrabber(frameGrabber);
+            throw e;
+        }
+        mClipMetrics.get(input.getClipIndex()).addStageNanos(
+                TransformMetrics.Stage.OPEN, System.nanoTime() - startNanos);
+        return frameGrabber;
+    }
+
+    protected static void releaseFrameGrabber(FrameGrabber frameGrabber) {
+        try {
+            frameGrabber.stop();
+            frameGrabber.release();
+        } catch (FrameGrabber.Exception e) {
+            Log.e(LOG_TAG, "Error releasing frame grabber", e);
+        }
+    }
+
+    protected void releaseFilters(HashMap<FilterParams, FFmpegFrameFilter> filterMap) {
+        for (FFmpegFrameFilter filter : filterMap.values()) {
+            if (mFilterCache != null) {
+                mFilterCache.release(filter);
+                continue;
+            }
+            try {
+                filter.stop();
+                filter.release();
+            } catch (FrameFilter.Exception e) {
+                Log.e(LOG_TAG, "Error releasing filter", e);
+            }
+        }
+        filterMap.clear();
+    }
+
+    /**
+     * Decodes, filters and re-encodes every frame of the clips into the recorder.
+     */
+    protected void transcode(
+            FFmpegFrameRecorder recorder,
+            LinkedList<ClipInput> inputs,
+            HashMap<FilterParams, FFmpegFrameFilter> filterMap,
+            ImageSize outputSize,
+            long totalMillis,
+            TaskListener progressListener)
+                    throws FrameGrabber.Exception, FrameFilter.Exception, FrameRecorder.Exception {
+        long processedMillis = 0;
+        while (!inputs.isEmpty()) {
+            ClipInput input = inputs.poll();
+            TransformMetrics metrics = mClipMetrics.get(input.getClipIndex());
+            // Create a filter to transform image size into desired size if needed
+            FFmpegFrameFilter filter =
+                    getFilter(filterMap, input.getFilterParams(), outputSize);
+            FrameGrabber frameGrabber = openFrameGrabber(input);
+            try {
                 long currMillis = 0;
                 Frame frame;
-                while ((frame = frameGrabber.grabFrame()) != null) {
+                while ((frame = grabFrame(frameGrabber, metrics)) != null) {
+                    checkNotCancelled();
                     Preconditions.checkState((frame.image != null) ^ (frame.samples != null));
                     if (frame.image != null && filter != null) {
-                        filter.push(frame);
-                        frame = Preconditions.checkNotNull(filter.pull());
+                        frame = filterFrame(filter, frame, metrics);
+                        if (frame == null) {
+                            continue;
+                        }
+                    }
+                    if (input.getClipIndex() == 0) {
+                        captureThumbnail(frame);
                     }
                     long timestampMillis = processedMillis + frameGrabber.getTimestamp();
-                    if (timestampMillis > mRecorder.getTimestamp()) {
-                        mRecorder.setTimestamp(timestampMillis);
+                    if (timestampMillis > recorder.getTimestamp()) {
+                        recorder.setTimestamp(timestampMillis);
                     }
-                    mRecorder.record(frame);
+                    recordFrame(recorder, frame, metrics);
                     currMillis = Math.max(currMillis, frameGrabber.getTimestamp());
-                    if (mProgressListener != null) {
-                        mProgressListener.onProgress(
+                    if (progressListener != null) {
+                        progressListener.onProgress(
                                 (int) (processedMillis + currMillis), (int) totalMillis);
                     }
                 }
                 processedMillis += frameGrabber.getLengthInTime();
-                frameGrabber.stop();
-                frameGrabber.release();
+            } finally {
+                releaseFrameGrabber(frameGrabber);
             }
-            mRecorder.stop();
-            Log.v(LOG_TAG, "Finished transforming");
-        } catch (FrameGrabber.Exception | FrameFilter.Exception | FrameRecorder.Exception e) {
+        }
+    }
+
+    protected static Frame grabFrame(FrameGrabber frameGrabber, TransformMetrics metrics)
+            throws FrameGrabber.Exception {
+        long startNanos = System.nanoTime();
+        Frame frame = frameGrabber.grabFrame();
+        metrics.addStageNanos(TransformMetrics.Stage.DECODE, System.nanoTime() - startNanos);
+        return frame;
+    }
+
+    /**
+     * Filters the frame. Returns null if the filter dropped the frame.
+     */
+    protected static Frame filterFrame(
+            FFmpegFrameFilter filter, Frame frame, TransformMetrics metrics)
+                    throws FrameFilter.Exception {
+        long startNanos = System.nanoTime();
+        filter.push(frame);
+        Frame filteredFrame = filter.pull();
+        metrics.addStageNanos(TransformMetrics.Stage.FILTER, System.nanoTime() - startNanos);
+        if (filteredFrame == null) {
+            Log.w(LOG_TAG, "Filter dropped frame");
+            metrics.addDroppedFrames(1);
+        }
+        return filteredFrame;
+    }
+
+    /**
+     * Records the frame and splits the time into encoding and muxing. Frames and bytes are only
+     * counted when they are written to the output rather than to a segment.
+     */
+    protected void recordFrame(FFmpegFrameRecorder recorder, Frame frame, TransformMetrics metrics)
+            throws FrameRecorder.Exception {
+        long muxNanos = recorder.getMuxNanos();
+        long packetBytes = recorder.getPacketBytes();
+        long startNanos = System.nanoTime();
+        recorder.record(frame);
+        long frameMuxNanos = recorder.getMuxNanos() - muxNanos;
+        metrics.addStageNanos(
+                TransformMetrics.Stage.ENCODE, System.nanoTime() - startNanos - frameMuxNanos);
+        metrics.addStageNanos(TransformMetrics.Stage.MUX, frameMuxNanos);
+        if (recorder == mRecorder) {
+            metrics.addBytesWritten(recorder.getPacketBytes() - packetBytes);
+            if (frame.image != null) {
+                addFrame(metrics);
+            }
+        }
+    }
+
+    /**
+     * Hands the frame to the thumbnail writer if it is the first video frame. Frames are already
+     * filtered, so the thumbnail is only rotated by the output metadata.
+     */
+    protected void captureThumbnail(Frame frame) {
+        if (mThumbnailWriter == null || frame.image == null || mThumbnailWriter.isCaptured()) {
+            return;
+        }
+        mThumbnailWriter.capture(frame, getOutputRotationDegrees());
+    }
+
+    /**
+     * Returns the rotation in the video metadata of the output.
+     */
+    protected int getOutputRotationDegrees() {
+        String rotate = mRecorder.getVideoMetadata().get("rotate");
+        return rotate == null ? 0 : Integer.parseInt(rotate);
+    }
+
+    protected static void addFrame(TransformMetrics metrics) {
+        metrics.addFrames(1);
+        if (metrics.getFrameCount() % NATIVE_HEAP_SAMPLE_INTERVAL_FRAMES == 0) {
+            metrics.updatePeakNativeHeapBytes(Debug.getNativeHeapAllocatedSize());
+        }
+    }
+
+    /**
+     * Same as {@link #transcode} except that decoding and filtering each run on their own thread
+     * while the calling thread encodes. Stages are connected by bounded queues and each stage copies
+     * its output frames into its own {@link FramePool}. Timestamps are computed by the decoding
+     * stage, so the output is the same as transcoding on a single thread.
+     */
+    protected void transcodePipelined(
+            final LinkedList<ClipInput> inputs,
+            final HashMap<FilterParams, FFmpegFrameFilter> filterMap,
+            final ImageSize outputSize,
+            long totalMillis) throws FrameRecorder.Exception {
+        final BlockingQueue<PipelineItem> decodedQueue =
+                new ArrayBlockingQueue<>(mPipelineQueueSize);
+        final BlockingQueue<PipelineItem> filteredQueue =
+                new ArrayBlockingQueue<>(mPipelineQueueSize);
+        // Each stage may hold one frame while the queue after it is full
+        final FramePool decodePool = new FramePool(mPipelineQueueSize + 2);
+        final FramePool filterPool = new FramePool(mPipelineQueueSize + 2);
+        final Thread encodeThread = Thread.currentThread();
+        final AtomicReference<Exception> stageError = new AtomicReference<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        decodeStage(inputs, decodePool, decodedQueue);
+                    } catch (Exception e) {
+                        failPipeline(e, stageError, encodeThread);
+                    }
+                }
+            });
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        filterStage(filterMap, outputSize, filterPool, decodedQueue, filteredQueue);
+                    } catch (Exception e) {
+                        failPipeline(e, stageError, encodeThread);
+                    }
+                }
+            });
+            encodeStage(filteredQueue, totalMillis);
+        } catch (InterruptedException e) {
+            Exception error = stageError.get();
+            if (error instanceof CancellationException) {
+                // Callers tell a cancelled task apart from a failed one by the exception type
+                throw (CancellationException) error;
+            }
+            throw new RuntimeException(error != null ? error : e);
+        } finally {
+            // Wait for the stages to exit so that grabbers and filters are no longer in use
+            executor.shutdownNow();
+            Thread.interrupted();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Log.e(LOG_TAG, "Interrupted waiting for pipeline stages to exit", e);
+            }
+        }
+    }
+
+    /**
+     * Returns whether to transcode the clips into segments in parallel and concatenate them. When
+     * the recorder has a fragment listener and there are no transcoded segments to reuse, the
+     * clips are transcoded in order instead so that the output is written while encoding rather
+     * than all at once at the end.
+     */
+    protected boolean shouldTranscodeParallel(List<ClipInput> inputs) {
+        if (mSegmentRecorderFactory == null) {
+            return false;
+        }
+        if (mSegmentSource != null || mCheckpoint != null) {
+            return true;
+        }
+        return inputs.size() > 1 && mRecorder.getFragmentListener() == null;
+    }
+
+    /**
+     * Transcodes each clip into its own segment on a pool of threads and then concatenates the
+     * segments into the recorder. Clips that already have a segment of the output size and encoder
+     * params from the {@link Checkpoint} or {@link SegmentSource} are not transcoded again.
+     */
+    protected void transcodeParallel(
+            LinkedList<ClipInput> inputs,
+            final ImageSize outputSize,
+            final long totalMillis) throws FrameGrabber.Exception, FrameRecorder.Exception {
+        int threadCount = Math.min(inputs.size(), mMaxParallelClips);
+        Log.d(LOG_TAG, String.format(
+                "Transcoding %d clips on %d threads", inputs.size(), threadCount));
+        final long[] clipProgress = new long[inputs.size()];
+        final File[] segmentFiles = new File[inputs.size()];
+        // Segments that are handed to the checkpoint are no longer owned by the task
+        final Set<File> ownedSegmentFiles = Collections.synchronizedSet(new HashSet<File>());
+        List<Future<Void>> futures = new ArrayList<>(inputs.size());
+        final String encoderParamsKey = getEncoderParamsKey(mRecorder);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            Iterator<? extends VideoClipI> clipIterator = mClips.iterator();
+            int nextClipIndex = 0;
+            for (final ClipInput input : inputs) {
+                final VideoClipI clip = clipIterator.next();
+                final int clipIndex = nextClipIndex++;
+                final TaskListener clipListener = new TaskListener() {
+                    @Override
+                    public void onStart() {}
+
+                    @Override
+                    public void onProgress(int progress, int total) {
+                        reportClipProgress(clipProgress, clipIndex, progress, totalMillis);
+                    }
+
+                    @Override
+                    public void onDone() {}
+                };
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        // Looked up on the transcoding thread since the source may wait for it
+                        Segment segment =
+                                getTranscodedSegment(clip, outputSize, encoderParamsKey);
+                        if (segment != null) {
+                            Log.v(LOG_TAG, String.format(
+                                    "Using transcoded segment for clip %s", clip));
+                            segmentFiles[clipIndex] = segment.getFile();
+                            reportClipProgress(clipProgress, clipIndex,
+                                    input.getMetadata().getLengthInTime(), totalMillis);
+                            return null;
+                        }
+                        File segmentFile = mSegmentRecorderFactory.createSegmentFile();
+                        segmentFiles[clipIndex] = segmentFile;
+                        ownedSegmentFiles.add(segmentFile);
+                        transcodeSegment(input, segmentFile, outputSize, clipListener);
+                        if (mCheckpoint != null) {
+                            mCheckpoint.onSegmentTranscoded(clip,
+                                    Segment.create(segmentFile, outputSize,
+                                            mMetadataRotationDegrees, encoderParamsKey));
+                            ownedSegmentFiles.remove(segmentFile);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            inputs.clear();
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            concatSegments(Arrays.asList(segmentFiles), outputSize, totalMillis);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException
+                    ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        } catch (InterruptedException | IOException | FrameFilter.Exception e) {
             throw new RuntimeException(e);
         } finally {
-            if (mRecorder != null) {
-                try {
-                    mRecorder.release();
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "Error releasing recorder", e);
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Log.e(LOG_TAG, "Interrupted waiting for clip transcoding to exit", e);
+            }
+            synchronized (ownedSegmentFiles) {
+                for (File segmentFile : ownedSegmentFiles) {
+                    segmentFile.delete();
                 }
             }
-            for (FFmpegFrameFilter filter : filterMap.values()) {
-                try {
-                    filter.stop();
-                    filter.release();
-                } catch (FrameFilter.Exception e) {
-                    Log.e(LOG_TAG, "Error releasing filter", e);
+        }
+    }
+
+    /**
+     * Returns the segment of the clip from the checkpoint or the segment source if it can be
+     * concatenated into the output, or null if the clip must be transcoded.
+     */
+    protected Segment getTranscodedSegment(
+            VideoClipI clip, ImageSize outputSize, String encoderParamsKey) {
+        Segment segment = mCheckpoint == null
+                ? null : mCheckpoint.getSegment(clip, encoderParamsKey);
+        // Segments from the source have rotated frames
+        if (segment == null && mSegmentSource != null && mMetadataRotationDegrees == 0) {
+            segment = mSegmentSource.getSegment(clip, encoderParamsKey);
+        }
+        if (segment != null
+                && segment.getImageSize().equals(outputSize)
+                && segment.getMetadataRotationDegrees() == mMetadataRotationDegrees
+                && segment.getEncoderParamsKey().equals(encoderParamsKey)
+                && segment.getFile().exists()) {
+            return segment;
+        }
+        return null;
+    }
+
+    protected void reportClipProgress(
+            long[] clipProgress, int clipIndex, long progressMillis, long totalMillis) {
+        if (mProgressListener == null) {
+            return;
+        }
+        synchronized (clipProgress) {
+            clipProgress[clipIndex] = progressMillis;
+            long processedMillis = 0;
+            for (long millis : clipProgress) {
+                processedMillis += millis;
+            }
+            mProgressListener.onProgress((int) processedMillis, (int) totalMillis);
+        }
+    }
+
+    /**
+     * Transcodes one clip into a segment file with the same encoder params and size as the output.
+     */
+    protected void transcodeSegment(
+            ClipInput input,
+            File segmentFile,
+            ImageSize outputSize,
+            TaskListener progressListener)
+                    throws FrameGrabber.Exception, FrameFilter.Exception, FrameRecorder.Exception {
+        FFmpegFrameRecorder recorder = mSegmentRecorderFactory.createSegmentRecorder(segmentFile);
+        HashMap<FilterParams, FFmpegFrameFilter> filterMap = new HashMap<>();
+        try {
+            recorder.setAudioChannels(mRecorder.getAudioChannels());
+            recorder.setImageWidth(outputSize.getWidthUnchecked());
+            recorder.setImageHeight(outputSize.getHeightUnchecked());
+            recorder.setExpectedLengthInTime(input.getMetadata().getLengthInTime());
+            recorder.start();
+            LinkedList<ClipInput> inputs = new LinkedList<>();
+            inputs.add(input);
+            transcode(recorder, inputs, filterMap, outputSize,
+                    input.getMetadata().getLengthInTime(), progressListener);
+            recorder.stop();
+        } finally {
+            try {
+                recorder.release();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Error releasing segment recorder", e);
+            }
+            releaseFilters(filterMap);
+        }
+    }
+
+    /**
+     * Returns a key of the params that the recorder encodes with, so that segments encoded with
+     * other params are not concatenated into it. The audio channels are left out since they are
+     * copied from the clips.
+     */
+    public static String getEncoderParamsKey(FFmpegFrameRecorder recorder) {
+        return String.format(Locale.US, "%s;video:%d,%d,%.3f,%.3f,%d,%s;audio:%d,%d,%d,%.3f,%s",
+                recorder.getFormat(),
+                recorder.getVideoCodec(),
+                recorder.getVideoBitrate(),
+                recorder.getFrameRate(),
+                recorder.getVideoQuality(),
+                recorder.getPixelFormat(),
+                new TreeMap<>(recorder.getVideoOptions()),
+                recorder.getAudioCodec(),
+                recorder.getAudioBitrate(),
+                recorder.getSampleRate(),
+                recorder.getAudioQuality(),
+                new TreeMap<>(recorder.getAudioOptions()));
+    }
+
+    /**
+     * Concatenates the segments into the recorder. Segments are remuxed if they have the same codec
+     * parameters, otherwise they are re-encoded.
+     */
+    protected void concatSegments(List<File> segmentFiles, ImageSize outputSize, long totalMillis)
+            throws FrameGrabber.Exception, FrameFilter.Exception, FrameRecorder.Exception {
+        LinkedList<ClipInput> inputs = new LinkedList<>();
+        boolean canRemux = mRemuxEnabled;
+        for (File segmentFile : segmentFiles) {
+            int clipIndex = inputs.size();
+            long openStartNanos = System.nanoTime();
+            // Segments are temporary so their metadata is not cached
+            ClipMetadata metadata = ClipMetadata.probe(segmentFile);
+            mClipMetrics.get(clipIndex).addStageNanos(
+                    TransformMetrics.Stage.OPEN, System.nanoTime() - openStartNanos);
+            if (!inputs.isEmpty()) {
+                canRemux &= inputs.peek().getMetadata().hasSameCodecParameters(metadata);
+            }
+            inputs.add(ClipInput.create(segmentFile, metadata, FilterParams.create(
+                    outputSize, (int) Math.round(metadata.getFrameRate()),
+                    CameraControllerI.Facing.BACK, 0), clipIndex));
+        }
+        if (canRemux) {
+            remux(inputs, totalMillis, null);
+        } else {
+            Log.w(LOG_TAG, "Segments cannot be remuxed. Re-encoding segments");
+            HashMap<FilterParams, FFmpegFrameFilter> filterMap = new HashMap<>();
+            try {
+                mRecorder.start();
+                transcode(mRecorder, inputs, filterMap, outputSize, totalMillis, null);
+            } finally {
+                releaseFilters(filterMap);
+            }
+        }
+    }
+
+    protected static void failPipeline(
+            Exception e, AtomicReference<Exception> stageError, Thread encodeThread) {
+        if (e instanceof InterruptedException) {
+            // The pipeline is already shutting down
+            return;
+        }
+        if (!(e instanceof CancellationException)) {
+            Log.e(LOG_TAG, "Pipeline stage failed", e);
+        }
+        if (stageError.compareAndSet(null, e)) {
+            encodeThread.interrupt();
+        }
+    }
+
+    protected void decodeStage(
+            LinkedList<ClipInput> inputs,
+            FramePool framePool,
+            BlockingQueue<PipelineItem> outputQueue)
+                    throws FrameGrabber.Exception, InterruptedException {
+        long processedMillis = 0;
+        while (!inputs.isEmpty()) {
+            ClipInput input = inputs.poll();
+            TransformMetrics metrics = mClipMetrics.get(input.getClipIndex());
+            FrameGrabber frameGrabber = openFrameGrabber(input);
+            try {
+                long currMillis = 0;
+                Frame frame;
+                while ((frame = grabFrame(frameGrabber, metrics)) != null) {
+                    checkNotCancelled();
+                    Preconditions.checkState((frame.image != null) ^ (frame.samples != null));
+                    long timestampMillis = processedMillis + frameGrabber.getTimestamp();
+                    currMillis = Math.max(currMillis, frameGrabber.getTimestamp());
+                    outputQueue.put(new PipelineItem(
+                            framePool.copy(frame, timestampMillis),
+                            input.getFilterParams(),
+                            input.getClipIndex(),
+                            processedMillis + currMillis));
                 }
+                processedMillis += frameGrabber.getLengthInTime();
+            } finally {
+                releaseFrameGrabber(frameGrabber);
             }
         }
-        if (mProgressListener != null) {
-            mProgressListener.onDone();
+        outputQueue.put(PipelineItem.END);
+    }
+
+    protected void filterStage(
+            HashMap<FilterParams, FFmpegFrameFilter> filterMap,
+            ImageSize outputSize,
+            FramePool framePool,
+            BlockingQueue<PipelineItem> inputQueue,
+            BlockingQueue<PipelineItem> outputQueue)
+                    throws FrameFilter.Exception, InterruptedException {
+        FilterParams filterParams = null;
+        FFmpegFrameFilter filter = null;
+        PipelineItem item;
+        while ((item = inputQueue.take()) != PipelineItem.END) {
+            Frame frame = item.mFrame.getFrame();
+            if (frame.image != null) {
+                if (!item.mFilterParams.equals(filterParams)) {
+                    filterParams = item.mFilterParams;
+                    filter = getFilter(filterMap, filterParams, outputSize);
+                }
+                if (filter != null) {
+                    frame = filterFrame(filter, frame, mClipMetrics.get(item.mClipIndex));
+                    if (frame == null) {
+                        item.mFrame.release();
+                        continue;
+                    }
+                    FramePool.PooledFrame filteredFrame =
+                            framePool.copy(frame, item.mFrame.getTimestamp());
+                    item.mFrame.release();
+                    item = new PipelineItem(filteredFrame, item.mFilterParams,
+                            item.mClipIndex, item.mProgressMillis);
+                }
+            }
+            outputQueue.put(item);
         }
+        outputQueue.put(PipelineItem.END);
     }
 
-    protected static ImageSize getRotatedRecordedSize(ImageSize recordedSize, int rotationDegrees) {
-        return (rotationDegrees % 180 == 90)
-                ? recordedSize.toBuilder().invert().build()
-                : recordedSize;
+    protected void encodeStage(BlockingQueue<PipelineItem> inputQueue, long totalMillis)
+            throws FrameRecorder.Exception, InterruptedException {
+        PipelineItem item;
+        while ((item = inputQueue.take()) != PipelineItem.END) {
+            checkNotCancelled();
+            long timestampMillis = item.mFrame.getTimestamp();
+            if (timestampMillis > mRecorder.getTimestamp()) {
+                mRecorder.setTimestamp(timestampMillis);
+            }
+            if (item.mClipIndex == 0) {
+                captureThumbnail(item.mFrame.getFrame());
+            }
+            recordFrame(mRecorder, item.mFrame.getFrame(), mClipMetrics.get(item.mClipIndex));
+            item.mFrame.release();
+            if (mProgressListener != null) {
+                mProgressListener.onProgress((int) item.mProgressMillis, (int) totalMillis);
+            }
+        }
     }
 
     /**
-     * Returns the resulting transformed size for a specific recorded size.
+     * Returns whether the clips can be concatenated by copying their compressed packets. This
+     * requires that none of the clips need to be filtered and that all of them were encoded with
+     * the same codec parameters that the recorder would use.
      */
-    protected ImageSize calculateTransformedSize(ImageSize recordedSize, ImageSize targetSize) {
-        if (!targetSize.areBothDimensionsDefined()) {
-            targetSize = targetSize.toBuilder()
-                    .calculateUndefinedDimensions(recordedSize)
-                    .build();
+    protected boolean canRemux(List<ClipInput> inputs, ImageSize outputSize) {
+        if (!mRemuxEnabled) {
+            return false;
+        }
+        ClipMetadata firstMetadata = inputs.get(0).getMetadata();
+        for (ClipInput input : inputs) {
+            ClipMetadata metadata = input.getMetadata();
+            if (mFilterFactory.needsFilter(input.getFilterParams())
+                    || !input.getFilterParams().getImageSize().equals(outputSize)
+                    || !hasRecorderCodecs(metadata)
+                    || !firstMetadata.hasSameCodecParameters(metadata)) {
+                Log.v(LOG_TAG, String.format(
+                        "Clip with params %s cannot be remuxed", input.getFilterParams()));
+                return false;
+            }
         }
-        ImageSize.Builder builder = recordedSize.toBuilder()
-                .scale(targetSize, mParams.getVideoImageFit(), mParams.getVideoImageScale());
-        if (mParams.getShouldCropVideo()) {
-            builder.min(targetSize);
+        return true;
+    }
+
+    /**
+     * Returns whether the only clip just needs rotating into the output, so that its packets can
+     * be copied with the rotation written as container metadata.
+     */
+    protected boolean canRemuxWithRotation(List<ClipInput> inputs, ImageSize outputSize) {
+        if (!mRemuxEnabled || !mSingleClipShortcutEnabled || inputs.size() != 1) {
+            return false;
+        }
+        ClipInput input = inputs.get(0);
+        FilterParams params = input.getFilterParams();
+        if (params.getRotationDegrees() == 0) {
+            return false;
+        }
+        // The clip as the player displays it, which must not need any other transform
+        FilterParams displayedParams = FilterParams.create(
+                TransformFilterFactory.getRotatedRecordedSize(
+                        params.getImageSize(), params.getRotationDegrees()),
+                params.getFrameRate(), params.getFacing(), 0);
+        return !mFilterFactory.needsFilter(displayedParams)
+                && displayedParams.getImageSize().equals(outputSize)
+                && hasRecorderCodecs(input.getMetadata());
+    }
+
+    /**
+     * Returns whether the clip was encoded with the codecs and video params of the recorder, so
+     * that copying its packets gives the output the recorder was configured for. A clip may have a
+     * lower bitrate than the recorder, since re-encoding would not improve it. Encoder options
+     * that can't be read back from the clip, like the preset, tune and CRF, are not compared, since
+     * they only trade encoding speed for size and the bitrate already bounds the size.
+     */
+    protected boolean hasRecorderCodecs(ClipMetadata metadata) {
+        boolean hasAudio = metadata.getAudioChannels() > 0;
+        int pixelFormat = mRecorder.getPixelFormat() == AV_PIX_FMT_NONE
+                ? AV_PIX_FMT_YUV420P : mRecorder.getPixelFormat();
+        return metadata.getVideoCodec() == mRecorder.getVideoCodec()
+                && metadata.getPixelFormat() == pixelFormat
+                && Math.abs(metadata.getFrameRate() - mRecorder.getFrameRate())
+                        <= REMUX_FRAME_RATE_TOLERANCE
+                && metadata.getVideoBitrate() > 0
+                && metadata.getVideoBitrate()
+                        <= mRecorder.getVideoBitrate() * (1 + REMUX_BITRATE_TOLERANCE)
+                && metadata.getAudioChannels() == mRecorder.getAudioChannels()
+                && (!hasAudio || metadata.getAudioCodec() == mRecorder.getAudioCodec())
+                && (!hasAudio || metadata.getSampleRate() == mRecorder.getSampleRate());
+    }
+
+    /**
+     * Returns whether the only clip can be moved to the output file, which is when the recorder
+     * would copy its packets into the same container without any options. Moving saves copying the
+     * whole file.
+     */
+    protected boolean canMoveSingleClip(List<ClipInput> inputs) {
+        if (!mSingleClipShortcutEnabled || inputs.size() != 1) {
+            return false;
+        }
+        File clipFile = inputs.get(0).getFile();
+        return clipFile.getName().endsWith("." + mRecorder.getFormat())
+                && !mRecorder.isFastStart()
+                && mRecorder.getFragmentListener() == null
+                && mRecorder.getOptions().isEmpty()
+                && mRecorder.getVideoMetadata().isEmpty();
+    }
+
+    /**
+     * Moves the only clip to the output file. Must only be called once nothing else can fail,
+     * since the clip no longer exists after it is moved. Returns whether the clip was moved.
+     */
+    protected boolean moveSingleClip(LinkedList<ClipInput> inputs, long totalMillis) {
+        File clipFile = inputs.peek().getFile();
+        File outputFile = new File(mRecorder.getFilename());
+        if (!clipFile.renameTo(outputFile)) {
+            Log.w(LOG_TAG, String.format("Could not move clip %s to %s", clipFile, outputFile));
+            return false;
+        }
+        Log.d(LOG_TAG, String.format("Moved single clip %s to %s", clipFile, outputFile));
+        if (mClipMetadataCache != null) {
+            mClipMetadataCache.remove(clipFile);
+        }
+        inputs.poll();
+        if (mProgressListener != null) {
+            mProgressListener.onProgress((int) totalMillis, (int) totalMillis);
+        }
+        return true;
+    }
+
+    /**
+     * Concatenates the clips by copying their compressed packets into the recorder without
+     * decoding them.
+     */
+    protected void remux(
+            LinkedList<ClipInput> inputs,
+            long totalMillis,
+            TaskListener progressListener)
+                    throws FrameGrabber.Exception, FrameRecorder.Exception {
+        Log.d(LOG_TAG, "Remuxing clips without re-encoding");
+        boolean isRecorderStarted = false;
+        long processedMillis = 0;
+        while (!inputs.isEmpty()) {
+            ClipInput input = inputs.poll();
+            TransformMetrics metrics = mClipMetrics.get(input.getClipIndex());
+            FFmpegFrameGrabber frameGrabber = openFrameGrabber(input);
+            try {
+                AVFormatContext formatContext = frameGrabber.getFormatContext();
+                if (!isRecorderStarted) {
+                    mRecorder.start(formatContext);
+                    isRecorderStarted = true;
+                }
+                long currMillis = 0;
+                AVPacket packet;
+                while (true) {
+                    long startNanos = System.nanoTime();
+                    packet = frameGrabber.grabPacket();
+                    metrics.addStageNanos(
+                            TransformMetrics.Stage.DECODE, System.nanoTime() - startNanos);
+                    if (packet == null) {
+                        break;
+                    }
+                    checkNotCancelled();
+                    currMillis = Math.max(currMillis, getPacketTimestamp(formatContext, packet));
+                    boolean isVideo = formatContext.streams(packet.stream_index()).codec()
+                            .codec_type() == AVMEDIA_TYPE_VIDEO;
+                    long packetBytes = mRecorder.getPacketBytes();
+                    startNanos = System.nanoTime();
+                    mRecorder.recordPacket(packet, formatContext, processedMillis);
+                    metrics.addStageNanos(
+                            TransformMetrics.Stage.MUX, System.nanoTime() - startNanos);
+                    metrics.addBytesWritten(mRecorder.getPacketBytes() - packetBytes);
+                    if (isVideo) {
+                        addFrame(metrics);
+                    }
+                    if (progressListener != null) {
+                        progressListener.onProgress(
+                                (int) (processedMillis + currMillis), (int) totalMillis);
+                    }
+                }
+                processedMillis += frameGrabber.getLengthInTime();
+            } finally {
+                releaseFrameGrabber(frameGrabber);
+            }
         }
-        if (mParams.getShouldPadVideo()) {
-            builder.max(targetSize);
+    }
+
+    /**
+     * Returns the decoding timestamp of the packet in microseconds.
+     */
+    protected static long getPacketTimestamp(AVFormatContext formatContext, AVPacket packet) {
+        if (packet.dts() == AV_NOPTS_VALUE) {
+            return 0;
         }
-        return builder.build();
+        AVStream stream = formatContext.streams(packet.stream_index());
+        long startTime = formatContext.start_time() == AV_NOPTS_VALUE
+                ? 0 : formatContext.start_time();
+        return Math.round(packet.dts() * av_q2d(stream.time_base())
+                * TimeUnit.SECONDS.toMicros(1)) - startTime;
     }
 
     // Create a filter to transform the frame to the desired size. Uses an existing filter if the
-    // params match.
+    // params match, or an idle filter from the filter cache.
     protected FFmpegFrameFilter getFilter(
             HashMap<FilterParams, FFmpegFrameFilter> filterMap,
             FilterParams params, ImageSize outputSize)
                     throws FrameFilter.Exception {
-        ImageSize targetSize = mParams.getVideoSize();
-        int rotationDegrees = params.getRotationDegrees();
-        ImageSize imageSize = params.getImageSize();
-        ImageSize rotatedImageSize = getRotatedRecordedSize(imageSize, rotationDegrees);
-        if (targetSize.isOneDimensionDefined()) {
-            targetSize = targetSize.toBuilder()
-                    .calculateUndefinedDimensions(rotatedImageSize)
-                    .build();
-        }
-        if (rotationDegrees == 0 && params.getFacing() == CameraControllerI.Facing.BACK
-                && imageSize.equals(targetSize)) {
+        if (!mFilterFactory.needsFilter(params)) {
             return null;
         }
-
         FFmpegFrameFilter filter = filterMap.get(params);
         if (filter != null) {
             return filter;
         }
-
-        ArrayList<String> transforms = new ArrayList<>();
-        if (params.getFacing() == CameraControllerI.Facing.FRONT) {
-            transforms.add("hflip");
-        }
-        switch (rotationDegrees) {
-            case 0:
-                break;
-            case 90:
-                transforms.add("transpose=clock");
-                break;
-            case 180:
-                transforms.add("vflip");
-                transforms.add("hflip");
-                break;
-            case 270:
-                transforms.add("transpose=cclock");
-                break;
-            default:
-                throw new InvalidParameterException(String.format(
-                        Locale.US, "Unsupported rotation %d", rotationDegrees));
-        }
-        ImageSize.Builder imageSizeBuilder = rotatedImageSize.toBuilder()
-                .scale(targetSize, mParams.getVideoImageFit(), mParams.getVideoImageScale());
-        transforms.add("scale=" + imageSizeBuilder.getWidthUnchecked()
-                + ":" + imageSizeBuilder.getHeightUnchecked());
-        if (mParams.getShouldCropVideo()) {
-            imageSizeBuilder.min(targetSize);
-            transforms.add("crop=" + imageSizeBuilder.getWidthUnchecked()
-                        + ":" + imageSizeBuilder.getHeightUnchecked());
-        }
-        if (imageSizeBuilder.getWidthUnchecked() < outputSize.getWidthUnchecked()
-                || imageSizeBuilder.getHeightUnchecked() < outputSize.getHeightUnchecked()) {
-            transforms.add("pad=" + outputSize.getWidthUnchecked()
-                    + ":" + outputSize.getHeightUnchecked() + ":(ow-iw)/2:(oh-ih)/2");
-        }
-
-        Log.v(LOG_TAG, String.format(
-                "Creating filter with transforms %s for params %s", transforms, params));
-        filter = new FFmpegFrameFilter(
-                TextUtils.join(",", transforms),
-                imageSize.getWidthUnchecked(),
-                imageSize.getHeightUnchecked());
-        filter.setFrameRate(params.getFrameRate());
-        filter.start();
+        if (mFilterCache != null) {
+            filter = mFilterCache.acquire(mFilterFactory, params, outputSize);
+        } else {
+            filter = mFilterFactory.createFilter(params, outputSize);
+            filter.start();
+        }
         filterMap.put(params, filter);
         return filter;
     }
@@ -270,17 +1271,112 @@ public class VideoTransformerTask implements Runnable {
         }
     }
 
+    /**
+     * Clip to transform with the metadata read before opening it.
+     */
     @AutoValue
-    public abstract static class FrameGrabberWrapper {
-        public abstract FrameGrabber getFrameGrabber();
+    public abstract static class ClipInput {
+        public abstract File getFile();
+        public abstract ClipMetadata getMetadata();
         public abstract FilterParams getFilterParams();
+        public abstract int getClipIndex();
 
-        public static FrameGrabberWrapper create(FrameGrabber frameGrabber, FilterParams filterParams) {
-            return new AutoValue_VideoTransformerTask_FrameGrabberWrapper(
-                    frameGrabber, filterParams);
+        public static ClipInput create(
+                File file, ClipMetadata metadata, FilterParams filterParams, int clipIndex) {
+            return new AutoValue_VideoTransformerTask_ClipInput(
+                    file, metadata, filterParams, clipIndex);
         }
     }
 
+    /**
+     * Frame passed between pipeline stages.
+     */
+    protected static class PipelineItem {
+        protected static final PipelineItem END = new PipelineItem(null, null, 0, 0);
+
+        protected final FramePool.PooledFrame mFrame;
+        protected final FilterParams mFilterParams;
+        protected final int mClipIndex;
+        protected final long mProgressMillis;
+
+        protected PipelineItem(FramePool.PooledFrame frame, FilterParams filterParams,
+                int clipIndex, long progressMillis) {
+            mFrame = frame;
+            mFilterParams = filterParams;
+            mClipIndex = clipIndex;
+            mProgressMillis = progressMillis;
+        }
+    }
+
+    /**
+     * Factory for the recorders of intermediate segments.
+     */
+    public interface SegmentRecorderFactory {
+        /**
+         * Create a new temporary file to record a segment to.
+         */
+        File createSegmentFile() throws IOException;
+
+        /**
+         * Create a recorder for the segment file. The recorder must use the same encoder params as
+         * the output recorder so that the segments can be concatenated without re-encoding.
+         */
+        FFmpegFrameRecorder createSegmentRecorder(File file);
+    }
+
+    /**
+     * Source of segments that were already transcoded from clips.
+     */
+    public interface SegmentSource {
+        /**
+         * Returns the segment transcoded from the clip with the encoder params key from
+         * {@link #getEncoderParamsKey}, or null if there is none. May block until a segment that
+         * is being transcoded is done. Called on a transcoding thread, so the other clips are
+         * transcoded meanwhile, and the task transcodes the clip itself if there is no segment.
+         */
+        Segment getSegment(VideoClipI clip, String encoderParamsKey);
+    }
+
+    /**
+     * Source of segments that also takes ownership of segments as soon as they are transcoded.
+     */
+    public interface Checkpoint extends SegmentSource {
+        /**
+         * Called on a transcoding thread when the clip was transcoded into the segment.
+         */
+        void onSegmentTranscoded(VideoClipI clip, Segment segment);
+    }
+
+    @AutoValue
+    public abstract static class Segment {
+        public abstract File getFile();
+        public abstract ImageSize getImageSize();
+        /**
+         * Rotation that was left to the output metadata instead of being applied to the frames of
+         * the segment.
+         */
+        public abstract int getMetadataRotationDegrees();
+        /** Key from {@link #getEncoderParamsKey} of the recorder that encoded the segment. */
+        public abstract String getEncoderParamsKey();
+
+        public static Segment create(File file, ImageSize imageSize, int metadataRotationDegrees,
+                String encoderParamsKey) {
+            return new AutoValue_VideoTransformerTask_Segment(
+                    file, imageSize, metadataRotationDegrees, encoderParamsKey);
+        }
+    }
+
+    /**
+     * Listener for the metrics of the task.
+     */
+    public interface MetricsListener {
+        /**
+         * Called when the task finishes with the metrics of each clip, in the order of the clips,
+         * and the metrics of the whole task.
+         */
+        void onMetrics(List<TransformMetrics> clipMetrics, TransformMetrics totalMetrics);
+    }
+
     /**
      * Progress listener
      */
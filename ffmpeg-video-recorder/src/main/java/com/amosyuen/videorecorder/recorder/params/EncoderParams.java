@@ -33,9 +33,24 @@ public abstract class EncoderParams implements EncoderParamsI {
     @Override
     public abstract VideoCodec getVideoCodec();
 
+    @Override
+    public abstract Optional<VideoPreset> getVideoPreset();
+
+    @Override
+    public abstract Optional<VideoTune> getVideoTune();
+
+    @Override
+    public abstract Optional<Integer> getVideoCrf();
+
     @Override
     public abstract OutputFormat getOutputFormat();
 
+    @Override
+    public abstract Optional<Integer> getCodecThreadCount();
+
+    @Override
+    public abstract CodecThreadType getCodecThreadType();
+
     public abstract Builder toBuilder();
 
     public static Builder builder() {
@@ -49,7 +64,8 @@ public abstract class EncoderParams implements EncoderParamsI {
             return builder
                     .setAudioCodec(EncoderParamsI.AudioCodec.AAC)
                     .setVideoCodec(EncoderParamsI.VideoCodec.H264)
-                    .setOutputFormat(EncoderParamsI.OutputFormat.MP4);
+                    .setOutputFormat(EncoderParamsI.OutputFormat.MP4)
+                    .setCodecThreadType(EncoderParamsI.CodecThreadType.AUTO);
         }
 
         public static <T extends EncoderParamsI.BuilderI<T>> T setDefaults(T builder) {
@@ -62,7 +78,12 @@ public abstract class EncoderParams implements EncoderParamsI {
             return builder
                     .setAudioCodec(params.getAudioCodec())
                     .setVideoCodec(params.getVideoCodec())
-                    .setOutputFormat(params.getOutputFormat());
+                    .setVideoPreset(params.getVideoPreset())
+                    .setVideoTune(params.getVideoTune())
+                    .setVideoCrf(params.getVideoCrf())
+                    .setOutputFormat(params.getOutputFormat())
+                    .setCodecThreadCount(params.getCodecThreadCount())
+                    .setCodecThreadType(params.getCodecThreadType());
         }
 
         public static <T extends EncoderParamsI.BuilderI<T>> T merge(
@@ -76,6 +97,9 @@ public abstract class EncoderParams implements EncoderParamsI {
             Preconditions.checkState(params.getAudioChannelCount().or(1) > 0);
             Preconditions.checkState(params.getAudioSamplingRateHz().or(1) > 0);
             Preconditions.checkState(params.getVideoBitrate().or(1) > 0);
+            Preconditions.checkState(params.getVideoCrf().or(0) >= 0);
+            Preconditions.checkState(params.getVideoCrf().or(0) <= 51);
+            Preconditions.checkState(params.getCodecThreadCount().or(1) > 0);
             return params;
         }
 
@@ -128,9 +152,40 @@ public abstract class EncoderParams implements EncoderParamsI {
         @Override
         public abstract Builder setVideoCodec(VideoCodec val);
 
+        @Override
+        public Builder setVideoPreset(VideoPreset val) {
+            return setVideoPreset(Optional.of(val));
+        }
+        @Override
+        public abstract Builder setVideoPreset(Optional<VideoPreset> val);
+
+        @Override
+        public Builder setVideoTune(VideoTune val) {
+            return setVideoTune(Optional.of(val));
+        }
+        @Override
+        public abstract Builder setVideoTune(Optional<VideoTune> val);
+
+        @Override
+        public Builder setVideoCrf(int val) {
+            return setVideoCrf(Optional.of(val));
+        }
+        @Override
+        public abstract Builder setVideoCrf(Optional<Integer> val);
+
         @Override
         public abstract Builder setOutputFormat(OutputFormat val);
 
+        @Override
+        public Builder setCodecThreadCount(int val) {
+            return setCodecThreadCount(Optional.of(val));
+        }
+        @Override
+        public abstract Builder setCodecThreadCount(Optional<Integer> val);
+
+        @Override
+        public abstract Builder setCodecThreadType(CodecThreadType val);
+
         abstract EncoderParams autoBuild();
 
         @Override
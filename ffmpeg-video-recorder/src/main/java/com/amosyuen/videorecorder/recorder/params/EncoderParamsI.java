@@ -2,6 +2,7 @@ package com.amosyuen.videorecorder.recorder.params;
 
 
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
 
 import org.bytedeco.javacpp.avcodec;
 
@@ -191,6 +192,17 @@ public interface EncoderParamsI extends VideoFrameRateParamsI, Serializable {
         MKV("Matroska"),
         MOV("Apple Mov"),
         MP4("MPEG-4"),
+        /**
+         * MPEG-4 with the index at the front of the file, so that it can be played while it is
+         * downloaded. Space for the index is reserved when the length of the video is known.
+         */
+        MP4_FASTSTART("MPEG-4 fast start", "mp4", true, ImmutableMap.<String, String>of()),
+        /**
+         * MPEG-4 split into fragments that each have their own index, so that it can be played
+         * while it is written or downloaded. Some older players do not support fragments.
+         */
+        MP4_FRAGMENTED("Fragmented MPEG-4", "mp4", false,
+                ImmutableMap.of("movflags", "frag_keyframe+empty_moov+default_base_moof")),
         ISMV("IIS Smooth Streaming"),
         AAX("Audible AAX"),
         MP3("MPEG-3"),
@@ -199,13 +211,31 @@ public interface EncoderParamsI extends VideoFrameRateParamsI, Serializable {
         OGG("OGG");
 
         public final String name;
+        public final boolean isFastStart;
+        public final ImmutableMap<String, String> muxerOptions;
+        private final String formatName;
 
         OutputFormat(String name) {
+            this(name, null, false, ImmutableMap.<String, String>of());
+        }
+
+        OutputFormat(String name, String formatName, boolean isFastStart,
+                ImmutableMap<String, String> muxerOptions) {
             this.name = name;
+            this.formatName = formatName;
+            this.isFastStart = isFastStart;
+            this.muxerOptions = muxerOptions;
+        }
+
+        /**
+         * Returns the name of the FFmpeg muxer.
+         */
+        public String getFormatName() {
+            return formatName == null ? name().toLowerCase() : formatName;
         }
 
         public String getFileExtension() {
-            return name().toLowerCase();
+            return getFormatName();
         }
 
         @Override
@@ -214,6 +244,96 @@ public interface EncoderParamsI extends VideoFrameRateParamsI, Serializable {
         }
     }
 
+    /**
+     * Encoder speed presets of libx264 and libx265. Faster presets encode faster at the cost of a
+     * larger file for the same quality.
+     */
+    enum VideoPreset {
+        ULTRAFAST,
+        SUPERFAST,
+        VERYFAST,
+        FASTER,
+        FAST,
+        MEDIUM,
+        SLOW,
+        SLOWER,
+        VERYSLOW;
+
+        public String getOptionValue() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * Encoder tunings of libx264.
+     */
+    enum VideoTune {
+        FILM,
+        ANIMATION,
+        GRAIN,
+        STILLIMAGE,
+        FASTDECODE,
+        ZEROLATENCY;
+
+        public String getOptionValue() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * Threading methods of codecs.
+     */
+    enum CodecThreadType {
+        /** Use frame or slice threading, whichever the codec supports. */
+        AUTO(avcodec.AVCodecContext.FF_THREAD_FRAME | avcodec.AVCodecContext.FF_THREAD_SLICE,
+                "frame+slice"),
+        /** Process multiple frames at once. Adds latency of one frame per thread. */
+        FRAME(avcodec.AVCodecContext.FF_THREAD_FRAME, "frame"),
+        /** Process multiple parts of a single frame at once. */
+        SLICE(avcodec.AVCodecContext.FF_THREAD_SLICE, "slice");
+
+        public final int ffmpegThreadType;
+        public final String optionValue;
+
+        CodecThreadType(int ffmpegThreadType, String optionValue) {
+            this.ffmpegThreadType = ffmpegThreadType;
+            this.optionValue = optionValue;
+        }
+    }
+
+    /**
+     * Predefined encoder settings that trade off the time to save the video against the size of
+     * the file.
+     */
+    enum EncoderProfile {
+        /** Encodes as fast as possible at the cost of a larger file. */
+        FASTEST_SAVE(VideoPreset.ULTRAFAST, VideoTune.ZEROLATENCY, 26),
+        /** Encodes quickly at a moderate file size. */
+        BALANCED(VideoPreset.VERYFAST, null, 23),
+        /** Encodes slowly to produce a small file. */
+        SMALLEST_FILE(VideoPreset.SLOW, null, 28);
+
+        public final VideoPreset preset;
+        public final VideoTune tune;
+        public final int crf;
+
+        EncoderProfile(VideoPreset preset, VideoTune tune, int crf) {
+            this.preset = preset;
+            this.tune = tune;
+            this.crf = crf;
+        }
+
+        /**
+         * Sets the video preset, tune and constant rate factor of the profile on the builder.
+         */
+        public <T extends BuilderI<T>> T apply(T builder) {
+            return builder
+                    .setVideoPreset(Optional.of(preset))
+                    .setVideoTune(Optional.fromNullable(tune))
+                    .setVideoCrf(Optional.of(crf));
+        }
+    }
+
     /**
      * Get video bitrate in bits per second.
      */
@@ -224,6 +344,21 @@ public interface EncoderParamsI extends VideoFrameRateParamsI, Serializable {
      */
     VideoCodec getVideoCodec();
 
+    /**
+     * Get video encoder speed preset.
+     */
+    Optional<VideoPreset> getVideoPreset();
+
+    /**
+     * Get video encoder tuning.
+     */
+    Optional<VideoTune> getVideoTune();
+
+    /**
+     * Get video constant rate factor.
+     */
+    Optional<Integer> getVideoCrf();
+
     /**
      * Get audio bitrate in bits per second.
      */
@@ -249,6 +384,16 @@ public interface EncoderParamsI extends VideoFrameRateParamsI, Serializable {
      */
     OutputFormat getOutputFormat();
 
+    /**
+     * Get number of threads to use for each codec.
+     */
+    Optional<Integer> getCodecThreadCount();
+
+    /**
+     * Get threading method of codecs.
+     */
+    CodecThreadType getCodecThreadType();
+
     interface BuilderI<T extends BuilderI<T>> extends VideoFrameRateParamsI.BuilderI<T> {
 
         /**
@@ -267,6 +412,39 @@ public interface EncoderParamsI extends VideoFrameRateParamsI, Serializable {
          */
         T setVideoCodec(VideoCodec val);
 
+        /**
+         * Sets the video encoder speed preset. If not set, the encoder default will be used. Only
+         * supported by H264 and HEVC.
+         */
+        T setVideoPreset(VideoPreset val);
+        /**
+         * Sets the video encoder speed preset. If not set, the encoder default will be used. Only
+         * supported by H264 and HEVC.
+         */
+        T setVideoPreset(Optional<VideoPreset> val);
+
+        /**
+         * Sets the video encoder tuning. If not set, the video will not be tuned. Only supported by
+         * H264.
+         */
+        T setVideoTune(VideoTune val);
+        /**
+         * Sets the video encoder tuning. If not set, the video will not be tuned. Only supported by
+         * H264.
+         */
+        T setVideoTune(Optional<VideoTune> val);
+
+        /**
+         * Sets the video constant rate factor from 0 to 51, where lower values are higher quality.
+         * If not set, the encoder default will be used. Only supported by H264, HEVC and VP9.
+         */
+        T setVideoCrf(int val);
+        /**
+         * Sets the video constant rate factor from 0 to 51, where lower values are higher quality.
+         * If not set, the encoder default will be used. Only supported by H264, HEVC and VP9.
+         */
+        T setVideoCrf(Optional<Integer> val);
+
         /**
          * Sets the audio bitrate in bits per second. If not set, the audio bitrate will be
          * unrestricted.
@@ -311,6 +489,23 @@ public interface EncoderParamsI extends VideoFrameRateParamsI, Serializable {
          */
         T setOutputFormat(OutputFormat val);
 
+        /**
+         * Sets the number of threads to use for encoding and decoding. If not set, the number of
+         * threads will be chosen based on the number of processors.
+         */
+        T setCodecThreadCount(int val);
+        /**
+         * Sets the number of threads to use for encoding and decoding. If not set, the number of
+         * threads will be chosen based on the number of processors.
+         */
+        T setCodecThreadCount(Optional<Integer> val);
+
+        /**
+         * Sets the threading method to use for encoding and decoding. Default value is
+         * {@link CodecThreadType#AUTO}.
+         */
+        T setCodecThreadType(CodecThreadType val);
+
         @Override
         EncoderParamsI build();
     }
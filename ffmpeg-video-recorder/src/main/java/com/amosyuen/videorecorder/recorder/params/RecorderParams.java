@@ -49,15 +49,36 @@ public abstract class RecorderParams implements RecorderParamsI {
     @Override
     public abstract boolean getShouldPadVideo();
 
+    @Override
+    public abstract ScalerQuality getVideoScalerQuality();
+
+    @Override
+    public abstract boolean getShouldRotateVideoWithMetadata();
+
     @Override
     public abstract Optional<Integer> getVideoBitrate();
 
     @Override
     public abstract VideoCodec getVideoCodec();
 
+    @Override
+    public abstract Optional<VideoPreset> getVideoPreset();
+
+    @Override
+    public abstract Optional<VideoTune> getVideoTune();
+
+    @Override
+    public abstract Optional<Integer> getVideoCrf();
+
     @Override
     public abstract OutputFormat getOutputFormat();
 
+    @Override
+    public abstract Optional<Integer> getCodecThreadCount();
+
+    @Override
+    public abstract CodecThreadType getCodecThreadType();
+
     public abstract Builder toBuilder();
 
     public static Builder builder() {
@@ -158,6 +179,12 @@ public abstract class RecorderParams implements RecorderParamsI {
         @Override
         public abstract Builder setShouldPadVideo(boolean val);
 
+        @Override
+        public abstract Builder setVideoScalerQuality(ScalerQuality val);
+
+        @Override
+        public abstract Builder setShouldRotateVideoWithMetadata(boolean val);
+
         @Override
         public Builder setVideoBitrate(int val) {
             return setVideoBitrate(Optional.of(val));
@@ -168,9 +195,40 @@ public abstract class RecorderParams implements RecorderParamsI {
         @Override
         public abstract Builder setVideoCodec(VideoCodec val);
 
+        @Override
+        public Builder setVideoPreset(VideoPreset val) {
+            return setVideoPreset(Optional.of(val));
+        }
+        @Override
+        public abstract Builder setVideoPreset(Optional<VideoPreset> val);
+
+        @Override
+        public Builder setVideoTune(VideoTune val) {
+            return setVideoTune(Optional.of(val));
+        }
+        @Override
+        public abstract Builder setVideoTune(Optional<VideoTune> val);
+
+        @Override
+        public Builder setVideoCrf(int val) {
+            return setVideoCrf(Optional.of(val));
+        }
+        @Override
+        public abstract Builder setVideoCrf(Optional<Integer> val);
+
         @Override
         public abstract Builder setOutputFormat(OutputFormat val);
 
+        @Override
+        public Builder setCodecThreadCount(int val) {
+            return setCodecThreadCount(Optional.of(val));
+        }
+        @Override
+        public abstract Builder setCodecThreadCount(Optional<Integer> val);
+
+        @Override
+        public abstract Builder setCodecThreadType(CodecThreadType val);
+
         abstract RecorderParams autoBuild();
 
         @Override
@@ -28,6 +28,12 @@ public abstract class VideoTransformerParams implements VideoTransformerParamsI
     @Override
     public abstract boolean getShouldPadVideo();
 
+    @Override
+    public abstract ScalerQuality getVideoScalerQuality();
+
+    @Override
+    public abstract boolean getShouldRotateVideoWithMetadata();
+
     public abstract Builder toBuilder();
 
     public static Builder builder() {
@@ -40,7 +46,9 @@ public abstract class VideoTransformerParams implements VideoTransformerParamsI
 
         public static <T extends VideoTransformerParamsI.BuilderI<T>> T setOnlyClassDefaults(
                 T builder) {
-            return builder;
+            return builder
+                    .setVideoScalerQuality(ScalerQuality.BILINEAR)
+                    .setShouldRotateVideoWithMetadata(false);
         }
 
         public static <T extends VideoTransformerParamsI.BuilderI<T>> T setDefaults(T builder) {
@@ -51,7 +59,9 @@ public abstract class VideoTransformerParams implements VideoTransformerParamsI
 
         public static <T extends VideoTransformerParamsI.BuilderI<T>> T mergeOnlyClass(
                 T builder, VideoTransformerParamsI params) {
-            return builder;
+            return builder
+                    .setVideoScalerQuality(params.getVideoScalerQuality())
+                    .setShouldRotateVideoWithMetadata(params.getShouldRotateVideoWithMetadata());
         }
 
         public static <T extends VideoTransformerParamsI.BuilderI<T>> T merge(
@@ -78,6 +88,12 @@ public abstract class VideoTransformerParams implements VideoTransformerParamsI
         @Override
         public abstract Builder setShouldPadVideo(boolean val);
 
+        @Override
+        public abstract Builder setVideoScalerQuality(ScalerQuality val);
+
+        @Override
+        public abstract Builder setShouldRotateVideoWithMetadata(boolean val);
+
         public abstract VideoTransformerParams build();
     }
 }
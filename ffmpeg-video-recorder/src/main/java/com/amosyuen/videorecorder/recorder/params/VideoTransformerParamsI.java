@@ -8,6 +8,24 @@ import java.io.Serializable;
  */
 public interface VideoTransformerParamsI extends VideoScaleParamsI, VideoSizeParamsI, Serializable {
 
+    /**
+     * Scaling algorithms of libswscale. Faster algorithms produce blockier or blurrier frames.
+     */
+    enum ScalerQuality {
+        /** Fast bilinear scaling, which is less accurate than bilinear. */
+        FAST_BILINEAR("fast_bilinear"),
+        /** Bilinear scaling. */
+        BILINEAR("bilinear"),
+        /** Bicubic scaling, which is sharper but slower than bilinear. */
+        BICUBIC("bicubic");
+
+        public final String optionValue;
+
+        ScalerQuality(String optionValue) {
+            this.optionValue = optionValue;
+        }
+    }
+
     /**
      * Gets whether the transformation should crop videos larger than the desired size to the
      * desired size.
@@ -20,6 +38,17 @@ public interface VideoTransformerParamsI extends VideoScaleParamsI, VideoSizePar
      */
     boolean getShouldPadVideo();
 
+    /**
+     * Gets the scaling algorithm to use when scaling videos.
+     */
+    ScalerQuality getVideoScalerQuality();
+
+    /**
+     * Gets whether videos are rotated by writing the rotation to the container metadata instead of
+     * rotating every frame, when all clips have the same orientation.
+     */
+    boolean getShouldRotateVideoWithMetadata();
+
     interface BuilderI<T extends BuilderI<T>>
             extends VideoScaleParamsI.BuilderI<T>, VideoSizeParamsI.BuilderI<T> {
 
@@ -35,6 +64,20 @@ public interface VideoTransformerParamsI extends VideoScaleParamsI, VideoSizePar
          */
         T setShouldPadVideo(boolean val);
 
+        /**
+         * Set the scaling algorithm to use when scaling videos. Default value is
+         * {@link ScalerQuality#BILINEAR}.
+         */
+        T setVideoScalerQuality(ScalerQuality val);
+
+        /**
+         * Set whether videos are rotated by writing the rotation to the container metadata instead
+         * of rotating every frame, when all clips have the same orientation. This saves the most
+         * expensive step of transforming rotated clips, but the video is only displayed rotated by
+         * players that read the rotation. Default value is {@code false}.
+         */
+        T setShouldRotateVideoWithMetadata(boolean val);
+
         VideoTransformerParamsI build();
     }
 }
@@ -11,6 +11,7 @@ import com.amosyuen.videorecorder.recorder.params.EncoderParamsI;
 import com.google.common.base.Preconditions;
 
 import java.io.File;
+import java.util.Map;
 
 /**
  * General utilities
@@ -94,6 +95,15 @@ public class Util {
         if (params.getVideoFrameRate().isPresent()) {
             recorder.setFrameRate(params.getVideoFrameRate().get());
         }
+        if (params.getVideoPreset().isPresent()) {
+            recorder.setVideoOption("preset", params.getVideoPreset().get().getOptionValue());
+        }
+        if (params.getVideoTune().isPresent()) {
+            recorder.setVideoOption("tune", params.getVideoTune().get().getOptionValue());
+        }
+        if (params.getVideoCrf().isPresent()) {
+            recorder.setVideoOption("crf", String.valueOf(params.getVideoCrf().get()));
+        }
 
         recorder.setAudioCodec(params.getAudioCodec().ffmpegCodecValue);
         if (params.getAudioBitrate().isPresent()) {
@@ -103,7 +113,13 @@ public class Util {
             recorder.setSampleRate(params.getAudioSamplingRateHz().get());
         }
 
-        recorder.setFormat(params.getOutputFormat().getFileExtension());
+        recorder.setFormat(params.getOutputFormat().getFormatName());
+        for (Map.Entry<String, String> option : params.getOutputFormat().muxerOptions.entrySet()) {
+            recorder.setOption(option.getKey(), option.getValue());
+        }
+        recorder.setFastStart(params.getOutputFormat().isFastStart);
+        recorder.setThreadCount(params.getCodecThreadCount().or(0));
+        recorder.setThreadType(params.getCodecThreadType().ffmpegThreadType);
 
         return recorder;
     }
@@ -0,0 +1,83 @@
+package com.amosyuen.videorecorder.recorder;
+
+import com.amosyuen.videorecorder.camera.CameraControllerI.Facing;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClipManifestTest {
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private ClipManifest mManifest;
+
+    @Before
+    public void setUp() throws Exception {
+        mManifest = new ClipManifest(new File(mTempFolder.getRoot(), "clips.json"));
+    }
+
+    @Test
+    public void load_noManifest() {
+        assertTrue(mManifest.load().isEmpty());
+    }
+
+    @Test
+    public void save_roundTrip() throws Exception {
+        List<MediaClipsRecorder.Clip> clips = Arrays.asList(
+                MediaClipsRecorder.Clip.create(
+                        mTempFolder.newFile("clip0.mp4"), Facing.BACK, 90, 1500, 1000),
+                MediaClipsRecorder.Clip.create(
+                        mTempFolder.newFile("clip1.mp4"), Facing.FRONT, 270, 2500, 2000));
+
+        mManifest.save(clips);
+
+        assertEquals(clips, new ClipManifest(mManifest.getFile()).load());
+        assertFalse(new File(mManifest.getFile().getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void load_skipsMissingClipFiles() throws Exception {
+        MediaClipsRecorder.Clip clip = MediaClipsRecorder.Clip.create(
+                mTempFolder.newFile("clip0.mp4"), Facing.BACK, 0, 1500, 1000);
+        File missingFile = mTempFolder.newFile("clip1.mp4");
+        MediaClipsRecorder.Clip missingClip =
+                MediaClipsRecorder.Clip.create(missingFile, Facing.BACK, 0, 2500, 2000);
+        mManifest.save(Arrays.asList(clip, missingClip));
+
+        missingFile.delete();
+
+        assertEquals(Collections.singletonList(clip), mManifest.load());
+    }
+
+    @Test
+    public void save_noClipsDeletesManifest() throws Exception {
+        mManifest.save(Collections.singletonList(MediaClipsRecorder.Clip.create(
+                mTempFolder.newFile("clip0.mp4"), Facing.BACK, 0, 1500, 1000)));
+        assertTrue(mManifest.getFile().exists());
+
+        mManifest.save(Collections.<MediaClipsRecorder.Clip>emptyList());
+
+        assertFalse(mManifest.getFile().exists());
+    }
+
+    @Test
+    public void load_corruptManifest() throws Exception {
+        Files.write("{\"clips\": [", mManifest.getFile(), Charsets.UTF_8);
+
+        assertTrue(mManifest.load().isEmpty());
+    }
+}
@@ -0,0 +1,272 @@
+package com.amosyuen.videorecorder.recorder;
+
+import android.content.SharedPreferences;
+
+import com.amosyuen.videorecorder.recorder.common.ImageSize;
+import com.amosyuen.videorecorder.recorder.params.EncoderParamsI.VideoCodec;
+import com.amosyuen.videorecorder.recorder.params.EncoderParamsI.VideoPreset;
+import com.amosyuen.videorecorder.recorder.params.RecorderParams;
+import com.google.common.base.Optional;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class EncodeThroughputCalibratorTest {
+
+    private static final ImageSize FULL_SIZE = new ImageSize(640, 480);
+    private static final ImageSize HALF_SIZE = new ImageSize(320, 240);
+    private static final int FRAME_RATE = 30;
+    private static final long RECORDED_MILLIS = 10000;
+    private static final float DELTA = 0.001f;
+
+    private FakeSharedPreferences mPreferences;
+    private EncodeThroughputCalibrator mCalibrator;
+
+    @Before
+    public void setUp() {
+        mPreferences = new FakeSharedPreferences();
+        mCalibrator = new EncodeThroughputCalibrator(mPreferences);
+    }
+
+    @Test
+    public void getEstimatedFramesPerSecond_measured() {
+        putFramesPerSecond(VideoPreset.FAST, FULL_SIZE, 20);
+
+        assertEquals(20, mCalibrator.getMeasuredFramesPerSecond(
+                VideoCodec.H264, VideoPreset.FAST, FULL_SIZE), DELTA);
+        assertEquals(20, mCalibrator.getEstimatedFramesPerSecond(
+                VideoCodec.H264, VideoPreset.FAST, FULL_SIZE), DELTA);
+    }
+
+    @Test
+    public void getEstimatedFramesPerSecond_scalesClosestMeasuredSizeByArea() {
+        putFramesPerSecond(VideoPreset.FAST, FULL_SIZE, 20);
+        putFramesPerSecond(VideoPreset.FAST, new ImageSize(1280, 720), 5);
+
+        assertEquals(0, mCalibrator.getMeasuredFramesPerSecond(
+                VideoCodec.H264, VideoPreset.FAST, HALF_SIZE), DELTA);
+        assertEquals(80, mCalibrator.getEstimatedFramesPerSecond(
+                VideoCodec.H264, VideoPreset.FAST, HALF_SIZE), DELTA);
+    }
+
+    @Test
+    public void getEstimatedFramesPerSecond_ignoresOtherCodecsAndPresets() {
+        putFramesPerSecond(VideoPreset.ULTRAFAST, FULL_SIZE, 20);
+        mPreferences.edit().putFloat(EncodeThroughputCalibrator.getKey(
+                VideoCodec.HEVC, VideoPreset.FAST, FULL_SIZE), 20).apply();
+
+        assertEquals(0, mCalibrator.getEstimatedFramesPerSecond(
+                VideoCodec.H264, VideoPreset.FAST, FULL_SIZE), DELTA);
+    }
+
+    @Test
+    public void choose_firstWithinTarget() {
+        putFramesPerSecond(VideoPreset.FAST, FULL_SIZE, 20);
+
+        // 300 frames take 15s at the full size and 3.75s at half the size
+        Optional<EncodeThroughputCalibrator.EncodeSettings> settings = mCalibrator.choose(
+                VideoCodec.H264, Arrays.asList(FULL_SIZE, HALF_SIZE),
+                Collections.singletonList(VideoPreset.FAST), RECORDED_MILLIS, FRAME_RATE, 5000);
+
+        assertEquals(
+                EncodeThroughputCalibrator.EncodeSettings.create(
+                        HALF_SIZE, VideoPreset.FAST, 3750),
+                settings.get());
+    }
+
+    @Test
+    public void choose_fastestIfNoneWithinTarget() {
+        putFramesPerSecond(VideoPreset.FAST, FULL_SIZE, 20);
+        putFramesPerSecond(VideoPreset.ULTRAFAST, FULL_SIZE, 60);
+
+        Optional<EncodeThroughputCalibrator.EncodeSettings> settings = mCalibrator.choose(
+                VideoCodec.H264, Collections.singletonList(FULL_SIZE),
+                Arrays.asList(VideoPreset.FAST, VideoPreset.ULTRAFAST),
+                RECORDED_MILLIS, FRAME_RATE, 1000);
+
+        assertEquals(
+                EncodeThroughputCalibrator.EncodeSettings.create(
+                        FULL_SIZE, VideoPreset.ULTRAFAST, 5000),
+                settings.get());
+    }
+
+    @Test
+    public void choose_notMeasured() {
+        assertFalse(mCalibrator.choose(
+                VideoCodec.H264, Collections.singletonList(FULL_SIZE),
+                Collections.singletonList(VideoPreset.FAST), RECORDED_MILLIS, FRAME_RATE, 5000)
+                .isPresent());
+    }
+
+    @Test
+    public void chooseParams_fasterPresetBeforeSmallerSize() throws Exception {
+        putFramesPerSecond(VideoPreset.FAST, FULL_SIZE, 20);
+        putFramesPerSecond(VideoPreset.FASTER, FULL_SIZE, 30);
+        putFramesPerSecond(VideoPreset.VERYFAST, FULL_SIZE, 40);
+        putFramesPerSecond(VideoPreset.SUPERFAST, FULL_SIZE, 50);
+        putFramesPerSecond(VideoPreset.ULTRAFAST, FULL_SIZE, 60);
+        RecorderParams params = RecorderParams.builder()
+                .setVideoCodec(VideoCodec.H264)
+                .setVideoPreset(VideoPreset.FAST)
+                .setVideoSize(FULL_SIZE)
+                .setVideoFrameRate(FRAME_RATE)
+                .build();
+
+        // Every preset is measured, so nothing is encoded and no temp dir is needed
+        RecorderParams chosenParams = mCalibrator.chooseParams(
+                params, FULL_SIZE, RECORDED_MILLIS, 5000, null);
+
+        assertEquals(FULL_SIZE, chosenParams.getVideoSize());
+        assertEquals(VideoPreset.ULTRAFAST, chosenParams.getVideoPreset().get());
+    }
+
+    private void putFramesPerSecond(VideoPreset preset, ImageSize size, float framesPerSecond) {
+        mPreferences.edit()
+                .putFloat(EncodeThroughputCalibrator.getKey(VideoCodec.H264, preset, size),
+                        framesPerSecond)
+                .apply();
+    }
+
+    /**
+     * In memory preferences, since the android.jar used by unit tests only has stubs.
+     */
+    private static class FakeSharedPreferences implements SharedPreferences {
+        private final Map<String, Object> mValues = new HashMap<>();
+
+        @Override
+        public Map<String, ?> getAll() {
+            return new HashMap<>(mValues);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return mValues.containsKey(key) ? (String) mValues.get(key) : defValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return mValues.containsKey(key) ? (Set<String>) mValues.get(key) : defValues;
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return mValues.containsKey(key) ? (Integer) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return mValues.containsKey(key) ? (Long) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return mValues.containsKey(key) ? (Float) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return mValues.containsKey(key) ? (Boolean) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return mValues.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new FakeEditor();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {}
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {}
+
+        private class FakeEditor implements Editor {
+            private final Map<String, Object> mEdits = new HashMap<>();
+            private boolean mShouldClear;
+
+            @Override
+            public Editor putString(String key, String value) {
+                mEdits.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putStringSet(String key, Set<String> values) {
+                mEdits.put(key, values);
+                return this;
+            }
+
+            @Override
+            public Editor putInt(String key, int value) {
+                mEdits.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                mEdits.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putFloat(String key, float value) {
+                mEdits.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putBoolean(String key, boolean value) {
+                mEdits.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor remove(String key) {
+                mEdits.put(key, null);
+                return this;
+            }
+
+            @Override
+            public Editor clear() {
+                mShouldClear = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                if (mShouldClear) {
+                    mValues.clear();
+                }
+                for (Map.Entry<String, Object> entry : mEdits.entrySet()) {
+                    if (entry.getValue() == null) {
+                        mValues.remove(entry.getKey());
+                    } else {
+                        mValues.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.amosyuen.videorecorder.recorder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.bytedeco.javacv.Frame;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_AAC;
+import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_MPEG4;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FFmpegFrameRecorderTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int FRAME_RATE = 30;
+    private static final int GOP_SIZE = 10;
+    private static final int RECORD_COUNT = 100;
+    private static final int SAMPLE_RATE = 44100;
+    private static final int SAMPLES_PER_RECORD = 1024;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    @Test
+    public void fragmentListener_notifiesWholeFragments() throws Exception {
+        File file = mTempFolder.newFile("output.mp4");
+        final List<long[]> ranges = new ArrayList<>();
+        final long[] outputLength = {-1};
+        FFmpegFrameRecorder recorder = createVideoRecorder(file);
+        recorder.setFragmentListener(new FFmpegFrameRecorder.FragmentListener() {
+            @Override
+            public void onFragmentWritten(long offset, long length) {
+                ranges.add(new long[] {offset, length});
+            }
+
+            @Override
+            public void onOutputFinished(long length) {
+                outputLength[0] = length;
+            }
+        });
+        recorder.start();
+        Frame frame = new Frame(WIDTH, HEIGHT, Frame.DEPTH_UBYTE, 3);
+        for (int i = 0; i < 4 * GOP_SIZE + 5; i++) {
+            recorder.record(frame);
+        }
+        recorder.stop();
+
+        byte[] bytes = Files.toByteArray(file);
+        assertEquals(bytes.length, outputLength[0]);
+        // The header and a range for each of the keyframe fragments
+        assertTrue(ranges.size() > 4);
+        long expectedOffset = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            long[] range = ranges.get(i);
+            assertEquals(expectedOffset, range[0]);
+            assertEquals(i == 0 ? "ftyp" : "moof", getBoxType(bytes, (int) range[0]));
+            expectedOffset += range[1];
+        }
+        assertEquals(bytes.length, expectedOffset);
+    }
+
+    @Test
+    public void record_directBuffers_allocatesPointersOnce() throws Exception {
+        // Frames handed around by a frame pool, which reuses a few direct buffers
+        Frame[] frames = new Frame[3];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new Frame(WIDTH, HEIGHT, Frame.DEPTH_UBYTE, 3);
+        }
+        assertRecordAllocatesPointersOnce(frames);
+    }
+
+    @Test
+    public void record_arrayBuffer_allocatesPointersOnce() throws Exception {
+        Frame frame = new Frame();
+        frame.imageWidth = WIDTH;
+        frame.imageHeight = HEIGHT;
+        frame.imageDepth = Frame.DEPTH_UBYTE;
+        frame.imageChannels = 3;
+        frame.imageStride = WIDTH * 3;
+        frame.image = new ByteBuffer[] {ByteBuffer.wrap(new byte[WIDTH * HEIGHT * 3])};
+        assertRecordAllocatesPointersOnce(frame);
+    }
+
+    private void assertRecordAllocatesPointersOnce(Frame... frames) throws Exception {
+        FFmpegFrameRecorder recorder = createVideoRecorder(mTempFolder.newFile("output.mp4"));
+        recorder.start();
+        try {
+            for (Frame frame : frames) {
+                recorder.record(frame);
+            }
+            long allocationCount = recorder.getPointerAllocationCount();
+            for (int i = 0; i < RECORD_COUNT; i++) {
+                recorder.record(frames[i % frames.length]);
+            }
+            assertEquals(allocationCount, recorder.getPointerAllocationCount());
+        } finally {
+            recorder.stop();
+        }
+    }
+
+    @Test
+    public void recordSamples_directBuffer_allocatesPointersOnce() throws Exception {
+        // Grabbers reuse the same direct buffer for every frame of samples
+        ShortBuffer samples = ByteBuffer.allocateDirect(SAMPLES_PER_RECORD * 2)
+                .order(ByteOrder.nativeOrder())
+                .asShortBuffer();
+        assertRecordSamplesAllocatesPointersOnce(samples);
+    }
+
+    @Test
+    public void recordSamples_arrayBuffer_allocatesPointersOnce() throws Exception {
+        assertRecordSamplesAllocatesPointersOnce(
+                ShortBuffer.wrap(new short[SAMPLES_PER_RECORD]));
+    }
+
+    private void assertRecordSamplesAllocatesPointersOnce(ShortBuffer samples) throws Exception {
+        FFmpegFrameRecorder recorder =
+                new FFmpegFrameRecorder(mTempFolder.newFile("output.mp4"), 1);
+        recorder.setFormat("mp4");
+        recorder.setAudioCodec(AV_CODEC_ID_AAC);
+        recorder.setSampleRate(SAMPLE_RATE);
+        recorder.start();
+        try {
+            recorder.recordSamples(SAMPLE_RATE, 1, samples);
+            long allocationCount = recorder.getPointerAllocationCount();
+            for (int i = 0; i < RECORD_COUNT; i++) {
+                samples.rewind();
+                recorder.recordSamples(SAMPLE_RATE, 1, samples);
+            }
+            assertEquals(allocationCount, recorder.getPointerAllocationCount());
+        } finally {
+            recorder.stop();
+        }
+    }
+
+    private static FFmpegFrameRecorder createVideoRecorder(File file) {
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(file, WIDTH, HEIGHT, 0);
+        recorder.setFormat("mp4");
+        recorder.setVideoCodec(AV_CODEC_ID_MPEG4);
+        recorder.setFrameRate(FRAME_RATE);
+        recorder.setGopSize(GOP_SIZE);
+        return recorder;
+    }
+
+    /**
+     * Returns the type of the MP4 box that starts at the offset.
+     */
+    private static String getBoxType(byte[] bytes, int offset) {
+        return new String(bytes, offset + 4, 4, Charsets.US_ASCII);
+    }
+}
@@ -0,0 +1,140 @@
+package com.amosyuen.videorecorder.recorder;
+
+import org.bytedeco.javacv.Frame;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FramePoolTest {
+
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 2;
+
+    @Test
+    public void copy_copiesImage() throws Exception {
+        byte[] pixels = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) i;
+        }
+        Frame frame = createImageFrame(pixels);
+        FramePool pool = new FramePool(1);
+
+        FramePool.PooledFrame pooledFrame = pool.copy(frame, 1234);
+
+        Frame copy = pooledFrame.getFrame();
+        assertEquals(1234, pooledFrame.getTimestamp());
+        assertEquals(WIDTH, copy.imageWidth);
+        assertEquals(HEIGHT, copy.imageHeight);
+        assertEquals(WIDTH, copy.imageStride);
+        assertTrue(copy.keyFrame);
+        assertNull(copy.samples);
+        ByteBuffer buffer = (ByteBuffer) copy.image[0];
+        // Copied into a direct buffer that the recorder can wrap without copying again
+        assertTrue(buffer.isDirect());
+        // Changing the source frame, as grabbers do for the next frame, does not change the copy
+        pixels[0] = 100;
+        byte[] copiedPixels = new byte[buffer.remaining()];
+        buffer.duplicate().get(copiedPixels);
+        assertEquals(0, copiedPixels[0]);
+        assertEquals(pixels.length, copiedPixels.length);
+        assertEquals(pixels[1], copiedPixels[1]);
+    }
+
+    @Test
+    public void copy_copiesSamples() throws Exception {
+        short[] samples = {1, 2, 3, 4};
+        Frame frame = new Frame();
+        frame.samples = new ShortBuffer[] {ShortBuffer.wrap(samples)};
+        frame.sampleRate = 44100;
+        frame.audioChannels = 1;
+        FramePool pool = new FramePool(1);
+
+        Frame copy = pool.copy(frame, 0).getFrame();
+
+        assertNull(copy.image);
+        assertEquals(44100, copy.sampleRate);
+        assertEquals(1, copy.audioChannels);
+        ShortBuffer buffer = (ShortBuffer) copy.samples[0];
+        short[] copiedSamples = new short[buffer.remaining()];
+        buffer.duplicate().get(copiedSamples);
+        assertArrayEquals(samples, copiedSamples);
+    }
+
+    @Test
+    public void copy_reusesBuffersOfReleasedFrame() throws Exception {
+        Frame frame = createImageFrame(new byte[WIDTH * HEIGHT]);
+        FramePool pool = new FramePool(1);
+
+        FramePool.PooledFrame pooledFrame = pool.copy(frame, 0);
+        ByteBuffer buffer = (ByteBuffer) pooledFrame.getFrame().image[0];
+        pooledFrame.release();
+        FramePool.PooledFrame reusedFrame = pool.copy(frame, 0);
+
+        assertSame(pooledFrame, reusedFrame);
+        assertSame(buffer, reusedFrame.getFrame().image[0]);
+    }
+
+    @Test
+    public void copy_blocksUntilFrameIsReleased() throws Exception {
+        final Frame frame = createImageFrame(new byte[WIDTH * HEIGHT]);
+        final FramePool pool = new FramePool(1);
+        FramePool.PooledFrame pooledFrame = pool.copy(frame, 0);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<FramePool.PooledFrame> future =
+                    executor.submit(new Callable<FramePool.PooledFrame>() {
+                        @Override
+                        public FramePool.PooledFrame call() throws Exception {
+                            return pool.copy(frame, 1);
+                        }
+                    });
+            try {
+                future.get(100, TimeUnit.MILLISECONDS);
+                fail("Copy should block while every frame is in use");
+            } catch (TimeoutException expected) {}
+            assertFalse(future.isDone());
+
+            pooledFrame.release();
+
+            assertEquals(1, future.get(1, TimeUnit.SECONDS).getTimestamp());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void release_twice() throws Exception {
+        FramePool pool = new FramePool(1);
+        FramePool.PooledFrame pooledFrame = pool.copy(createImageFrame(new byte[1]), 0);
+        pooledFrame.release();
+        pooledFrame.release();
+    }
+
+    private static Frame createImageFrame(byte[] pixels) {
+        Frame frame = new Frame();
+        frame.imageWidth = WIDTH;
+        frame.imageHeight = HEIGHT;
+        frame.imageDepth = Frame.DEPTH_UBYTE;
+        frame.imageChannels = 1;
+        frame.imageStride = WIDTH;
+        frame.image = new ByteBuffer[] {ByteBuffer.wrap(pixels)};
+        frame.keyFrame = true;
+        return frame;
+    }
+}
@@ -0,0 +1,115 @@
+package com.amosyuen.videorecorder.recorder;
+
+import com.amosyuen.videorecorder.camera.CameraControllerI.Facing;
+import com.amosyuen.videorecorder.recorder.common.ImageSize;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SaveCheckpointTest {
+
+    private static final String ENCODER_PARAMS_KEY = "encoder";
+    private static final ImageSize SIZE = new ImageSize(640, 480);
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private File mCheckpointFile;
+    private MediaClipsRecorder.Clip mClip;
+
+    @Before
+    public void setUp() throws Exception {
+        mCheckpointFile = new File(mTempFolder.getRoot(), "checkpoint.json");
+        File clipFile = mTempFolder.newFile("clip0.mp4");
+        Files.write("clip", clipFile, Charsets.UTF_8);
+        mClip = MediaClipsRecorder.Clip.create(clipFile, Facing.FRONT, 90, 1500, 4);
+    }
+
+    @Test
+    public void onSegmentTranscoded_roundTrip() throws Exception {
+        VideoTransformerTask.Segment segment = createSegment("segment0.mp4", 90);
+        new SaveCheckpoint(mCheckpointFile).onSegmentTranscoded(mClip, segment);
+
+        SaveCheckpoint checkpoint = new SaveCheckpoint(mCheckpointFile);
+
+        assertEquals(segment, checkpoint.getSegment(mClip, ENCODER_PARAMS_KEY));
+        assertNull(checkpoint.getSegment(mClip, "other encoder"));
+    }
+
+    @Test
+    public void getSegment_clipChanged() throws Exception {
+        new SaveCheckpoint(mCheckpointFile)
+                .onSegmentTranscoded(mClip, createSegment("segment0.mp4", 0));
+
+        // A new clip recorded to the same path
+        Files.write("new clip", mClip.getFile(), Charsets.UTF_8);
+
+        assertNull(new SaveCheckpoint(mCheckpointFile).getSegment(mClip, ENCODER_PARAMS_KEY));
+    }
+
+    @Test
+    public void getSegment_segmentFileDeleted() throws Exception {
+        VideoTransformerTask.Segment segment = createSegment("segment0.mp4", 0);
+        SaveCheckpoint checkpoint = new SaveCheckpoint(mCheckpointFile);
+        checkpoint.onSegmentTranscoded(mClip, segment);
+
+        segment.getFile().delete();
+
+        assertNull(checkpoint.getSegment(mClip, ENCODER_PARAMS_KEY));
+    }
+
+    @Test
+    public void onSegmentTranscoded_deletesReplacedSegment() throws Exception {
+        VideoTransformerTask.Segment oldSegment = createSegment("segment0.mp4", 0);
+        VideoTransformerTask.Segment newSegment = createSegment("segment1.mp4", 0);
+        SaveCheckpoint checkpoint = new SaveCheckpoint(mCheckpointFile);
+        checkpoint.onSegmentTranscoded(mClip, oldSegment);
+
+        checkpoint.onSegmentTranscoded(mClip, newSegment);
+
+        assertFalse(oldSegment.getFile().exists());
+        assertEquals(newSegment,
+                new SaveCheckpoint(mCheckpointFile).getSegment(mClip, ENCODER_PARAMS_KEY));
+    }
+
+    @Test
+    public void clear_deletesSegmentsAndFile() throws Exception {
+        VideoTransformerTask.Segment segment = createSegment("segment0.mp4", 0);
+        SaveCheckpoint checkpoint = new SaveCheckpoint(mCheckpointFile);
+        checkpoint.onSegmentTranscoded(mClip, segment);
+        assertTrue(mCheckpointFile.exists());
+
+        checkpoint.clear();
+
+        assertFalse(segment.getFile().exists());
+        assertFalse(mCheckpointFile.exists());
+        assertNull(checkpoint.getSegment(mClip, ENCODER_PARAMS_KEY));
+    }
+
+    @Test
+    public void load_corruptCheckpoint() throws Exception {
+        Files.write("{\"segments\": [", mCheckpointFile, Charsets.UTF_8);
+
+        SaveCheckpoint checkpoint = new SaveCheckpoint(mCheckpointFile);
+
+        assertNull(checkpoint.getSegment(mClip, ENCODER_PARAMS_KEY));
+        assertFalse(mCheckpointFile.exists());
+    }
+
+    private VideoTransformerTask.Segment createSegment(String name, int metadataRotationDegrees)
+            throws Exception {
+        return VideoTransformerTask.Segment.create(
+                mTempFolder.newFile(name), SIZE, metadataRotationDegrees, ENCODER_PARAMS_KEY);
+    }
+}
@@ -0,0 +1,135 @@
+package com.amosyuen.videorecorder.recorder;
+
+import android.os.Handler;
+
+import com.google.common.base.Joiner;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ThrottledProgressListenerTest {
+
+    private static final int TOTAL = 100;
+
+    private FakeHandler mHandler;
+    private RecordingListener mListener;
+    private ThrottledProgressListener mThrottledListener;
+
+    @Before
+    public void setUp() {
+        mHandler = new FakeHandler();
+        mListener = new RecordingListener();
+        mThrottledListener = new ThrottledProgressListener(mListener, mHandler);
+        // Only throttle on the progress fraction, since the clock does not advance in unit tests
+        mThrottledListener.setMinIntervalMillis(0);
+        mThrottledListener.setMinProgressFraction(0.1f);
+    }
+
+    @Test
+    public void onProgress_throttlesSmallChanges() {
+        mThrottledListener.onStart();
+        mThrottledListener.onProgress(5, TOTAL);
+        mThrottledListener.onProgress(10, TOTAL);
+        mHandler.runAll();
+        mThrottledListener.onProgress(15, TOTAL);
+        mThrottledListener.onProgress(25, TOTAL);
+        mHandler.runAll();
+
+        assertEquals("start,10/100,25/100", mListener.getEvents());
+    }
+
+    @Test
+    public void onProgress_pendingUpdateDeliversLatestProgress() {
+        mThrottledListener.onStart();
+        mThrottledListener.onProgress(10, TOTAL);
+        // Not throttled, but the update posted above has not been delivered yet
+        mThrottledListener.onProgress(40, TOTAL);
+        mThrottledListener.onProgress(41, TOTAL);
+        mHandler.runAll();
+
+        assertEquals("start,41/100", mListener.getEvents());
+    }
+
+    @Test
+    public void onDone_deliversThrottledProgressFirst() {
+        mThrottledListener.onStart();
+        mThrottledListener.onProgress(50, TOTAL);
+        mHandler.runAll();
+        mThrottledListener.onProgress(55, TOTAL);
+        mThrottledListener.onDone();
+        mHandler.runAll();
+
+        assertEquals("start,50/100,55/100,done", mListener.getEvents());
+    }
+
+    @Test
+    public void onDone_doesNotRepeatPendingProgress() {
+        mThrottledListener.onStart();
+        mThrottledListener.onProgress(50, TOTAL);
+        mThrottledListener.onProgress(55, TOTAL);
+        mThrottledListener.onDone();
+        mHandler.runAll();
+
+        assertEquals("start,55/100,done", mListener.getEvents());
+    }
+
+    @Test
+    public void onStart_resetsThrottling() {
+        mThrottledListener.onStart();
+        mThrottledListener.onProgress(50, TOTAL);
+        mThrottledListener.onDone();
+        mThrottledListener.onStart();
+        mThrottledListener.onProgress(5, TOTAL);
+        mThrottledListener.onProgress(10, TOTAL);
+        mHandler.runAll();
+
+        assertEquals("start,50/100,done,start,10/100", mListener.getEvents());
+    }
+
+    /**
+     * Handler that queues posted runnables until they are run by the test.
+     */
+    private static class FakeHandler extends Handler {
+        private final List<Runnable> mRunnables = new ArrayList<>();
+
+        @Override
+        public boolean post(Runnable r) {
+            mRunnables.add(r);
+            return true;
+        }
+
+        void runAll() {
+            while (!mRunnables.isEmpty()) {
+                mRunnables.remove(0).run();
+            }
+        }
+    }
+
+    private static class RecordingListener implements VideoTransformerTask.TaskListener {
+        private final List<String> mEvents = new ArrayList<>();
+
+        @Override
+        public void onStart() {
+            mEvents.add("start");
+        }
+
+        @Override
+        public void onProgress(int progress, int total) {
+            mEvents.add(progress + "/" + total);
+        }
+
+        @Override
+        public void onDone() {
+            mEvents.add("done");
+        }
+
+        String getEvents() {
+            return Joiner.on(',').join(mEvents);
+        }
+    }
+}
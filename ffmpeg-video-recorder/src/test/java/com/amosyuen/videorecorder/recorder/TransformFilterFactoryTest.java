@@ -0,0 +1,96 @@
+package com.amosyuen.videorecorder.recorder;
+
+import com.amosyuen.videorecorder.camera.CameraControllerI.Facing;
+import com.amosyuen.videorecorder.recorder.VideoTransformerTask.FilterParams;
+import com.amosyuen.videorecorder.recorder.common.ImageFit;
+import com.amosyuen.videorecorder.recorder.common.ImageSize;
+import com.amosyuen.videorecorder.recorder.params.VideoTransformerParams;
+import com.amosyuen.videorecorder.recorder.params.VideoTransformerParamsI.ScalerQuality;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TransformFilterFactoryTest {
+
+    private static final ImageSize RECORDED_SIZE = new ImageSize(640, 480);
+    private static final int FRAME_RATE = 30;
+
+    @Test
+    public void needsFilter_sameSizeBackFacing() {
+        TransformFilterFactory factory = createFactory(RECORDED_SIZE, ImageFit.FILL, false, false);
+        assertFalse(factory.needsFilter(createParams(Facing.BACK, 0)));
+        assertTrue(factory.needsFilter(createParams(Facing.FRONT, 0)));
+        assertTrue(factory.needsFilter(createParams(Facing.BACK, 180)));
+    }
+
+    @Test
+    public void getFilterDescription_mirrorAndRotateInOneTransform() {
+        ImageSize size = new ImageSize(480, 640);
+        TransformFilterFactory factory = createFactory(size, ImageFit.FILL, false, false);
+        assertEquals("transpose=clock_flip",
+                factory.getFilterDescription(createParams(Facing.FRONT, 90), size));
+        assertEquals("transpose=cclock_flip",
+                factory.getFilterDescription(createParams(Facing.FRONT, 270), size));
+        assertEquals("transpose=clock",
+                factory.getFilterDescription(createParams(Facing.BACK, 90), size));
+    }
+
+    @Test
+    public void getFilterDescription_rotate180() {
+        TransformFilterFactory factory = createFactory(RECORDED_SIZE, ImageFit.FILL, false, false);
+        assertEquals("vflip,hflip",
+                factory.getFilterDescription(createParams(Facing.BACK, 180), RECORDED_SIZE));
+        assertEquals("vflip",
+                factory.getFilterDescription(createParams(Facing.FRONT, 180), RECORDED_SIZE));
+    }
+
+    @Test
+    public void getFilterDescription_scaleWithScalerQuality() {
+        ImageSize size = new ImageSize(320, 240);
+        TransformFilterFactory factory = new TransformFilterFactory(
+                createParamsBuilder(size, ImageFit.FILL, false, false)
+                        .setVideoScalerQuality(ScalerQuality.BICUBIC)
+                        .build());
+        assertEquals("scale=320:240:flags=bicubic",
+                factory.getFilterDescription(createParams(Facing.BACK, 0), size));
+    }
+
+    @Test
+    public void getFilterDescription_cropSourceBeforeRotating() {
+        ImageSize size = new ImageSize(480, 600);
+        TransformFilterFactory factory = createFactory(size, ImageFit.FILL, true, false);
+        // The crop lines up with source pixels, so the source is cropped and nothing is scaled
+        assertEquals("crop=600:480,transpose=clock",
+                factory.getFilterDescription(createParams(Facing.BACK, 90), size));
+    }
+
+    @Test
+    public void getFilterDescription_scaleAndPad() {
+        ImageSize size = new ImageSize(480, 480);
+        TransformFilterFactory factory = createFactory(size, ImageFit.FIT, false, true);
+        assertEquals("scale=480:360:flags=bilinear,pad=480:480:(ow-iw)/2:(oh-ih)/2",
+                factory.getFilterDescription(createParams(Facing.BACK, 0), size));
+    }
+
+    private static FilterParams createParams(Facing facing, int rotationDegrees) {
+        return FilterParams.create(RECORDED_SIZE, FRAME_RATE, facing, rotationDegrees);
+    }
+
+    private static TransformFilterFactory createFactory(
+            ImageSize videoSize, ImageFit imageFit, boolean shouldCrop, boolean shouldPad) {
+        return new TransformFilterFactory(
+                createParamsBuilder(videoSize, imageFit, shouldCrop, shouldPad).build());
+    }
+
+    private static VideoTransformerParams.Builder createParamsBuilder(
+            ImageSize videoSize, ImageFit imageFit, boolean shouldCrop, boolean shouldPad) {
+        return VideoTransformerParams.builder()
+                .setVideoSize(videoSize)
+                .setVideoImageFit(imageFit)
+                .setShouldCropVideo(shouldCrop)
+                .setShouldPadVideo(shouldPad);
+    }
+}
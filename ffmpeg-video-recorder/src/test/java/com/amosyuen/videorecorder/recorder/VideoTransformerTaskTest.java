@@ -0,0 +1,87 @@
+package com.amosyuen.videorecorder.recorder;
+
+import com.amosyuen.videorecorder.camera.CameraControllerI;
+import com.amosyuen.videorecorder.recorder.VideoTransformerTask.ClipInput;
+import com.amosyuen.videorecorder.recorder.VideoTransformerTask.FilterParams;
+import com.amosyuen.videorecorder.recorder.common.ImageSize;
+import com.amosyuen.videorecorder.recorder.params.VideoTransformerParams;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_AAC;
+import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_H264;
+import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_YUV420P;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VideoTransformerTaskTest {
+
+    private static final ImageSize SIZE = new ImageSize(640, 480);
+    private static final int FRAME_RATE = 30;
+    private static final int VIDEO_BITRATE = 1000000;
+    private static final int SAMPLE_RATE = 44100;
+
+    private FFmpegFrameRecorder mRecorder;
+    private VideoTransformerTask mTask;
+
+    @Before
+    public void setUp() {
+        mRecorder = new FFmpegFrameRecorder("output.mp4", SIZE.width(), SIZE.height(), 1);
+        mRecorder.setFormat("mp4");
+        mRecorder.setVideoCodec(AV_CODEC_ID_H264);
+        mRecorder.setFrameRate(FRAME_RATE);
+        mRecorder.setVideoBitrate(VIDEO_BITRATE);
+        mRecorder.setAudioCodec(AV_CODEC_ID_AAC);
+        mRecorder.setSampleRate(SAMPLE_RATE);
+        mTask = new VideoTransformerTask(
+                mRecorder,
+                VideoTransformerParams.builder()
+                        .setVideoSize(SIZE)
+                        .setShouldCropVideo(false)
+                        .setShouldPadVideo(false)
+                        .build(),
+                Collections.singletonList(MediaClipsRecorder.Clip.create(
+                        new File("clip.mp4"), CameraControllerI.Facing.BACK, 0, 1000, 0)));
+    }
+
+    @Test
+    public void canRemux_noEncoderOptions() {
+        assertTrue(mTask.canRemux(createInputs(VIDEO_BITRATE), SIZE));
+    }
+
+    @Test
+    public void canRemux_withEncoderOptions() {
+        mRecorder.setVideoOption("preset", "veryfast");
+        mRecorder.setVideoOption("tune", "zerolatency");
+        mRecorder.setVideoOption("crf", "23");
+        assertTrue(mTask.canRemux(createInputs(VIDEO_BITRATE), SIZE));
+    }
+
+    @Test
+    public void canRemux_higherBitrateThanRecorder() {
+        mRecorder.setVideoOption("preset", "veryfast");
+        assertFalse(mTask.canRemux(createInputs(2 * VIDEO_BITRATE), SIZE));
+    }
+
+    @Test
+    public void canRemux_differentCodec() {
+        mRecorder.setVideoOption("preset", "veryfast");
+        mRecorder.setVideoCodec(AV_CODEC_ID_H264 + 1);
+        assertFalse(mTask.canRemux(createInputs(VIDEO_BITRATE), SIZE));
+    }
+
+    private static List<ClipInput> createInputs(long videoBitrate) {
+        ClipMetadata metadata = ClipMetadata.create(SIZE, FRAME_RATE, 1000000, AV_CODEC_ID_H264,
+                AV_PIX_FMT_YUV420P, videoBitrate, AV_CODEC_ID_AAC, 1, SAMPLE_RATE,
+                ImmutableList.<ClipMetadata.StreamParams>of());
+        FilterParams filterParams =
+                FilterParams.create(SIZE, FRAME_RATE, CameraControllerI.Facing.BACK, 0);
+        return ImmutableList.of(ClipInput.create(new File("clip.mp4"), metadata, filterParams, 0));
+    }
+}